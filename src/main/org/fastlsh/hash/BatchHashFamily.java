@@ -0,0 +1,159 @@
+package org.fastlsh.hash;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.fastlsh.index.VectorWithId;
+import org.fastlsh.util.BitSet;
+
+/**
+ * A cosine (random hyperplane) hash family which stores all of its projections in one contiguous, row-major numHashes x dimension matrix,
+ * and hashes a block of vectors at once as a cache-blocked matrix multiply, writing sign bits straight into packed signature words.
+ *
+ * <br>Projections are drawn from the Random in the same order as getCosineHashFamily() used to draw them for its CosineHash objects,
+ * and every dot product is summed in the same order as MathFns.dotSequential(), so signatures are bit for bit the same as those of the equivalent
+ * family of CosineHash functions.
+ *
+ * <br>The projections are defined by a seed: only the seed is serialized, and the projections are regenerated from it when the family is read back in.
+ */
+public class BatchHashFamily extends HashFamily
+{
+    private static final long serialVersionUID = 2383326386035658720L;
+
+    /** Number of vectors whose dot products with a projection are accumulated together */
+    protected static final int vectorBlock = 4;
+    /** Target size in bytes of the block of projections kept in cache while a block of vectors is hashed */
+    protected static final int projectionBlockBytes = 1 << 17;
+
+    protected final int dimension;
+    protected final int numHashes;
+    protected final int numWords;
+    protected final long seed;
+    protected transient double [] projections;
+
+    /**
+     * @param dimension
+     * @param numHashes
+     * @param seed the projections are drawn from new Random(seed): projection h is [h * dimension, (h + 1) * dimension) of the row-major projection matrix
+     */
+    public BatchHashFamily(int dimension, int numHashes, long seed)
+    {
+        super(null);
+        this.dimension = dimension;
+        this.numHashes = numHashes;
+        this.numWords = (numHashes + 63) >>> 6;
+        this.seed = seed;
+        projections = gaussians(dimension * numHashes, new Random(seed));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        projections = gaussians(dimension * numHashes, new Random(seed));
+    }
+
+    protected static double [] gaussians(int n, Random rand)
+    {
+        double [] retval = new double[n];
+        for(int i = 0; i < n; i++) retval[i] = rand.nextGaussian();
+        return retval;
+    }
+
+    @Override
+    public int numHashes()
+    {
+        return numHashes;
+    }
+
+    public int dimension()
+    {
+        return dimension;
+    }
+
+    @Override
+    public BitSet makeSignature(VectorWithId input)
+    {
+        BitSet retval = new BitSet(numHashes);
+        makeSignatures(new VectorWithId [] {input}, 0, 1, retval.bits, 0);
+        return retval;
+    }
+
+    @Override
+    public void makeSignatures(VectorWithId [] inputs, int from, int to, long [] words, int offset)
+    {
+        Arrays.fill(words, offset, offset + (to - from) * numWords, 0L);
+        int hashBlock = Math.max(1, projectionBlockBytes / (8 * Math.max(1, dimension)));
+        for(int h0 = 0; h0 < numHashes; h0 += hashBlock)
+        {
+            int h1 = Math.min(numHashes, h0 + hashBlock);
+            int v = from;
+            for(; v + vectorBlock <= to; v += vectorBlock)
+            {
+                hash4(inputs[v].values(), inputs[v + 1].values(), inputs[v + 2].values(), inputs[v + 3].values(), h0, h1, words, offset + (v - from) * numWords);
+            }
+            for(; v < to; v++) hash1(inputs[v].values(), h0, h1, words, offset + (v - from) * numWords);
+        }
+    }
+
+    @Override
+    public void makeSignature(double [] vals, long [] words, int offset)
+    {
+        Arrays.fill(words, offset, offset + numWords, 0L);
+        hash1(vals, 0, numHashes, words, offset);
+    }
+
+    /**
+     * Set the bits for hashes [h0, h1) of four consecutive signatures, the first starting at words[offset]
+     */
+    protected void hash4(double [] x0, double [] x1, double [] x2, double [] x3, int h0, int h1, long [] words, int offset)
+    {
+        checkDimension(x0);
+        checkDimension(x1);
+        checkDimension(x2);
+        checkDimension(x3);
+        for(int h = h0, p = h0 * dimension; h < h1; h++)
+        {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for(int i = 0; i < dimension; i++, p++)
+            {
+                double proj = projections[p];
+                s0 += x0[i] * proj;
+                s1 += x1[i] * proj;
+                s2 += x2[i] * proj;
+                s3 += x3[i] * proj;
+            }
+            setBits(h, s0, s1, s2, s3, words, offset);
+        }
+    }
+
+    protected void setBits(int h, double s0, double s1, double s2, double s3, long [] words, int offset)
+    {
+        int w = offset + (h >>> 6);
+        long bit = 1L << (h & 0x3F);
+        if(s0 >= 0) words[w] |= bit;
+        if(s1 >= 0) words[w + numWords] |= bit;
+        if(s2 >= 0) words[w + 2 * numWords] |= bit;
+        if(s3 >= 0) words[w + 3 * numWords] |= bit;
+    }
+
+    /**
+     * Set the bits for hashes [h0, h1) of the signature starting at words[offset]
+     */
+    protected void hash1(double [] x, int h0, int h1, long [] words, int offset)
+    {
+        checkDimension(x);
+        for(int h = h0, p = h0 * dimension; h < h1; h++)
+        {
+            double s = 0;
+            for(int i = 0; i < dimension; i++, p++) s += x[i] * projections[p];
+            if(s >= 0) words[offset + (h >>> 6)] |= 1L << (h & 0x3F);
+        }
+    }
+
+    protected void checkDimension(double [] x)
+    {
+        if(x.length != dimension) throw new IllegalArgumentException("Expected vector of dimension " + dimension + ", got " + x.length);
+    }
+}
@@ -18,6 +18,7 @@ import java.io.Serializable;
 import java.util.Random;
 
 import org.fastlsh.index.VectorWithId;
+import org.fastlsh.util.MathFns;
 
 /** Implements an LSH hash functon for the cosine similarity.
  *  See Charikar (2002).
@@ -41,7 +42,7 @@ public class CosineHash implements HashFunction, Serializable
     @Override
     public boolean hash(VectorWithId input)
     {
-        return input.dotProduct(projection) >= 0;
+        return MathFns.dotSequential(input.values(), projection) >= 0;
     }
 
 }
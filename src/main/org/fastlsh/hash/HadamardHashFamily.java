@@ -0,0 +1,171 @@
+package org.fastlsh.hash;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.fastlsh.index.VectorWithId;
+import org.fastlsh.util.BitSet;
+
+/**
+ * A cosine (sign random projection) hash family built from randomized Hadamard transforms rather than dense Gaussian projections.
+ * The input is zero padded to a power of two length n, and each block of up to n bits is made by applying three rounds of
+ * (random sign flips, fast Walsh-Hadamard transform) to it and taking the signs of a random sample of the n outputs. Each output is
+ * the dot product of the input with a pseudo-random direction, so the bits have the same meaning as CosineHash bits (the probability
+ * that two vectors' bits differ is close to their angle / pi), but a block costs O(n log n) rather than O(n * bits).
+ *
+ * <br>The sign masks and sample indices are defined by a seed: only the seed is serialized, and they are regenerated from it when the family is read back in.
+ */
+public class HadamardHashFamily extends HashFamily
+{
+    private static final long serialVersionUID = -4385290117738633094L;
+
+    /** Rounds of sign flips and transforms per block: one round gives +/-1 directions, more make them closer to Gaussian */
+    protected static final int rounds = 3;
+
+    protected final int dimension;
+    protected final int paddedDimension;
+    protected final int numHashes;
+    protected final int numWords;
+    protected final int numBlocks;
+    protected final long seed;
+    /** Sign flips, as bit masks: round r of block b uses words [(b * rounds + r) * paddedWords, (b * rounds + r + 1) * paddedWords) */
+    protected transient long [] signs;
+    /** Output of its block's transform used by each hash */
+    protected transient int [] samples;
+    /** Per thread scratch space for makeSignature(double[], long[], int), so hashing a single query allocates nothing */
+    protected transient ThreadLocal<double []> scratch;
+
+    public HadamardHashFamily(int dimension, int numHashes, long seed)
+    {
+        super(null);
+        this.dimension = dimension;
+        this.numHashes = numHashes;
+        this.seed = seed;
+        numWords = (numHashes + 63) >>> 6;
+        int n = 1;
+        while(n < dimension) n <<= 1;
+        paddedDimension = n;
+        numBlocks = (numHashes + n - 1) / n;
+        generate();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        generate();
+    }
+
+    /**
+     * Draw the sign masks and sample indices from the seed
+     */
+    protected void generate()
+    {
+        Random rand = new Random(seed);
+        int n = paddedDimension;
+        int paddedWords = (n + 63) >>> 6;
+        signs = new long[numBlocks * rounds * paddedWords];
+        for(int i = 0; i < signs.length; i++) signs[i] = rand.nextLong();
+        // each block samples distinct outputs: a partial shuffle of [0, n)
+        samples = new int[numHashes];
+        int [] outputs = new int[n];
+        for(int b = 0; b < numBlocks; b++)
+        {
+            for(int i = 0; i < n; i++) outputs[i] = i;
+            for(int h = b * n, i = 0; h < Math.min(numHashes, (b + 1) * n); h++, i++)
+            {
+                int swap = i + rand.nextInt(n - i);
+                int tmp = outputs[i];
+                outputs[i] = outputs[swap];
+                outputs[swap] = tmp;
+                samples[h] = outputs[i];
+            }
+        }
+        scratch = new ThreadLocal<double []>()
+        {
+            @Override
+            protected double [] initialValue()
+            {
+                return new double[paddedDimension];
+            }
+        };
+    }
+
+    @Override
+    public int numHashes()
+    {
+        return numHashes;
+    }
+
+    @Override
+    public BitSet makeSignature(VectorWithId input)
+    {
+        BitSet retval = new BitSet(numHashes);
+        hash(input.values(), new double[paddedDimension], retval.bits, 0);
+        return retval;
+    }
+
+    @Override
+    public void makeSignatures(VectorWithId [] inputs, int from, int to, long [] words, int offset)
+    {
+        double [] buf = new double[paddedDimension];
+        for(int v = from; v < to; v++, offset += numWords) hash(inputs[v].values(), buf, words, offset);
+    }
+
+    @Override
+    public void makeSignature(double [] vals, long [] words, int offset)
+    {
+        hash(vals, scratch.get(), words, offset);
+    }
+
+    /**
+     * Write the signature of x to words[offset, offset + numWords), using buf (of length paddedDimension) as scratch space
+     */
+    protected void hash(double [] x, double [] buf, long [] words, int offset)
+    {
+        if(x.length != dimension) throw new IllegalArgumentException("Expected vector of dimension " + dimension + ", got " + x.length);
+        Arrays.fill(words, offset, offset + numWords, 0L);
+        int paddedWords = (paddedDimension + 63) >>> 6;
+        for(int b = 0; b < numBlocks; b++)
+        {
+            System.arraycopy(x, 0, buf, 0, dimension);
+            Arrays.fill(buf, dimension, paddedDimension, 0.0);
+            for(int r = 0; r < rounds; r++)
+            {
+                int mask = (b * rounds + r) * paddedWords;
+                for(int i = 0; i < paddedDimension; i++)
+                {
+                    if((signs[mask + (i >>> 6)] & (1L << (i & 0x3F))) != 0) buf[i] = -buf[i];
+                }
+                fwht(buf);
+            }
+            for(int h = b * paddedDimension, max = Math.min(numHashes, h + paddedDimension); h < max; h++)
+            {
+                if(buf[samples[h]] >= 0) words[offset + (h >>> 6)] |= 1L << (h & 0x3F);
+            }
+        }
+    }
+
+    /**
+     * In place, unnormalized fast Walsh-Hadamard transform of an array whose length is a power of two
+     * @param a
+     */
+    public static void fwht(double [] a)
+    {
+        int n = a.length;
+        for(int len = 1; len < n; len <<= 1)
+        {
+            for(int i = 0; i < n; i += len << 1)
+            {
+                for(int j = i, max = i + len; j < max; j++)
+                {
+                    double u = a[j];
+                    double v = a[j + len];
+                    a[j] = u + v;
+                    a[j + len] = u - v;
+                }
+            }
+        }
+    }
+}
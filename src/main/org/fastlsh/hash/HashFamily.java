@@ -32,6 +32,14 @@ public class HashFamily implements Serializable
     {
         hashes = hs;
     }
+
+    /**
+     * @return number of bits in the signatures made by this family
+     */
+    public int numHashes()
+    {
+        return hashes.length;
+    }
     
     /**
      * Generates the LSH signature corresponding to the input data vector and the family of hash functions.
@@ -48,18 +56,100 @@ public class HashFamily implements Serializable
         return retval;
     }
 
+    /**
+     * Generates the signatures of inputs[from, to), packed one after another into words starting at offset, each taking 
+     * (numHashes() + 63) / 64 words laid out as in BitSet. Subclasses can override this to hash a block of vectors at once.
+     * @param inputs
+     * @param from
+     * @param to
+     * @param words
+     * @param offset
+     */
+    public void makeSignatures(VectorWithId [] inputs, int from, int to, long [] words, int offset)
+    {
+        int numWords = (numHashes() + 63) >>> 6;
+        for(int v = from; v < to; v++, offset += numWords)
+        {
+            System.arraycopy(makeSignature(inputs[v]).bits, 0, words, offset, numWords);
+        }
+    }
+
+    /**
+     * Generates the signature of a bare vector into words[offset, offset + (numHashes() + 63) / 64), for callers such as the searcher which hash
+     * one query at a time. Subclasses override this to hash without allocating.
+     * @param vals
+     * @param words
+     * @param offset
+     */
+    public void makeSignature(double [] vals, long [] words, int offset)
+    {
+        makeSignatures(new VectorWithId [] {new VectorWithId(-1, vals)}, 0, 1, words, offset);
+    }
+
 	/**
 	 * Makes an LSH family for cosine similarity.
 	 * @param dimension the dimension of the data vectors to be hashed
 	 * @param familySize the number of hash functions to include in the family
-	 * @return an array containing the functions comprising the family
+	 * @return the family, which hashes blocks of vectors at once (see BatchHashFamily)
 	 */
 	public static HashFamily getCosineHashFamily(int dimension, int familySize)
 	{
-	    HashFunction [] fns = new HashFunction[familySize];
-	    Random rand = new Random();
-	    for (int i = 0; i < familySize; i++) fns[i] = new CosineHash(dimension, rand);
-	    return new HashFamily(fns);
+	    return getCosineHashFamily(dimension, familySize, new Random().nextLong());
+	}
+
+	/**
+	 * Makes an LSH family for cosine similarity whose projections are defined by seed. Only the seed is serialized, so the family is a few bytes
+	 * in the options file, and families made with the same seed make identical signatures.
+	 * @param dimension the dimension of the data vectors to be hashed
+	 * @param familySize the number of hash functions to include in the family
+	 * @param seed
+	 * @return the family, which hashes blocks of vectors at once (see BatchHashFamily)
+	 */
+	public static HashFamily getCosineHashFamily(int dimension, int familySize, long seed)
+	{
+	    return new BatchHashFamily(dimension, familySize, seed);
+	}
+	
+	/**
+	 * Makes an LSH family for cosine similarity out of randomized Hadamard transforms (see HadamardHashFamily). Its signatures mean the same as
+	 * those of getCosineHashFamily(), but it hashes wide vectors much faster.
+	 * @param dimension the dimension of the data vectors to be hashed
+	 * @param familySize the number of hash functions to include in the family
+	 * @param seed
+	 * @return the family
+	 */
+	public static HashFamily getHadamardHashFamily(int dimension, int familySize, long seed)
+	{
+	    return new HadamardHashFamily(dimension, familySize, seed);
+	}
+
+	/**
+	 * Makes an LSH family for cosine similarity out of very sparse +1/0/-1 projections (see SparseCosineHashFamily), with about sqrt(dimension)
+	 * nonzeros per projection.
+	 * @param dimension the dimension of the data vectors to be hashed
+	 * @param familySize the number of hash functions to include in the family
+	 * @param seed
+	 * @return the family
+	 */
+	public static HashFamily getSparseCosineHashFamily(int dimension, int familySize, long seed)
+	{
+	    return new SparseCosineHashFamily(dimension, familySize, seed);
+	}
+
+	/**
+	 * Makes an LSH family for cosine similarity by name, for command line tools.
+	 * @param name "gaussian" for getCosineHashFamily(), "hadamard" for getHadamardHashFamily(), or "sparse" for getSparseCosineHashFamily()
+	 * @param dimension the dimension of the data vectors to be hashed
+	 * @param familySize the number of hash functions to include in the family
+	 * @param seed
+	 * @return the family
+	 */
+	public static HashFamily getCosineHashFamily(String name, int dimension, int familySize, long seed)
+	{
+	    if("gaussian".equals(name)) return getCosineHashFamily(dimension, familySize, seed);
+	    if("hadamard".equals(name)) return getHadamardHashFamily(dimension, familySize, seed);
+	    if("sparse".equals(name)) return getSparseCosineHashFamily(dimension, familySize, seed);
+	    throw new IllegalArgumentException("Unknown cosine hash family: " + name);
 	}
 	
 	/**
@@ -18,6 +18,7 @@ import java.io.Serializable;
 import java.util.Random;
 
 import org.fastlsh.index.VectorWithId;
+import org.fastlsh.util.MathFns;
 
 /** This class is designed to implement an LSH hash function for
  *  Euclidean (l2) distance.  Howveer, we only hypothesize that this might work.
@@ -48,6 +49,6 @@ public class L2Hash implements HashFunction, Serializable
 
     @Override
     public boolean hash(VectorWithId input) {
-    	return ( (int) ((input.dotProduct(projection) - offset) / binWidth) % 2 ) == 0;
+    	return ( (int) ((MathFns.dotSequential(input.values(), projection) - offset) / binWidth) % 2 ) == 0;
     }
 }
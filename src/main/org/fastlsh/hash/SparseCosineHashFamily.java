@@ -0,0 +1,158 @@
+package org.fastlsh.hash;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.fastlsh.index.VectorWithId;
+import org.fastlsh.util.BitSet;
+
+/**
+ * A cosine (random hyperplane) hash family whose projections are very sparse: each coordinate of a projection is +1 or -1 with
+ * probability 1 / (2 * sparsity) each, and 0 otherwise (Li, Hastie and Church's "very sparse random projections", with sparsity sqrt(dimension)
+ * by default). Each projection is stored as a list of the indices where it is +1 followed by a list of those where it is -1, so a bit costs
+ * about dimension / sparsity additions rather than a dimension length dot product.
+ *
+ * <br>The projections are defined by a seed: only the seed is serialized, and the index lists are regenerated from it when the family is read back in.
+ */
+public class SparseCosineHashFamily extends HashFamily
+{
+    private static final long serialVersionUID = -1920735104829164725L;
+
+    protected final int dimension;
+    protected final int numHashes;
+    protected final int numWords;
+    protected final double sparsity;
+    protected final long seed;
+    /** Indices of the nonzero coordinates of all projections: projection h is +1 at indices[starts[2h], starts[2h + 1]), and -1 at indices[starts[2h + 1], starts[2h + 2]) */
+    protected transient int [] indices;
+    protected transient int [] starts;
+
+    public SparseCosineHashFamily(int dimension, int numHashes, long seed)
+    {
+        this(dimension, numHashes, Math.sqrt(dimension), seed);
+    }
+
+    /**
+     * @param dimension
+     * @param numHashes
+     * @param sparsity each coordinate of a projection is nonzero with probability 1 / sparsity
+     * @param seed
+     */
+    public SparseCosineHashFamily(int dimension, int numHashes, double sparsity, long seed)
+    {
+        super(null);
+        if(sparsity < 1) throw new IllegalArgumentException("Sparsity must be at least 1, got " + sparsity);
+        this.dimension = dimension;
+        this.numHashes = numHashes;
+        this.sparsity = sparsity;
+        this.seed = seed;
+        numWords = (numHashes + 63) >>> 6;
+        generate();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        generate();
+    }
+
+    /**
+     * Draw the projections' index lists from the seed
+     */
+    protected void generate()
+    {
+        Random rand = new Random(seed);
+        starts = new int[2 * numHashes + 1];
+        int [] plus = new int[dimension];
+        int [] minus = new int[dimension];
+        int [] all = new int[(int) Math.min(1 << 24, 1.25 * numHashes * dimension / sparsity + 16)];
+        // gaps between nonzeros are geometric, so draw them directly rather than testing every coordinate
+        double logMiss = Math.log(1.0 - 1.0 / sparsity);
+        int size = 0;
+        for(int h = 0; h < numHashes; h++)
+        {
+            int numPlus, numMinus;
+            do
+            {
+                // a projection with no nonzeros would give a constant bit
+                numPlus = numMinus = 0;
+                for(long i = nextGap(rand, logMiss); i < dimension; i += 1 + nextGap(rand, logMiss))
+                {
+                    if(rand.nextBoolean()) plus[numPlus++] = (int) i;
+                    else minus[numMinus++] = (int) i;
+                }
+            }
+            while(numPlus + numMinus == 0 && dimension > 0);
+            if(size + numPlus + numMinus > all.length) all = Arrays.copyOf(all, Math.max(all.length * 2, size + numPlus + numMinus));
+            starts[2 * h] = size;
+            System.arraycopy(plus, 0, all, size, numPlus);
+            size += numPlus;
+            starts[2 * h + 1] = size;
+            System.arraycopy(minus, 0, all, size, numMinus);
+            size += numMinus;
+        }
+        starts[2 * numHashes] = size;
+        indices = Arrays.copyOf(all, size);
+    }
+
+    /**
+     * @return the number of zeros before the next nonzero coordinate, where each coordinate is zero with probability exp(logMiss)
+     */
+    protected static long nextGap(Random rand, double logMiss)
+    {
+        if(logMiss == Double.NEGATIVE_INFINITY) return 0;
+        return (long) Math.floor(Math.log(1.0 - rand.nextDouble()) / logMiss);
+    }
+
+    @Override
+    public int numHashes()
+    {
+        return numHashes;
+    }
+
+    /**
+     * @return the total number of nonzero coordinates in all projections
+     */
+    public int numNonZeros()
+    {
+        return indices.length;
+    }
+
+    @Override
+    public BitSet makeSignature(VectorWithId input)
+    {
+        BitSet retval = new BitSet(numHashes);
+        hash(input.values(), retval.bits, 0);
+        return retval;
+    }
+
+    @Override
+    public void makeSignatures(VectorWithId [] inputs, int from, int to, long [] words, int offset)
+    {
+        for(int v = from; v < to; v++, offset += numWords) hash(inputs[v].values(), words, offset);
+    }
+
+    @Override
+    public void makeSignature(double [] vals, long [] words, int offset)
+    {
+        hash(vals, words, offset);
+    }
+
+    /**
+     * Write the signature of x to words[offset, offset + numWords)
+     */
+    protected void hash(double [] x, long [] words, int offset)
+    {
+        if(x.length != dimension) throw new IllegalArgumentException("Expected vector of dimension " + dimension + ", got " + x.length);
+        Arrays.fill(words, offset, offset + numWords, 0L);
+        for(int h = 0, p = 0; h < numHashes; h++)
+        {
+            double s = 0;
+            for(int max = starts[2 * h + 1]; p < max; p++) s += x[indices[p]];
+            for(int max = starts[2 * h + 2]; p < max; p++) s -= x[indices[p]];
+            if(s >= 0) words[offset + (h >>> 6)] |= 1L << (h & 0x3F);
+        }
+    }
+}
@@ -3,8 +3,10 @@ package org.fastlsh.index;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Random;
 
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
 import org.apache.commons.cli.ParseException;
 
 import org.fastlsh.util.OutputAlreadyExistsException;
@@ -32,6 +34,12 @@ public class CSVIndexer {
      * <br>-sep separator used in input file (typically comma or tab)
      * <br>-np number of permutations to create for searching
      * <br>-n number of hashes in hash family (number of bits in lsh signature)
+     * <br>-t number of threads to build permutation lists with (optional, default 1)
+     * <br>-hf cosine hash family (optional): gaussian (the default), hadamard or sparse
+     * <br>-seed seed for the hash family and the permutations (optional): the same seed and options rebuild an identical index. Without it
+     * a random seed is used, so the index cannot be reproduced
+     * <br>-rs run size (optional): if given, build the permutation lists with an external sort, sorting this many signatures in memory at a time,
+     * for data sets whose signatures do not fit in memory
      * 
      * @throws ParseException
      * @throws IOException
@@ -46,23 +54,30 @@ public class CSVIndexer {
         .addOption(new RequiredOption("d", true, "dimension of vectors"))
         .addOption(new RequiredOption("sep", true, "separator character delimiting fields in input"))        
         .addOption(new RequiredOption("np", true, "number of permutations to create for searching"))        
-        .addOption(new RequiredOption("n", true, "number of hashes in hash family")).parse(args);
+        .addOption(new RequiredOption("n", true, "number of hashes in hash family"))
+        .addOption(new Option("t", true, "number of threads to build permutation lists with"))
+        .addOption(new Option("hf", true, "cosine hash family: gaussian (default), hadamard or sparse"))
+        .addOption(new Option("seed", true, "seed for the hash family and permutations, to rebuild an identical index"))
+        .addOption(new Option("rs", true, "number of signatures to sort in memory at once, for an external sort")).parse(args);
         
         IndexOptions options = new IndexOptions();
         options.numHashes = Integer.parseInt(cmd.getOptionValue("n"));
         options.vectorDimension = Integer.parseInt(cmd.getOptionValue("d"));
-        options.hashFamily = HashFamily.getCosineHashFamily(options.vectorDimension, options.numHashes);
+        Random seeds = new Random(Long.parseLong(cmd.getOptionValue("seed", Long.toString(new Random().nextLong()))));
+        options.hashFamily = HashFamily.getCosineHashFamily(cmd.getOptionValue("hf", "gaussian"), options.vectorDimension, options.numHashes, seeds.nextLong());
+        options.permutationSeed = seeds.nextLong();
         options.numPermutations = Integer.parseInt(cmd.getOptionValue("np"));
         VectorParser<String> parser = new CSVParser(cmd.getOptionValue("sep"));
         
         BufferedReader reader = null;
-        RandomProjectionSignatureIndexWriter<String> indexer = null;
-        int numLines = 0;
+        int runSize = Integer.parseInt(cmd.getOptionValue("rs", "-1"));
+        PipelinedIndexWriter<String> indexer = null;
         long start = System.currentTimeMillis();
         try
         {
-        	indexer = new RandomProjectionSignatureIndexWriter<String>(cmd.getOptionValue("o"), options);
+        	indexer = new PipelinedIndexWriter<String>(cmd.getOptionValue("o"), options, runSize);
         	indexer.setParser(parser);
+        	indexer.setParallelism(Integer.parseInt(cmd.getOptionValue("t", "1")), Runtime.getRuntime().maxMemory() / 2);
             reader = new BufferedReader(new FileReader(cmd.getOptionValue("i")));
             String line = "";
             while((line = reader.readLine()) != null)
@@ -73,18 +88,15 @@ public class CSVIndexer {
         finally
         {
             if(reader != null) reader.close();
+            // closing the indexer builds the permutation lists
             if (indexer != null) indexer.close();
         }
 
-        IndexReader idxReader = new IndexReader(indexer.rootDirName);
-        idxReader.initializeSignatures();
-        PermutationIndexWriter permWriter = new PermutationIndexWriter(indexer.rootDirName, idxReader.signatures, options);
-        permWriter.createIndex();
-
         long end = System.currentTimeMillis();
         System.out.println("Elapsed time in seconds: " + ((end -start)/1000));
-        System.out.println("Total items: " + numLines);
+        System.out.println("Total items: " + indexer.numVectors());
+        if(indexer.numSkipped() > 0) System.out.println("Zero vectors skipped: " + indexer.numSkipped());
         System.out.println("input dimensions: " + options.vectorDimension);
-        System.out.println("number of hashes: " + options.vectorDimension);
+        System.out.println("number of hashes: " + options.numHashes);
     }
 }
@@ -7,8 +7,11 @@ public class Constants
 {
     public final static String inputData = "inputData";
     public final static String signatures        = "signatures";
+    public final static String signatureStore    = "signatureStore";
     public final static String permutations      = "permutations";
     public final static String permutationHead   = "permutation_";
     public final static String options = "options";
-    public final static String idMap = "idMap";
+    public final static String positions = "positions";
+    public final static String ids = "ids";
+    public final static String idIndex = "idIndex";
 }
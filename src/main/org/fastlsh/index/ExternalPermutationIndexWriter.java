@@ -0,0 +1,408 @@
+package org.fastlsh.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.fastlsh.util.FileUtils;
+import org.fastlsh.util.OutputAlreadyExistsException;
+import org.fastlsh.util.Permuter;
+import org.fastlsh.util.RadixSort;
+import org.fastlsh.util.SignatureMatrix;
+
+/**
+ * Builds the same permutation lists and position table as PermutationIndexWriter, for indices whose signatures do not fit in memory.
+ * Signatures are read from a packed signature store. For each permutation, the store is read in runs of runSize signatures: each run is
+ * permuted and radix sorted in memory, then spilled to a temporary file of (permuted signature, ordinal) records, and the runs are then
+ * k-way merged straight into the permutation list. Writing each merged position straight into the position table would be a random write
+ * into a table which can be far bigger than the page cache, so the merge instead spills each run's (ordinal, position) pairs next to its run
+ * file, and the pairs are then replayed a run at a time: a run covers a contiguous range of ordinals, so each replay fills in one contiguous
+ * slab of the table, in ordinal order.
+ *
+ * <br>The ordinal => id table is streamed straight from the store, and the id => ordinal index is built the same way as the lists: runs of
+ * (id, ordinal) pairs are radix sorted, spilled, and merged into the index. Memory use is bounded by the run size rather than the number of
+ * signatures, and temporary disk use is one permutation's worth of runs.
+ */
+public class ExternalPermutationIndexWriter
+{
+    protected static final String tmpDirName = "tmp";
+    protected static final String runHead = "run_";
+    protected static final String positionsSuffix = ".pos";
+    /** Buffer size for the position spills, one of which is open per run during a merge */
+    protected static final int spillBufferBytes = 1 << 13;
+    protected static final int streamBufferBytes = 1 << 16;
+
+    String topLevelIndexDir;
+    String rootDir;
+    File tmpDir;
+    SignatureStoreReader signatures;
+    int numPermutations;
+    long permutationSeed;
+    int runSize;
+    PositionTable positions;
+
+    /**
+     * @param indexDir
+     * @param signatures signatures of the index, in ordinal order
+     * @param options
+     * @param runSize number of signatures to sort in memory at once
+     * @throws OutputAlreadyExistsException
+     */
+    public ExternalPermutationIndexWriter(String indexDir, SignatureStoreReader signatures, IndexOptions options, int runSize) throws OutputAlreadyExistsException
+    {
+        if(signatures.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many signatures for one index: " + signatures.size());
+        topLevelIndexDir = indexDir;
+        File rootDirHandle = new File(topLevelIndexDir, Constants.permutations);
+        FileUtils.mkdirs(rootDirHandle);
+        rootDir = rootDirHandle.getAbsolutePath();
+        tmpDir = new File(rootDir, tmpDirName);
+        this.signatures = signatures;
+        this.numPermutations = options.numPermutations;
+        this.permutationSeed = options.permutationSeed;
+        this.runSize = runSize;
+    }
+
+    public void createIndex() throws IOException, OutputAlreadyExistsException
+    {
+        FileUtils.mkdirs(tmpDir);
+        serializeIds();
+        initializePositions();
+        int numRows = (int) Math.min(runSize, signatures.size());
+        SignatureMatrix run = new SignatureMatrix(signatures.numBits(), numRows);
+        SignatureMatrix permuted = new SignatureMatrix(signatures.numBits(), numRows);
+        int [] ordinals = new int[numRows];
+        for(int i = 0; i < numPermutations; i++) createPermutationIndex(i, run, permuted, ordinals);
+        positions.flush();
+        tmpDir.delete();
+    }
+
+    protected void initializePositions() throws IOException, OutputAlreadyExistsException
+    {
+        File tmp = new File(rootDir, Constants.positions);
+        if(tmp.exists()) throw(new OutputAlreadyExistsException(tmp.getAbsolutePath()));
+        positions = PositionTable.create(tmp, signatures.size(), numPermutations);
+    }
+
+    /**
+     * Write the ordinal => id table (in the format written by LongStoreReader.createLongStore()) and the id => ordinal index
+     * @throws IOException
+     */
+    protected void serializeIds() throws IOException
+    {
+        long size = signatures.size();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(rootDir, Constants.ids)), streamBufferBytes));
+        try
+        {
+            out.writeLong(size);
+            for(long row = 0; row < size; row++) out.writeLong(signatures.id(row));
+        }
+        finally
+        {
+            out.close();
+        }
+
+        List<File> runs = new ArrayList<File>();
+        try
+        {
+            int count = (int) Math.min(runSize, size);
+            long [] ids = new long[count];
+            int [] ordinals = new int[count];
+            for(long start = 0; start < size; start += runSize)
+            {
+                if(size - start < count)
+                {
+                    count = (int) (size - start);
+                    ids = new long[count];
+                    ordinals = new int[count];
+                }
+                for(int i = 0; i < count; i++)
+                {
+                    ids[i] = signatures.id(start + i);
+                    ordinals[i] = (int) (start + i);
+                }
+                RadixSort.sort(ids, ordinals);
+                File runFile = new File(tmpDir, runHead + runs.size());
+                runs.add(runFile);
+                writeIdRun(runFile, ids, ordinals);
+            }
+            mergeIds(runs);
+        }
+        finally
+        {
+            for(File f : runs) f.delete();
+        }
+    }
+
+    /**
+     * Write a sorted run of (id, ordinal) pairs to disk in the same format as writeRun(), with no signature words
+     * @param f
+     * @param ids
+     * @param ordinals
+     * @throws IOException
+     */
+    protected static void writeIdRun(File f, long [] ids, int [] ordinals) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), streamBufferBytes));
+        try
+        {
+            out.writeLong(ids.length);
+            for(int i = 0; i < ids.length; i++)
+            {
+                out.writeLong(ids[i]);
+                out.writeInt(ordinals[i]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Merge sorted runs of (id, ordinal) pairs into the id index
+     * @param runs
+     * @throws IOException
+     */
+    protected void mergeIds(List<File> runs) throws IOException
+    {
+        PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new RunComparator());
+        List<RunReader> readers = new ArrayList<RunReader>();
+        IdIndex.Writer out = null;
+        try
+        {
+            openRuns(runs, 0, heap, readers);
+            out = new IdIndex.Writer(new File(rootDir, Constants.idIndex), signatures.size());
+            while(!heap.isEmpty())
+            {
+                RunReader r = heap.poll();
+                out.add(r.id, r.ordinal);
+                if(r.next()) heap.add(r);
+            }
+        }
+        finally
+        {
+            if(out != null) out.close();
+            for(RunReader r : readers) r.close();
+        }
+    }
+
+    protected static void openRuns(List<File> runs, int numWords, PriorityQueue<RunReader> heap, List<RunReader> readers) throws IOException
+    {
+        for(File f : runs)
+        {
+            RunReader r = new RunReader(f, numWords);
+            r.run = readers.size();
+            readers.add(r);
+            if(r.next()) heap.add(r);
+        }
+    }
+
+    protected void createPermutationIndex(int permId, SignatureMatrix run, SignatureMatrix permuted, int [] ordinals) throws IOException
+    {
+        Permuter p = PermutationIndexWriter.permuter(signatures.numBits(), permutationSeed, permId);
+        List<File> runs = new ArrayList<File>();
+        try
+        {
+            for(long start = 0, max = signatures.size(); start < max; start += runSize)
+            {
+                int count = (int) Math.min(runSize, max - start);
+                run.clear();
+                signatures.read(start, count, run);
+                int [] runOrdinals = count == ordinals.length ? ordinals : new int[count];
+                PermutationIndexWriter.permuteAndSort(p, run, permuted, runOrdinals);
+                File runFile = new File(tmpDir, runHead + runs.size());
+                runs.add(runFile);
+                writeRun(runFile, permuted, runOrdinals, start);
+            }
+            merge(permId, runs);
+            replayPositions(permId, runs, ordinals);
+        }
+        finally
+        {
+            for(File f : runs)
+            {
+                f.delete();
+                positionsFile(f).delete();
+            }
+        }
+    }
+
+    /**
+     * @param run a run file written by writeRun()
+     * @return the file next to it which merge() spills the run's positions to
+     */
+    protected static File positionsFile(File run)
+    {
+        return new File(run.getPath() + positionsSuffix);
+    }
+
+    /**
+     * Write the sorted rows of a run to disk: the number of rows, then each row's permuted words followed by its id and its ordinal
+     * @param f
+     * @param permuted
+     * @param rows rows of permuted, in sorted order
+     * @param firstOrdinal ordinal of row 0 of the run
+     * @throws IOException
+     */
+    protected static void writeRun(File f, SignatureMatrix permuted, int [] rows, long firstOrdinal) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), streamBufferBytes));
+        try
+        {
+            int numWords = permuted.numWords();
+            out.writeLong(rows.length);
+            for(int row : rows)
+            {
+                for(int w = 0; w < numWords; w++) out.writeLong(permuted.word(row, w));
+                out.writeLong(permuted.id(row));
+                out.writeInt((int) (firstOrdinal + row));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Merge sorted runs into permutation list permId (in the format written by IntStoreReader.createIntStore()), spilling the (ordinal, position)
+     * pairs of each run's rows to its positionsFile() for replayPositions()
+     * @param permId
+     * @param runs
+     * @throws IOException
+     */
+    protected void merge(int permId, List<File> runs) throws IOException
+    {
+        PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new RunComparator());
+        List<RunReader> readers = new ArrayList<RunReader>();
+        DataOutputStream [] spills = new DataOutputStream[runs.size()];
+        DataOutputStream out = null;
+        try
+        {
+            openRuns(runs, signatures.numWords(), heap, readers);
+            for(int i = 0; i < spills.length; i++)
+            {
+                spills[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(positionsFile(runs.get(i))), spillBufferBytes));
+            }
+            File permFile = new File(rootDir, Constants.permutationHead + permId);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(permFile), streamBufferBytes));
+            out.writeLong(signatures.size());
+            int pos = 0;
+            while(!heap.isEmpty())
+            {
+                RunReader r = heap.poll();
+                out.writeInt(r.ordinal);
+                DataOutputStream spill = spills[r.run];
+                spill.writeInt(r.ordinal);
+                spill.writeInt(pos++);
+                if(r.next()) heap.add(r);
+            }
+            if(pos != signatures.size()) throw new IOException("Merged " + pos + " signatures for permutation " + permId + ", expected " + signatures.size());
+        }
+        finally
+        {
+            if(out != null) out.close();
+            for(RunReader r : readers) r.close();
+            for(DataOutputStream spill : spills) if(spill != null) spill.close();
+        }
+    }
+
+    /**
+     * Fill in permutation permId of the position table from the positions spilled by merge(), one run at a time. Run i holds ordinals
+     * [i * runSize, (i + 1) * runSize), so its positions are gathered into slab by ordinal and then written to the table in ordinal order.
+     * @param permId
+     * @param runs
+     * @param slab space for the positions of one run
+     * @throws IOException
+     */
+    protected void replayPositions(int permId, List<File> runs, int [] slab) throws IOException
+    {
+        long size = signatures.size();
+        for(int i = 0; i < runs.size(); i++)
+        {
+            int start = i * runSize;
+            int count = (int) Math.min(runSize, size - start);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(positionsFile(runs.get(i))), streamBufferBytes));
+            try
+            {
+                for(int j = 0; j < count; j++)
+                {
+                    int ordinal = in.readInt();
+                    slab[ordinal - start] = in.readInt();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            for(int j = 0; j < count; j++) positions.set(start + j, permId, slab[j]);
+        }
+    }
+
+    /**
+     * Sequential reader for a run file written by writeRun()
+     */
+    protected static class RunReader implements Closeable
+    {
+        final DataInputStream in;
+        final long [] words;
+        /** Index of the run in the list it was opened from */
+        int run;
+        long remaining;
+        long id;
+        int ordinal;
+
+        RunReader(File f, int numWords) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), streamBufferBytes));
+            words = new long[numWords];
+            remaining = in.readLong();
+        }
+
+        /**
+         * Advance to the next row of the run
+         * @return false if the run is exhausted
+         * @throws IOException
+         */
+        boolean next() throws IOException
+        {
+            if(remaining == 0) return false;
+            for(int w = 0; w < words.length; w++) words[w] = in.readLong();
+            id = in.readLong();
+            ordinal = in.readInt();
+            remaining--;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Orders the current rows of two runs as SignatureMatrix.compare(int, int) would
+     */
+    protected static class RunComparator implements Comparator<RunReader>
+    {
+        @Override
+        public int compare(RunReader r1, RunReader r2)
+        {
+            int cmp = SignatureMatrix.compare(r1.words, 0, r2.words, 0, r1.words.length);
+            if(cmp != 0) return cmp;
+            if(r1.id != r2.id) return r1.id > r2.id ? 1 : -1;
+            return r1.ordinal == r2.ordinal ? 0 : r1.ordinal > r2.ordinal ? 1 : -1;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.fastlsh.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import org.fastlsh.util.FileUtils;
+import org.fastlsh.util.RadixSort;
+
+/**
+ * Memory mapped lookup from external id to ordinal. The file holds a little-endian header (magic, number of ids), all of the ids in 
+ * ascending order, and then the ordinal belonging to each of the sorted ids. Lookups are a binary search over the mapped ids, so opening
+ * the index is O(1) and it costs 12 bytes per id, with no hash map to build.
+ */
+public class IdIndex
+{
+    public static final int magic = 0x464c4931;
+    public static final int headerBytes = 16;
+    protected static final int segmentShift = 27;
+    protected static final long segmentMask = (1L << segmentShift) - 1;
+
+    protected long size;
+    protected LongBuffer [] ids;
+    protected IntBuffer [] ordinals;
+
+    public IdIndex(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if(channel.size() < headerBytes) throw new IOException("Not an id index: " + file.getAbsolutePath());
+            ByteBuffer header = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, 0, headerBytes, headerBytes, ByteOrder.LITTLE_ENDIAN)[0];
+            if(header.getInt(0) != magic) throw new IOException("Not an id index: " + file.getAbsolutePath());
+            size = header.getLong(8);
+            if(channel.size() != headerBytes + size * 12) throw new IOException("Id index " + file.getAbsolutePath() + " is truncated");
+            ByteBuffer [] idBytes = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, headerBytes, size * 8, (1L << segmentShift) * 8, ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer [] ordinalBytes = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, headerBytes + size * 8, size * 4, (1L << segmentShift) * 4, ByteOrder.LITTLE_ENDIAN);
+            ids = new LongBuffer[idBytes.length];
+            for(int i = 0; i < idBytes.length; i++) ids[i] = idBytes[i].asLongBuffer();
+            ordinals = new IntBuffer[ordinalBytes.length];
+            for(int i = 0; i < ordinalBytes.length; i++) ordinals[i] = ordinalBytes[i].asIntBuffer();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write an id index for the given ordinal => id table
+     * @param file
+     * @param ordinalToId external id of each ordinal
+     * @throws IOException
+     */
+    public static void write(File file, long [] ordinalToId) throws IOException
+    {
+        int n = ordinalToId.length;
+        long [] sortedIds = ordinalToId.clone();
+        int [] sortedOrdinals = new int[n];
+        for(int i = 0; i < n; i++) sortedOrdinals[i] = i;
+        RadixSort.sort(sortedIds, sortedOrdinals);
+
+        Writer writer = new Writer(file, n);
+        try
+        {
+            for(int i = 0; i < n; i++) writer.add(sortedIds[i], sortedOrdinals[i]);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes an id index from (id, ordinal) pairs handed over in ascending id order, straight into the mapped file, so that the table
+     * never has to be in memory (see ExternalPermutationIndexWriter)
+     */
+    public static class Writer implements Closeable
+    {
+        protected RandomAccessFile raf;
+        protected final long size;
+        protected ByteBuffer [] idBytes;
+        protected ByteBuffer [] ordinalBytes;
+        protected long count;
+        protected long lastId = Long.MIN_VALUE;
+
+        /**
+         * @param file
+         * @param size number of ids which will be added
+         * @throws IOException
+         */
+        public Writer(File file, long size) throws IOException
+        {
+            if(file.exists()) throw new IOException("Id index already exists: " + file.getAbsolutePath());
+            this.size = size;
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(headerBytes + size * 12L);
+            ByteBuffer header = FileUtils.map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, 0, headerBytes, headerBytes, ByteOrder.LITTLE_ENDIAN)[0];
+            header.putInt(magic).putInt(0).putLong(size);
+            idBytes = FileUtils.map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, headerBytes, size * 8L, (1L << segmentShift) * 8, ByteOrder.LITTLE_ENDIAN);
+            ordinalBytes = FileUtils.map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, headerBytes + size * 8L, size * 4L, (1L << segmentShift) * 4, ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public void add(long id, int ordinal) throws IOException
+        {
+            if(count == size) throw new IOException("Id index is full: " + size + " ids");
+            if(id < lastId) throw new IOException("Ids must be added in ascending order: " + id + " came after " + lastId);
+            idBytes[(int) (count >>> segmentShift)].putLong(id);
+            ordinalBytes[(int) (count >>> segmentShift)].putInt(ordinal);
+            lastId = id;
+            count++;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if(raf == null) return;
+            raf.close();
+            raf = null;
+            if(count != size) throw new IOException("Wrote " + count + " ids to an id index of " + size);
+        }
+    }
+
+    public long size() {return size;}
+
+    protected long idAt(long i)
+    {
+        return ids[(int) (i >>> segmentShift)].get((int) (i & segmentMask));
+    }
+
+    /**
+     * Look up the ordinal of an external id
+     * @param id
+     * @return the ordinal, or -1 if the id is not in the index
+     */
+    public int ordinal(long id)
+    {
+        long lo = 0;
+        long hi = size - 1;
+        while(lo <= hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            long midId = idAt(mid);
+            if(midId < id) lo = mid + 1;
+            else if(midId > id) hi = mid - 1;
+            else return ordinals[(int) (mid >>> segmentShift)].get((int) (mid & segmentMask));
+        }
+        return -1;
+    }
+}
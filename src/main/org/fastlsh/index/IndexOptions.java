@@ -1,6 +1,7 @@
 package org.fastlsh.index;
 
 import java.io.Serializable;
+import java.util.Random;
 
 import org.fastlsh.hash.HashFamily;
 
@@ -11,4 +12,5 @@ public class IndexOptions implements Serializable {
 	public int numHashes = -1;//we can test for this value to check whether this has been initialized;
 	public HashFamily hashFamily = null;
 	public int numPermutations = -1;//we can test for this value to check whether this has been initialized
+	public long permutationSeed = new Random().nextLong();//permutation i is generated from this and i, so set it to rebuild identical permutation lists
 }
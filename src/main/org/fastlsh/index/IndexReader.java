@@ -1,5 +1,6 @@
 package org.fastlsh.index;
 
+import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -10,27 +11,37 @@ import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 
-import org.fastlsh.util.BitSet;
+import org.fastlsh.util.IntStoreReader;
+import org.fastlsh.util.IntStoreReaderDisk;
+import org.fastlsh.util.IntStoreReaderMapped;
+import org.fastlsh.util.Permuter;
 import org.fastlsh.util.Signature;
-import org.fastlsh.util.LongStoreReaderDisk;
+import org.fastlsh.util.SignatureMatrix;
+import org.fastlsh.util.LongStoreReader;
+import org.fastlsh.util.LongStoreReaderMapped;
 
-import gnu.trove.map.hash.TLongObjectHashMap;
 
 /**
  * Class for reading nearest neighbor search indices. An index is presumed to have raw vectors (for now, they are normalized by their l2 norms before being written to disk, in order to make 
- * cosine distance calculations more efficient), a set of permutation lists, and a map from ids to arrays of offsets in the permutations (look up an id in the map, and get an array containing its offset
- * in each of the sorted permutation lists
+ * cosine distance calculations more efficient), a set of permutation lists, and a table of offsets in the permutations (look up an ordinal in the table, and get its offset
+ * in each of the sorted permutation lists).
  * 
+ * <br>Each vector in the index is identified internally by a dense int ordinal: its row in the vector store. The permutation lists hold ordinals, and the ids table maps
+ * ordinals back to the external (long) ids the index was built with.
  */
 public class IndexReader
 {
-	public TLongObjectHashMap<BitSet> sigMap;
     public Signature [] signatures;
-    public TLongObjectHashMap<double []> rawVectorMap;
-    public  TLongObjectHashMap<int []> permutationIndex = new TLongObjectHashMap<int []> ();
+    public SignatureMatrix signatureMatrix;
+    public SignatureStoreReader signatureStore;
+    public VectorStoreReader rawVectors;
+    public LongStoreReader ids;
+    public IdIndex idIndex;
+    public PositionTable permutationPositions;
     public IndexOptions options;
     public String rootDir;
-    public LongStoreReaderDisk [] permutationLists;
+    public IntStoreReader [] permutationLists;
+    public Permuter [] permuters;
 
     public IndexReader(String rootDir)
     {
@@ -65,7 +76,8 @@ public class IndexReader
     }
     
     /**
-     * Read the raw vectors off of disk and into RAM. Can read in either a file or a directory, depending on how the indexer was configured
+     * Memory map the raw vectors. Can read in either a file or a directory, depending on how the indexer was configured. Nothing is read at this point:
+     * rows of the store are addressed by ordinal.
      * @throws InvalidIndexException
      * @throws IOException
      */
@@ -73,49 +85,41 @@ public class IndexReader
     {
         File rawDir = new File(rootDir, Constants.inputData);
         if(!rawDir.exists()) throw(new InvalidIndexException(rootDir, "Data file not present in this index."));
-        rawVectorMap = new TLongObjectHashMap<double []>();
+        rawVectors = new VectorStoreReader(listFiles(rawDir));
+        if(ids != null && ids.length() != rawVectors.size()) throw(new InvalidIndexException(rootDir, "Index has " + ids.length() + " ids, but " + rawVectors.size() + " vectors"));
+    }
 
-        if(rawDir.isDirectory())
-        {
-            File[] files = rawDir.listFiles();
-            for(File f : files) initializeRawVecs(f.getAbsolutePath());            
-        }
-        else
-        {
-            initializeRawVecs(rawDir.getAbsolutePath());
-        }
+    /**
+     * Helper method for reading things which may be written either as a single file or as a directory of shards.
+     * Shards are returned sorted by name, so that different parts of the index written by the same shard line up.
+     * @param f
+     * @return
+     */
+    protected static File [] listFiles(File f)
+    {
+        if(!f.isDirectory()) return new File [] {f};
+        File [] files = f.listFiles();
+        Arrays.sort(files);
+        return files;
     }
 
     /**
-     * Helper method used by initializeRawVecs(). Reads in vectors for a particular vector in the rawvectors directory if it is a directory.
-     * @param file
+     * Initialize memory mapped IntStoreReader objects for each of the permutation lists. These can be shared between searching threads without locking.
+     * @throws InvalidIndexException
      * @throws IOException
      */
-    private void initializeRawVecs(String file) throws IOException
+    public void initializePermutationLists() throws InvalidIndexException, IOException
     {
-        ObjectInputStream ois = null;
-        try
-        {
-            ois = new ObjectInputStream(new FileInputStream(file));
-            VectorWithId vec = null;
-            do
-            {
-                vec = (VectorWithId) ois.readObject();
-                rawVectorMap.put(vec.id, vec.vals);
-            }while(vec != null);
-        }
-        catch(EOFException e) { /* This always happens when you read multiple objects via objectinputstream. Don't know of any good way around it */ }
-        catch (ClassNotFoundException e) { throw new RuntimeException(e); }
-        finally { ois.close(); }
+        initializePermutationLists(true);
     }
 
-    
     /**
-     * Initialize LongStoreReader objects for each of the permutation lists
+     * Initialize IntStoreReader objects for each of the permutation lists
+     * @param memoryMapped if true, map the lists into memory, otherwise read them with (synchronized) seeks on a file handle
      * @throws InvalidIndexException
      * @throws IOException
      */
-    public void initializePermutationLists() throws InvalidIndexException, IOException
+    public void initializePermutationLists(boolean memoryMapped) throws InvalidIndexException, IOException
     {
         File rawDir = new File(rootDir, Constants.permutations);
         if(!rawDir.exists() || !rawDir.isDirectory()) throw(new InvalidIndexException(rootDir, "No permutation lists found"));
@@ -125,35 +129,68 @@ public class IndexReader
             @Override
             public boolean accept(File dir, String name)
             {
-                return name.contains("perm")? true: false;
+                return name.startsWith(Constants.permutationHead);
             }
         });
         if(perms.length != options.numPermutations) throw(new InvalidIndexException(rootDir, "Expected " + options.numPermutations + " permutation lists, but found " + perms.length)); 
         Arrays.sort(perms);
-        permutationLists = new LongStoreReaderDisk [options.numPermutations];
+        permutationLists = new IntStoreReader [options.numPermutations];
         for(int i = 0; i < options.numPermutations; i++)
         {
-            String permName = perms[i];
-            permutationLists[i] = new LongStoreReaderDisk(new File(rawDir, permName).getAbsolutePath());
+            String permName = new File(rawDir, perms[i]).getAbsolutePath();
+            permutationLists[i] = memoryMapped ? new IntStoreReaderMapped(permName) : new IntStoreReaderDisk(permName);
         }
     }
     
     /**
-     * Initialize map from id => [offsets] where the offsets are into the permutation lists
-     * @throws FileNotFoundException
+     * Regenerate the permutations the permutation lists were sorted by, from the seed stored in the options. Nothing is read from disk.
+     */
+    public void initializePermuters()
+    {
+        permuters = new Permuter[options.numPermutations];
+        for(int i = 0; i < permuters.length; i++) permuters[i] = PermutationIndexWriter.permuter(options.numHashes, options.permutationSeed, i);
+    }
+
+    /**
+     * Map the ordinal => external id table, the external id => ordinal index, and the table of ordinal => [offsets] where the offsets are into the permutation lists.
+     * All of these are memory mapped, so this takes constant time.
      * @throws IOException
-     * @throws ClassNotFoundException
+     * @throws InvalidIndexException
      */
-    @SuppressWarnings("unchecked")
-    public void initializePermutationIndex() throws FileNotFoundException, IOException, ClassNotFoundException
+    public void initializePermutationIndex() throws IOException, InvalidIndexException
     {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(new File(rootDir, Constants.permutations + "/" + Constants.idMap)));
-        permutationIndex = (TLongObjectHashMap<int []>) ois.readObject();
-        ois.close();
+        File permDir = new File(rootDir, Constants.permutations);
+        ids = new LongStoreReaderMapped(new File(permDir, Constants.ids).getAbsolutePath());
+        if(ids.length() > Integer.MAX_VALUE) throw(new InvalidIndexException(rootDir, "Too many vectors in index: " + ids.length()));
+        idIndex = new IdIndex(new File(permDir, Constants.idIndex));
+        permutationPositions = new PositionTable(new File(permDir, Constants.positions));
+        if(idIndex.size() != ids.length() || permutationPositions.numVectors() != ids.length()) throw(new InvalidIndexException(rootDir, "Id tables and permutation position table do not match"));
+        if(permutationPositions.numPermutations() != options.numPermutations) throw(new InvalidIndexException(rootDir, "Expected " + options.numPermutations + " permutations in position table, but found " + permutationPositions.numPermutations()));
+    }
+
+    /**
+     * Look up the ordinal of a vector by its external id
+     * @param id
+     * @return the ordinal, or -1 if the id is not in the index
+     */
+    public int ordinal(long id)
+    {
+        return idIndex.ordinal(id);
+    }
+
+    /**
+     * Look up the external id of a vector by its ordinal
+     * @param ordinal
+     * @return
+     * @throws IOException
+     */
+    public long id(int ordinal) throws IOException
+    {
+        return ids.get(ordinal);
     }
     
     /**
-     * Read bitset signatures from disk. This capability is primarily here for testing purposes.
+     * Read bitset signatures from disk, in ordinal order. This is used to build the permutation lists, and for testing purposes.
      * @throws InvalidIndexException
      * @throws IOException
      */
@@ -161,15 +198,100 @@ public class IndexReader
     {
         File rawDir = new File(rootDir, Constants.signatures);
         if(!rawDir.exists()) throw(new InvalidIndexException(rootDir, "Signatures file not present in this index"));
-        sigMap = new TLongObjectHashMap<BitSet>();
         ArrayList<Signature> tempSigs = new ArrayList<Signature>();
-        if(rawDir.isDirectory())
+        for(File f : listFiles(rawDir)) initializeSignatures(f.getAbsolutePath(), tempSigs);
+        signatures = tempSigs.toArray(new Signature[tempSigs.size()]);
+    }
+
+    /**
+     * Read the signatures from disk, in ordinal order, straight into a packed SignatureMatrix. This is what the permutation lists are built from.
+     * Signatures are read from the packed signature store if the index has one, and from the serialized signatures otherwise.
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public void initializeSignatureMatrix() throws InvalidIndexException, IOException
+    {
+        if(new File(rootDir, Constants.signatureStore).exists())
         {
-            File[] files = rawDir.listFiles();
-            for(File f : files) initializeSignatures(f.getAbsolutePath(), tempSigs);            
+            initializeSignatureStore();
+            if(signatureStore.size() > Integer.MAX_VALUE) throw(new InvalidIndexException(rootDir, "Too many signatures to read into memory: " + signatureStore.size()));
+            signatureMatrix = new SignatureMatrix(signatureStore.numBits(), (int) signatureStore.size());
+            signatureStore.read(0, (int) signatureStore.size(), signatureMatrix);
+            return;
         }
-        else initializeSignatures(rawDir.getAbsolutePath(), tempSigs);
-        signatures = tempSigs.toArray(new Signature[tempSigs.size()]);
+        File rawDir = new File(rootDir, Constants.signatures);
+        if(!rawDir.exists()) throw(new InvalidIndexException(rootDir, "Signatures file not present in this index"));
+        signatureMatrix = null;
+        for(File f : listFiles(rawDir)) initializeSignatureMatrix(f.getAbsolutePath());
+        if(signatureMatrix == null) throw(new InvalidIndexException(rootDir, "No signatures found in this index"));
+    }
+
+    private void initializeSignatureMatrix(String file) throws IOException
+    {
+        ObjectInputStream ois = null;
+        try
+        {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while(true)
+            {
+                Signature sig = (Signature) ois.readObject();
+                if(signatureMatrix == null) signatureMatrix = new SignatureMatrix(sig.bits.numBits, 1024);
+                signatureMatrix.add(sig.id, sig.bits);
+            }
+        }
+        catch(EOFException e) { /* see initializeSignatures(String, ArrayList<Signature>) */ }
+        catch (ClassNotFoundException e) { throw new RuntimeException(e); }
+        finally { if(ois != null) ois.close(); }
+    }
+
+    /**
+     * Copy the serialized signatures, in ordinal order, into a packed signature store (see SignatureStoreWriter) at Constants.signatureStore. 
+     * Signatures are copied one at a time, so this works for indices whose signatures do not fit in memory.
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public void packSignatures() throws InvalidIndexException, IOException
+    {
+        File rawDir = new File(rootDir, Constants.signatures);
+        if(!rawDir.exists()) throw(new InvalidIndexException(rootDir, "Signatures file not present in this index"));
+        SignatureStoreWriter out = new SignatureStoreWriter(new File(rootDir, Constants.signatureStore), options.numHashes);
+        try
+        {
+            for(File f : listFiles(rawDir)) packSignatures(f.getAbsolutePath(), out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void packSignatures(String file, SignatureStoreWriter out) throws IOException
+    {
+        ObjectInputStream ois = null;
+        try
+        {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while(true)
+            {
+                Signature sig = (Signature) ois.readObject();
+                out.write(sig.id, sig.bits);
+            }
+        }
+        catch(EOFException e) { /* see initializeSignatures(String, ArrayList<Signature>) */ }
+        catch (ClassNotFoundException e) { throw new RuntimeException(e); }
+        finally { if(ois != null) ois.close(); }
+    }
+
+    /**
+     * Memory map the packed signature store. Can read in either a file or a directory of shards.
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public void initializeSignatureStore() throws InvalidIndexException, IOException
+    {
+        File store = new File(rootDir, Constants.signatureStore);
+        if(!store.exists()) throw(new InvalidIndexException(rootDir, "Signature store not present in this index"));
+        signatureStore = new SignatureStoreReader(listFiles(store));
     }
 
     /**
@@ -189,7 +311,6 @@ public class IndexReader
             {
                 sig = (Signature) ois.readObject();
                 tempSigs.add(sig);
-                sigMap.put(sig.id, sig.bits);
             }while(sig != null);
         }
         catch(EOFException e) { /* This always happens when you read multiple objects via objectinputstream. Don't know of any good way around it */}
@@ -0,0 +1,28 @@
+package org.fastlsh.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The signature and vector files of a single shard written by the multi threaded indexer. They are always handed out together, so that 
+ * the i'th signature in a shard belongs to the i'th vector in the same shard: the ordinal of a vector is its position in the concatenation of the shards.
+ */
+public class IndexShardWriter implements Closeable
+{
+    SignatureStoreWriter sigStream;
+    VectorStoreWriter vecStream;
+
+    public IndexShardWriter(File sigFile, File vecFile, int numBits, int dimension) throws IOException
+    {
+        sigStream = new SignatureStoreWriter(sigFile, numBits);
+        vecStream = new VectorStoreWriter(vecFile, dimension);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        sigStream.close();
+        vecStream.close();
+    }
+}
@@ -1,31 +1,46 @@
 package org.fastlsh.index;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
-import gnu.trove.map.hash.TLongObjectHashMap;
-
+import org.fastlsh.util.BlockingThreadPool;
 import org.fastlsh.util.Signature;
 import org.fastlsh.util.FileUtils;
+import org.fastlsh.util.IntStoreReader;
 import org.fastlsh.util.LexicographicBitSetComparator;
-import org.fastlsh.util.LongStoreReaderDisk;
+import org.fastlsh.util.LongStoreReader;
 import org.fastlsh.util.OutputAlreadyExistsException;
 import org.fastlsh.util.Permuter;
+import org.fastlsh.util.RadixSort;
+import org.fastlsh.util.ResourcePool;
+import org.fastlsh.util.SignatureMatrix;
 
+/**
+ * Builds the sorted permutation lists for an index. Every vector is identified by its ordinal, which is its row in the signature matrix
+ * passed in (this has to match the order of the vector store). The writer stores the ordinal => external id table once, and everything 
+ * else (the permutation lists, and the table of each ordinal's position in each of the lists) in terms of ordinals.
+ * 
+ * <br>Each permutation is built by permuting every signature into a second, reused, matrix and radix sorting an array of ordinals over it, so the 
+ * build allocates a fixed number of large arrays regardless of the number of signatures and permutations.
+ * 
+ * <br>Permutation i is generated from IndexOptions.permutationSeed and i alone, so permutations are independent of each other and can be 
+ * built concurrently (see setParallelism()): each thread gets its own matrix and ordinal array, and the output is identical to a serial build.
+ */
 public class PermutationIndexWriter
 {
     String topLevelIndexDir;
     String rootDir;
-    Signature [] signatures;
+    SignatureMatrix signatures;
     int numPermutations;
-    Permuter permuter;
-    TLongObjectHashMap<int []> permutationIndex = new TLongObjectHashMap<int []> ();
+    long permutationSeed;
+    int numThreads = 1;
+    long maxMemoryBytes = Runtime.getRuntime().maxMemory() / 2;
+    PositionTable positions;
+    volatile Exception failure;
 
-    public PermutationIndexWriter(String indexDir, Signature [] signatures, IndexOptions options) throws OutputAlreadyExistsException
+    public PermutationIndexWriter(String indexDir, SignatureMatrix signatures, IndexOptions options) throws OutputAlreadyExistsException
     {
         topLevelIndexDir = indexDir;
         File rootDirHandle = new File(topLevelIndexDir, Constants.permutations);
@@ -33,36 +48,162 @@ public class PermutationIndexWriter
         rootDir = rootDirHandle.getAbsolutePath();
         this.signatures = signatures;
         this.numPermutations = options.numPermutations;    
-        this.permuter = new Permuter(options.numHashes);
+        this.permutationSeed = options.permutationSeed;
+    }
+
+    public PermutationIndexWriter(String indexDir, Signature [] signatures, IndexOptions options) throws OutputAlreadyExistsException
+    {
+        this(indexDir, toMatrix(signatures, options.numHashes), options);
+    }
 
-        initializeMap();
+    protected static SignatureMatrix toMatrix(Signature [] signatures, int numBits)
+    {
+        SignatureMatrix matrix = new SignatureMatrix(numBits, signatures.length);
+        for(Signature sig : signatures) matrix.add(sig.id, sig.bits);
+        return matrix;
     }
     
+    /**
+     * Build permutations on up to numThreads threads at once, but only as many at once as fit in maxMemoryBytes
+     * @param numThreads
+     * @param maxMemoryBytes memory to allow for the working arrays of the permutations being built (in addition to the signatures themselves)
+     */
+    public void setParallelism(int numThreads, long maxMemoryBytes)
+    {
+        this.numThreads = numThreads;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Rough size of the arrays needed to build one permutation: the permuted matrix and its ids, the ordinals, and the sort's scratch arrays
+     * @return
+     */
+    protected long bytesPerPermutation()
+    {
+        return (long) signatures.size() * (8L * signatures.numWords() + 8 + 4 + 4 + 16);
+    }
+
+    protected int concurrentPermutations()
+    {
+        long byMemory = Math.max(1, maxMemoryBytes / Math.max(1, bytesPerPermutation()));
+        return (int) Math.min(Math.min(numThreads, numPermutations), byMemory);
+    }
+
     public void createIndex() throws IOException, OutputAlreadyExistsException
     {
-        initializeMap();
-        for(int i = 0; i < numPermutations; i++) createPermutationIndex(i);
-        serializeIdMap();
+        serializeIds();
+        initializePositions();
+        int concurrency = concurrentPermutations();
+        if(concurrency > 1) createPermutationIndices(concurrency);
+        else
+        {
+            PermutationBuffers buffers = new PermutationBuffers(signatures);
+            for(int i = 0; i < numPermutations; i++) createPermutationIndex(i, buffers.permuted, buffers.ordinals);
+        }
+        positions.flush();
     }   
+
+    /**
+     * Working arrays for building one permutation
+     */
+    protected static class PermutationBuffers
+    {
+        final SignatureMatrix permuted;
+        final int [] ordinals;
+
+        PermutationBuffers(SignatureMatrix signatures)
+        {
+            permuted = new SignatureMatrix(signatures.numBits(), signatures.size());
+            ordinals = new int[signatures.size()];
+        }
+    }
+
+    /**
+     * Build the permutations as separate tasks on a thread pool, sharing concurrency sets of buffers between them
+     * @param concurrency
+     * @throws IOException
+     */
+    protected void createPermutationIndices(int concurrency) throws IOException
+    {
+        final ResourcePool<PermutationBuffers> buffers = new ResourcePool<PermutationBuffers>();
+        for(int i = 0; i < concurrency; i++) buffers.add(new PermutationBuffers(signatures));
+        buffers.open();
+        BlockingThreadPool pool = new BlockingThreadPool(concurrency, concurrency);
+        failure = null;
+        for(int i = 0; i < numPermutations && failure == null; i++)
+        {
+            final int permId = i;
+            pool.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    PermutationBuffers b = null;
+                    try
+                    {
+                        b = buffers.acquire();
+                        createPermutationIndex(permId, b.permuted, b.ordinals);
+                    }
+                    catch(Exception e)
+                    {
+                        failure = e;
+                    }
+                    finally
+                    {
+                        if(b != null) buffers.release(b);
+                    }
+                }
+            });
+        }
+        try
+        {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException(e);
+        }
+        if(failure instanceof IOException) throw (IOException) failure;
+        if(failure != null) throw new IOException(failure);
+    }
+
+    /**
+     * The permuter for a given permutation, which depends only on the seed and the permutation number
+     * @param numBits
+     * @param seed
+     * @param permId
+     * @return
+     */
+    public static Permuter permuter(int numBits, long seed, int permId)
+    {
+        return new Permuter(numBits, permutationSeed(seed, permId));
+    }
+
+    public static long permutationSeed(long seed, int permId)
+    {
+        // spread consecutive permutation numbers out, since java.util.Random gives similar first outputs for similar seeds
+        return seed + permId * 0x9E3779B97F4A7C15L;
+    }
     
-    protected void initializeMap()
+    protected void initializePositions() throws IOException, OutputAlreadyExistsException
     {
-        for(Signature sig: signatures) permutationIndex.put(sig.id, new int[numPermutations]);
+        File tmp = new File(rootDir, Constants.positions);
+        if(tmp.exists()) throw(new OutputAlreadyExistsException(tmp.getAbsolutePath()));
+        positions = PositionTable.create(tmp, signatures.size(), numPermutations);
     }
     
-    protected void serializePermutationIndex(int idx, long [] values) throws IOException
+    protected void serializeIds() throws IOException
     {
-        File tmp = new File(rootDir, Constants.permutationHead + idx);
-        LongStoreReaderDisk.createLongStore(values, tmp.getAbsolutePath());
+        long [] ids = new long[signatures.size()];
+        for(int i = 0, max = ids.length; i < max; i++) ids[i] = signatures.id(i);
+        LongStoreReader.createLongStore(ids, new File(rootDir, Constants.ids).getAbsolutePath());
+        IdIndex.write(new File(rootDir, Constants.idIndex), ids);
     }
     
-    protected void serializeIdMap() throws OutputAlreadyExistsException, FileNotFoundException, IOException
+    protected void serializePermutationIndex(int idx, int [] values) throws IOException
     {
-       File tmp = new File(rootDir, Constants.idMap);
-       if(tmp.exists()) throw(new OutputAlreadyExistsException(tmp.getAbsolutePath()));
-       ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tmp));
-       oos.writeObject(permutationIndex);
-       oos.close();
+        File tmp = new File(rootDir, Constants.permutationHead + idx);
+        IntStoreReader.createIntStore(values, tmp.getAbsolutePath());
     }
     
     public static void permuteAndSort(Permuter p, Signature [] sigs)
@@ -72,16 +213,25 @@ public class PermutationIndexWriter
         Arrays.sort(sigs, new LexicographicBitSetComparator());
     }
 
-    protected void createPermutationIndex(int permId) throws IOException
+    /**
+     * Apply p's current permutation to every signature in sigs, writing the results to permuted, and fill ordinals with the rows of sigs
+     * in the sorted order of their permuted signatures
+     * @param p
+     * @param sigs
+     * @param permuted
+     * @param ordinals
+     */
+    public static void permuteAndSort(Permuter p, SignatureMatrix sigs, SignatureMatrix permuted, int [] ordinals)
     {
-        permuteAndSort(permuter, signatures);
-        long [] ids = new long [signatures.length];
-        for(int i = 0, m = signatures.length; i < m; i++)
-        {
-            long sigId = signatures[i].id;
-            permutationIndex.get(sigId)[permId] = i;
-            ids[i] = sigId;
-        }
-        serializePermutationIndex(permId, ids);
+        sigs.permute(p, permuted);
+        for(int i = 0, max = ordinals.length; i < max; i++) ordinals[i] = i;
+        RadixSort.sort(permuted, ordinals);
+    }
+
+    protected void createPermutationIndex(int permId, SignatureMatrix permuted, int [] ordinals) throws IOException
+    {
+        permuteAndSort(permuter(signatures.numBits(), permutationSeed, permId), signatures, permuted, ordinals);
+        for(int i = 0, m = ordinals.length; i < m; i++) positions.set(ordinals[i], permId, i);
+        serializePermutationIndex(permId, ordinals);
     }
 }
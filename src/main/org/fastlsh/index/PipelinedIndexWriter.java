@@ -0,0 +1,158 @@
+package org.fastlsh.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.fastlsh.hash.HashFamily;
+import org.fastlsh.util.OutputAlreadyExistsException;
+import org.fastlsh.util.SignatureMatrix;
+
+/**
+ * Builds a complete, searchable index in a single pass over the input: each vector is parsed, hashed, and written to the vector store, and
+ * its signature is packed straight into a SignatureMatrix (and the packed signature store) rather than being serialized as a Signature object and
+ * read back in again. Closing the writer builds the permutation lists from the packed signatures.
+ *
+ * <br>If a run size is given, signatures are only spilled to the signature store, and the permutation lists are built from it with
+ * ExternalPermutationIndexWriter, so the signatures never need to fit in memory.
+ *
+ * <br>Vectors whose norm is zero have no direction to hash, so they are skipped and not written anywhere. Ordinals count only the vectors
+ * which were written, so they differ from input line numbers whenever a zero vector is skipped: see numSkipped().
+ */
+public class PipelinedIndexWriter<T> extends SignatureIndexWriter<T> implements Closeable
+{
+    private VectorStoreWriter rawStream;
+    private SignatureStoreWriter sigStream;
+    private SignatureMatrix signatures;
+    private HashFamily family;
+    private int runSize;
+    private int numThreads = 1;
+    private long maxMemoryBytes = Runtime.getRuntime().maxMemory() / 2;
+    private long numVectors;
+    private long numSkipped;
+    private VectorWithId [] pending = new VectorWithId[hashBlockSize];
+    private int numPending;
+    private long [] words;
+
+    /** Number of vectors to hash at once */
+    protected static final int hashBlockSize = 256;
+
+    /**
+     * Create a writer which keeps all signatures in memory
+     * @param directory
+     * @param options
+     * @throws IOException
+     */
+    public PipelinedIndexWriter(String directory, IndexOptions options) throws IOException
+    {
+        this(directory, options, -1);
+    }
+
+    /**
+     * @param directory
+     * @param options
+     * @param runSize if > 0, build the permutation lists with an external sort of this many signatures at a time, rather than in memory
+     * @throws IOException
+     */
+    public PipelinedIndexWriter(String directory, IndexOptions options, int runSize) throws IOException
+    {
+        super(directory, options);
+        family = options.hashFamily;
+        words = new long[hashBlockSize * ((family.numHashes() + 63) >>> 6)];
+        this.runSize = runSize;
+        rawStream = new VectorStoreWriter(new File(directory, Constants.inputData), options.vectorDimension);
+        sigStream = new SignatureStoreWriter(new File(directory, Constants.signatureStore), options.numHashes);
+        if(runSize <= 0) signatures = new SignatureMatrix(options.numHashes, 1024);
+    }
+
+    /**
+     * Threads and memory to use for an in memory permutation build: see PermutationIndexWriter.setParallelism()
+     * @param numThreads
+     * @param maxMemoryBytes
+     */
+    public void setParallelism(int numThreads, long maxMemoryBytes)
+    {
+        this.numThreads = numThreads;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    @Override
+    public void indexVector(T vec) throws IOException
+    {
+        indexVector(parser.parse(vec));
+    }
+
+    public void indexVector(VectorWithId vec) throws IOException
+    {
+        double norm = vec.norm2();
+        if(norm == 0.0)
+        {
+            // zero vectors are skipped (see the class doc)
+            numSkipped++;
+            return;
+        }
+        pending[numPending++] = vec;
+        if(numPending == hashBlockSize) writePending();
+    }
+
+    /**
+     * Hash the buffered vectors as a block, and write them and their signatures out
+     * @throws IOException
+     */
+    protected void writePending() throws IOException
+    {
+        int numWords = (family.numHashes() + 63) >>> 6;
+        family.makeSignatures(pending, 0, numPending, words, 0);
+        for(int i = 0; i < numPending; i++)
+        {
+            sigStream.write(pending[i].id, words, i * numWords);
+            if(signatures != null) signatures.add(pending[i].id, words, i * numWords);
+            rawStream.write(pending[i]);
+            pending[i] = null;
+            numVectors++;
+        }
+        numPending = 0;
+    }
+
+    /**
+     * @return number of vectors written so far (vectors are hashed and written in blocks, so this lags indexVector() until close())
+     */
+    public long numVectors() {return numVectors;}
+
+    /**
+     * @return number of zero vectors which were skipped rather than indexed
+     */
+    public long numSkipped() {return numSkipped;}
+
+    /**
+     * Close the vector and signature stores, and build the permutation lists
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(rawStream == null) return;
+        if(numPending > 0) writePending();
+        rawStream.close();
+        sigStream.close();
+        rawStream = null;
+        try
+        {
+            if(signatures != null)
+            {
+                PermutationIndexWriter permWriter = new PermutationIndexWriter(rootDirName, signatures, options);
+                permWriter.setParallelism(numThreads, maxMemoryBytes);
+                permWriter.createIndex();
+                signatures = null;
+            }
+            else
+            {
+                SignatureStoreReader store = new SignatureStoreReader(new File(rootDirName, Constants.signatureStore));
+                new ExternalPermutationIndexWriter(rootDirName, store, options, runSize).createIndex();
+            }
+        }
+        catch(OutputAlreadyExistsException e)
+        {
+            throw new IOException(e);
+        }
+    }
+}
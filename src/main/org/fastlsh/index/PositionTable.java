@@ -0,0 +1,145 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.fastlsh.util.FileUtils;
+
+/**
+ * Memory mapped table of the position of every ordinal in every sorted permutation list. The file is a small little-endian header 
+ * (magic, number of permutations, number of vectors) followed by a row-major int matrix with one row of numPermutations positions per ordinal,
+ * so looking up a position is a single int read, and opening the table costs nothing regardless of its size.
+ */
+public class PositionTable
+{
+    public static final int magic = 0x464c5031;
+    public static final int headerBytes = 16;
+    protected static final long maxSegmentBytes = 1L << 30;
+
+    protected int numPermutations;
+    protected long numVectors;
+    protected int segmentShift;
+    protected long segmentMask;
+    protected IntBuffer [] segments;
+    protected ByteBuffer [] bytes;
+
+    /**
+     * Open an existing table read only
+     * @param file
+     * @throws IOException
+     */
+    public PositionTable(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if(channel.size() < headerBytes) throw new IOException("Not a position table: " + file.getAbsolutePath());
+            ByteBuffer header = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, 0, headerBytes, headerBytes, ByteOrder.LITTLE_ENDIAN)[0];
+            if(header.getInt(0) != magic) throw new IOException("Not a position table: " + file.getAbsolutePath());
+            numPermutations = header.getInt(4);
+            numVectors = header.getLong(8);
+            if(channel.size() != headerBytes + dataBytes()) throw new IOException("Position table " + file.getAbsolutePath() + " is truncated");
+            map(channel, FileChannel.MapMode.READ_ONLY);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    protected PositionTable(int numPermutations, long numVectors)
+    {
+        this.numPermutations = numPermutations;
+        this.numVectors = numVectors;
+    }
+
+    /**
+     * Create a new table, mapped read write. All positions are initially zero.
+     * @param file
+     * @param numVectors
+     * @param numPermutations
+     * @return
+     * @throws IOException
+     */
+    public static PositionTable create(File file, long numVectors, int numPermutations) throws IOException
+    {
+        if(file.exists()) throw new IOException("Position table already exists: " + file.getAbsolutePath());
+        PositionTable table = new PositionTable(numPermutations, numVectors);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(headerBytes + table.dataBytes());
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(magic).putInt(numPermutations).putLong(numVectors).flip();
+            while(header.hasRemaining()) channel.write(header, header.position());
+            table.map(channel, FileChannel.MapMode.READ_WRITE);
+        }
+        finally
+        {
+            raf.close();
+        }
+        return table;
+    }
+
+    protected long dataBytes()
+    {
+        return numVectors * numPermutations * 4;
+    }
+
+    /**
+     * Map the matrix in segments holding a power of two rows each, so that finding the segment for an ordinal is a shift
+     */
+    protected void map(FileChannel channel, FileChannel.MapMode mode) throws IOException
+    {
+        long rowBytes = Math.max(1, numPermutations) * 4L;
+        segmentShift = 0;
+        while((rowBytes << (segmentShift + 1)) <= maxSegmentBytes) segmentShift++;
+        segmentMask = (1L << segmentShift) - 1;
+        bytes = FileUtils.map(channel, mode, headerBytes, dataBytes(), rowBytes << segmentShift, ByteOrder.LITTLE_ENDIAN);
+        segments = new IntBuffer[bytes.length];
+        for(int i = 0; i < bytes.length; i++) segments[i] = bytes[i].asIntBuffer();
+    }
+
+    public int numPermutations() {return numPermutations;}
+
+    public long numVectors() {return numVectors;}
+
+    /**
+     * Get the position of an ordinal in a particular permutation list
+     * @param ordinal
+     * @param permutation
+     * @return
+     */
+    public int get(int ordinal, int permutation)
+    {
+        return segments[ordinal >>> segmentShift].get((int) (ordinal & segmentMask) * numPermutations + permutation);
+    }
+
+    /**
+     * Set the position of an ordinal in a particular permutation list. Only valid for tables opened with create(). 
+     * Different threads may safely set different permutations.
+     * @param ordinal
+     * @param permutation
+     * @param position
+     */
+    public void set(int ordinal, int permutation, int position)
+    {
+        segments[ordinal >>> segmentShift].put((int) (ordinal & segmentMask) * numPermutations + permutation, position);
+    }
+
+    /**
+     * Flush any changes to disk
+     */
+    public void flush()
+    {
+        for(ByteBuffer b : bytes) if(b instanceof MappedByteBuffer) ((MappedByteBuffer) b).force();
+    }
+}
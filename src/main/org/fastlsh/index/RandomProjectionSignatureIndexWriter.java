@@ -21,20 +21,28 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 
 import org.fastlsh.hash.HashFamily;
+import org.fastlsh.util.BitSet;
 import org.fastlsh.util.Signature;
 
 
 public class RandomProjectionSignatureIndexWriter<T> extends SignatureIndexWriter<T> implements Closeable
 {
-	private ObjectOutputStream rawStream;
+	private VectorStoreWriter rawStream;
 	private ObjectOutputStream sigStream;
 	private int numVectors;
 	private HashFamily family;
+	private VectorWithId [] pending = new VectorWithId[hashBlockSize];
+	private int numPending;
+	private long [] words;
+
+	/** Number of vectors to hash at once */
+	protected static final int hashBlockSize = 256;
 
 	public RandomProjectionSignatureIndexWriter(String directory, IndexOptions options) throws IOException {
 	    super(directory, options);
         family = options.hashFamily;
-		rawStream = new ObjectOutputStream(new FileOutputStream(new File(directory, Constants.inputData)));
+        words = new long[hashBlockSize * ((family.numHashes() + 63) >>> 6)];
+		rawStream = new VectorStoreWriter(new File(directory, Constants.inputData), options.vectorDimension);
         sigStream = new ObjectOutputStream(new FileOutputStream(new File(directory, Constants.signatures)));
 	}
 		
@@ -46,22 +54,34 @@ public class RandomProjectionSignatureIndexWriter<T> extends SignatureIndexWrite
     public void indexVector(VectorWithId vec) throws IOException {
     	double norm = vec.norm2();
         if(norm == 0.0) return;  // TODO: create a separate zeros file for these.
-        sigStream.writeObject(new Signature(vec.id, family.makeSignature(vec)));
-        rawStream.writeObject(vec);
-        numVectors++;
-        if(numVectors%10000 == 0)
-        {
-            rawStream.flush();
-            sigStream.flush();
+        pending[numPending++] = vec;
+        if(numPending == hashBlockSize) writePending();
+    }
+
+    /**
+     * Hash the buffered vectors as a block, and write them and their signatures out
+     * @throws IOException
+     */
+    protected void writePending() throws IOException {
+        int numHashes = family.numHashes();
+        int numWords = (numHashes + 63) >>> 6;
+        family.makeSignatures(pending, 0, numPending, words, 0);
+        for(int i = 0; i < numPending; i++) {
+            BitSet bits = new BitSet(numHashes);
+            System.arraycopy(words, i * numWords, bits.bits, 0, numWords);
+            sigStream.writeObject(new Signature(pending[i].id, bits));
+            rawStream.write(pending[i]);
+            pending[i] = null;
+            numVectors++;
+            if(numVectors%10000 == 0) sigStream.flush();
         }
+        numPending = 0;
     }
     
     @Override
     public void close() throws IOException {
-        if(rawStream != null) {
-        	rawStream.flush();
-        	rawStream.close();
-        }
+        if(rawStream != null && numPending > 0) writePending();
+        if(rawStream != null) rawStream.close();
         if(sigStream != null) {
         	sigStream.flush();
         	sigStream.close();
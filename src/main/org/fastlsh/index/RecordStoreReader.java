@@ -0,0 +1,120 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.fastlsh.util.FileUtils;
+
+/**
+ * Memory mapped reader for the fixed-stride files written by RecordStoreWriter subclasses. A store can span several files (e.g. the shards
+ * written by the multi threaded indexer), in which case rows are numbered consecutively across the files in the order given. Each file is
+ * mapped in segments of at most 2GB, so stores larger than that can be read. All reads are absolute, so a single reader can be shared between
+ * threads. Subclasses decode everything in a row after its id.
+ */
+public abstract class RecordStoreReader
+{
+    protected static final long maxSegmentBytes = Integer.MAX_VALUE;
+
+    /** The header field which fixes the row size: the dimension of a vector store, or the number of bits of a signature store */
+    protected int width = -1;
+    protected int rowBytes;
+    protected long numRows;
+    protected ByteBuffer [] segments;
+    protected long [] segmentStarts;
+
+    /**
+     * @param files files making up the store, in row order
+     * @param segmentBytes max size of a single mapped segment: only really here so the multiple segment logic can be tested without 2GB files
+     * @param magic magic number the files must start with
+     * @param name what kind of store this is, for error messages
+     * @throws IOException
+     */
+    protected RecordStoreReader(File [] files, long segmentBytes, int magic, String name) throws IOException
+    {
+        ByteBuffer [][] fileSegments = new ByteBuffer[files.length][];
+        int totalSegments = 0;
+        for(int i = 0; i < files.length; i++)
+        {
+            RandomAccessFile raf = new RandomAccessFile(files[i], "r");
+            try
+            {
+                FileChannel channel = raf.getChannel();
+                if(channel.size() < RecordStoreWriter.headerBytes) throw new IOException("Not a " + name + ": " + files[i].getAbsolutePath());
+                ByteBuffer header = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, 0, RecordStoreWriter.headerBytes, RecordStoreWriter.headerBytes, ByteOrder.LITTLE_ENDIAN)[0];
+                if(header.getInt(0) != magic) throw new IOException("Not a " + name + ": " + files[i].getAbsolutePath());
+                int w = header.getInt(4);
+                if(width != -1 && w != width) throw new IOException(name + " " + files[i].getAbsolutePath() + " has width " + w + ", expected " + width);
+                width = w;
+                rowBytes = rowBytes(width);
+                long dataBytes = header.getLong(8) * rowBytes;
+                if(channel.size() != RecordStoreWriter.headerBytes + dataBytes) throw new IOException(name + " " + files[i].getAbsolutePath() + " is truncated or was not closed properly");
+                fileSegments[i] = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, RecordStoreWriter.headerBytes, dataBytes, segmentBytes / rowBytes * rowBytes, ByteOrder.LITTLE_ENDIAN);
+                totalSegments += fileSegments[i].length;
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        segments = new ByteBuffer[totalSegments];
+        segmentStarts = new long[totalSegments];
+        int seg = 0;
+        for(int i = 0; i < files.length; i++)
+        {
+            for(ByteBuffer b : fileSegments[i])
+            {
+                segments[seg] = b;
+                segmentStarts[seg++] = numRows;
+                numRows += b.capacity() / rowBytes;
+            }
+        }
+    }
+
+    /**
+     * @param width
+     * @return the number of bytes in a row of a store of the given width, id included
+     */
+    protected abstract int rowBytes(int width);
+
+    public long size() {return numRows;}
+
+    protected int segment(long row)
+    {
+        if(segments.length == 1) return 0;
+        int idx = Arrays.binarySearch(segmentStarts, row);
+        if(idx >= 0)
+        {
+            // empty files produce empty segments which share a start row with the next one
+            while(idx < segments.length - 1 && segmentStarts[idx + 1] == row) idx++;
+            return idx;
+        }
+        return -idx - 2;
+    }
+
+    /**
+     * @param row
+     * @param seg segment(row)
+     * @return the offset of a row within its segment
+     */
+    protected int offset(long row, int seg)
+    {
+        return (int) (row - segmentStarts[seg]) * rowBytes;
+    }
+
+    /**
+     * Get the id of the record stored in a particular row
+     * @param row
+     * @return
+     */
+    public long id(long row)
+    {
+        int seg = segment(row);
+        return segments[seg].getLong(offset(row, seg));
+    }
+}
@@ -0,0 +1,94 @@
+package org.fastlsh.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes fixed-stride, little-endian binary files which can be memory mapped by a RecordStoreReader. The file starts with a header (magic
+ * number, width, number of rows), followed by one row per record: its id as a long, and then whatever the subclass puts after it. The width
+ * is whatever fixes the size of a row, e.g. the dimension of a vector.
+ */
+public abstract class RecordStoreWriter implements Closeable
+{
+    public static final int headerBytes = 16;
+    protected static final int bufferBytes = 1 << 16;
+
+    protected RandomAccessFile file;
+    protected FileChannel channel;
+    protected ByteBuffer buffer;
+    protected final int magic;
+    protected final int width;
+    protected final int rowBytes;
+    protected long numRows;
+
+    /**
+     * @param file
+     * @param magic
+     * @param width
+     * @param rowBytes number of bytes in a row, id included
+     * @param name what kind of store this is, for error messages
+     * @throws IOException
+     */
+    protected RecordStoreWriter(File file, int magic, int width, int rowBytes, String name) throws IOException
+    {
+        if(file.exists()) throw new IOException(name + " already exists: " + file.getAbsolutePath());
+        this.magic = magic;
+        this.width = width;
+        this.rowBytes = rowBytes;
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        buffer = ByteBuffer.allocate(Math.max(rowBytes, bufferBytes / rowBytes * rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader();
+    }
+
+    /**
+     * Start a new row with its id
+     * @param id
+     * @return the buffer to put the rest of the row into
+     * @throws IOException
+     */
+    protected ByteBuffer startRow(long id) throws IOException
+    {
+        if(buffer.remaining() < rowBytes) flush();
+        buffer.putLong(id);
+        numRows++;
+        return buffer;
+    }
+
+    public long numRows() {return numRows;}
+
+    protected void flush() throws IOException
+    {
+        buffer.flip();
+        while(buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    protected void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(magic);
+        header.putInt(width);
+        header.putLong(numRows);
+        header.flip();
+        long pos = channel.position();
+        channel.position(0);
+        while(header.hasRemaining()) channel.write(header);
+        if(pos > 0) channel.position(pos);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if(file == null) return;
+        flush();
+        writeHeader();
+        file.close();
+        file = null;
+    }
+}
@@ -15,20 +15,17 @@
 
 package org.fastlsh.index;
 
-import java.io.ObjectOutputStream;
 import java.util.List;
 
 import org.fastlsh.hash.HashFamily;
 import org.fastlsh.parsers.VectorParser;
-import org.fastlsh.util.Signature;
 import org.fastlsh.util.ResourcePool;
 
 
 public class SignatureIndexWriterTask<T> implements Runnable
 {
     List<T> inputs;
-    ResourcePool<ObjectOutputStream> vecWriters;
-    ResourcePool<ObjectOutputStream> sigWriters;
+    ResourcePool<IndexShardWriter> writers;
     VectorParser<T> parser;
     HashFamily family;
     
@@ -37,14 +34,12 @@ public class SignatureIndexWriterTask<T> implements Runnable
         
     }
     
-    public SignatureIndexWriterTask(ResourcePool<ObjectOutputStream> vecWriters,
-                       ResourcePool<ObjectOutputStream> sigWriters, 
+    public SignatureIndexWriterTask(ResourcePool<IndexShardWriter> writers,
                        List<T> curList, 
                        VectorParser<T> parser,
                        HashFamily family)
     {
-        this.vecWriters = vecWriters;
-        this.sigWriters = sigWriters;
+        this.writers = writers;
         inputs = curList;
         this.parser = parser;
         this.family = family;
@@ -53,25 +48,30 @@ public class SignatureIndexWriterTask<T> implements Runnable
     @Override
     public void run()
     {
-        ObjectOutputStream sigStream = null;
-        ObjectOutputStream vecStream = null;
+        IndexShardWriter shard = null;
         try
         {
-            sigStream = sigWriters.acquire();
-            vecStream = vecWriters.acquire();
+            shard = writers.acquire();
+            SignatureStoreWriter sigStream = shard.sigStream;
+            VectorStoreWriter vecStream = shard.vecStream;
+            VectorWithId [] vecs = new VectorWithId[inputs.size()];
+            int numVecs = 0;
             for(T line : inputs)
             {
                 VectorWithId vec = parser.parse(line);
                 double norm = vec.norm2();
                 if(norm == 0.0) continue;
-                // Compute the signatures non-normalized, but normalize the raw vectors before serialization so that when we check
-                // cosine distances, we only have to do dot products
-                sigStream.writeObject(new Signature(vec.id, family.makeSignature(vec)));
-//                vec.scalarDivide(norm);
-                vecStream.writeObject(vec);
+                vecs[numVecs++] = vec;
+            }
+            // Compute the signatures non-normalized, for the whole batch at once
+            int numWords = (family.numHashes() + 63) >>> 6;
+            long [] words = new long[numVecs * numWords];
+            family.makeSignatures(vecs, 0, numVecs, words, 0);
+            for(int i = 0; i < numVecs; i++)
+            {
+                sigStream.write(vecs[i].id, words, i * numWords);
+                vecStream.write(vecs[i]);
             }
-            sigStream.reset();                    
-            vecStream.reset();                                
         }
         catch(Exception e)
         {
@@ -79,8 +79,7 @@ public class SignatureIndexWriterTask<T> implements Runnable
         }
         finally
         {
-            if(sigStream != null) sigWriters.release(sigStream);
-            if(vecStream != null) vecWriters.release(vecStream);
+            if(shard != null) writers.release(shard);
         }
     }
 
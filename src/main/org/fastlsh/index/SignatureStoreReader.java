@@ -0,0 +1,78 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.fastlsh.util.SignatureMatrix;
+
+/**
+ * Memory mapped reader for the signature files written by SignatureStoreWriter. As with VectorStoreReader, a store can span several files
+ * (see RecordStoreReader). The row of a signature is its ordinal. All reads are absolute, so a single reader can be shared between threads.
+ */
+public class SignatureStoreReader extends RecordStoreReader
+{
+    protected int numBits;
+    protected int numWords;
+
+    public SignatureStoreReader(File file) throws IOException
+    {
+        this(new File [] {file}, maxSegmentBytes);
+    }
+
+    public SignatureStoreReader(File [] files) throws IOException
+    {
+        this(files, maxSegmentBytes);
+    }
+
+    /**
+     * @param files files making up the store, in row order
+     * @param segmentBytes max size of a single mapped segment: only really here so the multiple segment logic can be tested without 2GB files
+     * @throws IOException
+     */
+    SignatureStoreReader(File [] files, long segmentBytes) throws IOException
+    {
+        super(files, segmentBytes, SignatureStoreWriter.magic, "Signature store");
+        numBits = width;
+        numWords = (numBits + 63) >>> 6;
+    }
+
+    @Override
+    protected int rowBytes(int width)
+    {
+        return SignatureStoreWriter.rowBytes(width);
+    }
+
+    public int numBits() {return numBits;}
+
+    public int numWords() {return numWords;}
+
+    /**
+     * Copy the words of the signature stored in a particular row into dest, starting at offset
+     * @param row
+     * @param dest
+     * @param offset
+     * @return dest
+     */
+    public long [] get(long row, long [] dest, int offset)
+    {
+        int seg = segment(row);
+        ByteBuffer b = segments[seg];
+        int pos = offset(row, seg) + 8;
+        for(int i = 0; i < numWords; i++, pos += 8) dest[offset + i] = b.getLong(pos);
+        return dest;
+    }
+
+    /**
+     * Append count rows, starting at row start, to dest
+     * @param start
+     * @param count
+     * @param dest
+     */
+    public void read(long start, int count, SignatureMatrix dest)
+    {
+        if(dest.numBits() != numBits) throw new IllegalArgumentException("Can't read signatures of " + numBits + " bits into a matrix of " + dest.numBits());
+        long [] words = new long[numWords];
+        for(long row = start, end = start + count; row < end; row++) dest.add(id(row), get(row, words, 0), 0);
+    }
+}
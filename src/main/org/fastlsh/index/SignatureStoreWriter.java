@@ -0,0 +1,56 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.fastlsh.util.BitSet;
+
+/**
+ * Writes signatures to a record store which can be memory mapped by SignatureStoreReader. This is the packed counterpart of the serialized
+ * Signature objects under Constants.signatures: the width of the store is the number of bits, and each row holds the id of a signature
+ * followed by its words, laid out as in BitSet.
+ */
+public class SignatureStoreWriter extends RecordStoreWriter
+{
+    public static final int magic = 0x464c5331;
+
+    protected int numBits;
+    protected int numWords;
+
+    public SignatureStoreWriter(File file, int numBits) throws IOException
+    {
+        super(file, magic, numBits, rowBytes(numBits), "Signature store");
+        this.numBits = numBits;
+        numWords = (numBits + 63) >>> 6;
+    }
+
+    /**
+     * Number of bytes taken up by a single row of a signature store of the given number of bits
+     * @param numBits
+     * @return
+     */
+    public static int rowBytes(int numBits)
+    {
+        return 8 * (1 + ((numBits + 63) >>> 6));
+    }
+
+    public void write(long id, BitSet bits) throws IOException
+    {
+        if(bits.numBits != numBits) throw new IOException("Expected signature of " + numBits + " bits but got " + bits.numBits + " for id: " + id);
+        write(id, bits.bits, 0);
+    }
+
+    /**
+     * Write a signature already packed into words
+     * @param id
+     * @param words
+     * @param offset index of the first word of the signature in words
+     * @throws IOException
+     */
+    public void write(long id, long [] words, int offset) throws IOException
+    {
+        ByteBuffer row = startRow(id);
+        for(int i = 0; i < numWords; i++) row.putLong(words[offset + i]);
+    }
+}
@@ -15,14 +15,13 @@
 package org.fastlsh.index;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
@@ -30,17 +29,19 @@ import org.apache.commons.cli.Option;
 import org.fastlsh.hash.HashFamily;
 import org.fastlsh.parsers.CSVParser;
 import org.fastlsh.util.BlockingThreadPool;
+import org.fastlsh.util.OutputAlreadyExistsException;
 import org.fastlsh.util.RequiredOption;
 import org.fastlsh.util.ResourcePool;
+import org.fastlsh.util.SignatureMatrix;
 import org.fastlsh.util.SimpleCli;
 /**
  * Main entry point for creating an approximate nearest neighbor index given a .csv file containing a (dense) representation of input vectors
  * Calling the main function of this class with the appropriate arguments will create a searchable index, which can be read using the IndexReader class,
  * and searched using the NearestNeighborSearcher class
  * 
- * <br>USE AT OWN RISK. 
- * 
- * <br>This may be deleted soon, to be replaced with a hadoop version. In any event, until this message has been removed, consider CSVIndexer to be the safe version to be used
+ * <br>Vectors are hashed in batches on a thread pool, and written to one vector store shard and one packed signature store shard per thread.
+ * Closing the indexer then builds the permutation lists from the signature shards (in parallel, or with an external sort if a run size
+ * has been set), so the output directory is a complete index.
  */
 public class ThreadedRandomProjectionIndexer<T> extends SignatureIndexWriter<T>
 {
@@ -50,10 +51,14 @@ public class ThreadedRandomProjectionIndexer<T> extends SignatureIndexWriter<T>
 
     private List<T>                          curList;
     private BlockingThreadPool               pool;
-    private ResourcePool<ObjectOutputStream> vecWriters;
-    private ResourcePool<ObjectOutputStream> sigWriters;
+    private ResourcePool<IndexShardWriter>   writers;
     private int                              batchSize;
     private HashFamily                       family;
+    private int                              numThreads;
+    private int                              runSize        = -1;
+    private long                             startTime;
+    private long                             signatureMillis;
+    private long                             permutationMillis;
 
     public ThreadedRandomProjectionIndexer(String directory,
             IndexOptions options, int numThreads, int batchSize)
@@ -63,35 +68,53 @@ public class ThreadedRandomProjectionIndexer<T> extends SignatureIndexWriter<T>
         this.batchSize = batchSize;
         curList = new ArrayList<T>();
 
-        vecWriters = allocateWriters(new File(directory, Constants.inputData), vecHead, numThreads);
-        vecWriters.open();
-        sigWriters = allocateWriters(new File(directory, Constants.signatures), sigHead, numThreads);
-        sigWriters.open();
+        writers = allocateWriters(new File(directory, Constants.signatureStore), new File(directory, Constants.inputData), numThreads, options.numHashes, options.vectorDimension);
         family = options.hashFamily;
+        this.numThreads = numThreads;
         pool = new BlockingThreadPool(numThreads, numThreads);
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Build the permutation lists with an external sort of this many signatures at a time, rather than in memory
+     * @param runSize
+     */
+    public void setRunSize(int runSize)
+    {
+        this.runSize = runSize;
     }
 
-    protected static ResourcePool<ObjectOutputStream> allocateWriters(
-            File directory, String fileNameHead, int numWriters)
-            throws FileNotFoundException, IOException
+    /**
+     * @return time taken to hash and write all of the vectors, in milliseconds (valid after close())
+     */
+    public long signatureMillis() {return signatureMillis;}
+
+    /**
+     * @return time taken to build the permutation lists, in milliseconds (valid after close())
+     */
+    public long permutationMillis() {return permutationMillis;}
+
+    protected static ResourcePool<IndexShardWriter> allocateWriters(
+            File sigDirectory, File vecDirectory, int numWriters, int numBits, int dimension)
+            throws IOException
     {
-        directory.mkdirs();
-        ResourcePool<ObjectOutputStream> p = new ResourcePool<ObjectOutputStream>();
+        sigDirectory.mkdirs();
+        vecDirectory.mkdirs();
+        ResourcePool<IndexShardWriter> p = new ResourcePool<IndexShardWriter>();
         for (int i = 0; i < numWriters; i++)
         {
-            p.add(new ObjectOutputStream(new FileOutputStream(new File(
-                    directory, fileNameHead + i))));
+            p.add(new IndexShardWriter(new File(sigDirectory, sigHead + i), new File(vecDirectory, vecHead + i), numBits, dimension));
         }
         p.open();
         return p;
     }
 
-    protected static void closeHandles(ResourcePool<ObjectOutputStream> pool)
+    protected static <C extends Closeable> void closeHandles(ResourcePool<C> pool)
             throws InterruptedException, IOException
     {
         do
         {
-            ObjectOutputStream oos = pool.acquire();
+            C oos = pool.acquire();
             oos.close();
             pool.removeNow(oos);
         }
@@ -108,13 +131,20 @@ public class ThreadedRandomProjectionIndexer<T> extends SignatureIndexWriter<T>
                 .addOption(new RequiredOption("sep", true, "separator character delimiting fields in input"))
                 .addOption(new RequiredOption("b", true, "batch size: number of lines to push into thread jobs"))
                 .addOption(new RequiredOption("n", true, "number of hashes in hash family"))
+                .addOption(new RequiredOption("np", true, "number of permutations to create for searching"))
                 .addOption(new Option("t", true, "number of Threads"))
+                .addOption(new Option("hf", true, "cosine hash family: gaussian (default), hadamard or sparse"))
+                .addOption(new Option("seed", true, "seed for the hash family and permutations, to rebuild an identical index"))
+                .addOption(new Option("rs", true, "number of signatures to sort in memory at once, for an external sort"))
                 .parse(args);
 
         IndexOptions options = new IndexOptions();
         options.numHashes = Integer.parseInt(cmd.getOptionValue("n"));
         options.vectorDimension = Integer.parseInt(cmd.getOptionValue("d"));
-        options.hashFamily = HashFamily.getCosineHashFamily(options.vectorDimension, options.numHashes);
+        Random seeds = new Random(Long.parseLong(cmd.getOptionValue("seed", Long.toString(new Random().nextLong()))));
+        options.hashFamily = HashFamily.getCosineHashFamily(cmd.getOptionValue("hf", "gaussian"), options.vectorDimension, options.numHashes, seeds.nextLong());
+        options.permutationSeed = seeds.nextLong();
+        options.numPermutations = Integer.parseInt(cmd.getOptionValue("np"));
 
         BufferedReader reader = null;
         int batchSize = Integer.parseInt(cmd.getOptionValue("b"));
@@ -129,6 +159,7 @@ public class ThreadedRandomProjectionIndexer<T> extends SignatureIndexWriter<T>
         {
             indexer = new ThreadedRandomProjectionIndexer<String>(cmd.getOptionValue("o"), options, numThreads, batchSize);
             indexer.setParser(new CSVParser(cmd.getOptionValue("sep")));
+            if(cmd.hasOption("rs")) indexer.setRunSize(Integer.parseInt(cmd.getOptionValue("rs")));
             reader = new BufferedReader(new FileReader(cmd.getOptionValue("i")));
             String line = null;
             while ((line = reader.readLine()) != null)
@@ -149,18 +180,25 @@ public class ThreadedRandomProjectionIndexer<T> extends SignatureIndexWriter<T>
         long end = System.currentTimeMillis();
         System.out
                 .println("Elapsed time in seconds: " + ((end - start) / 1000));
-        System.out.println("Total items: " + numLines);
+        System.out.println("Hashing and writing vectors, seconds: " + (indexer.signatureMillis() / 1000) + " (" + rate(numLines, indexer.signatureMillis()) + " rows/sec)");
+        System.out.println("Building " + options.numPermutations + " permutation lists, seconds: " + (indexer.permutationMillis() / 1000) + " (" + rate(numLines, indexer.permutationMillis()) + " rows/sec)");
+        System.out.println("Total items: " + numLines + " (" + rate(numLines, end - start) + " rows/sec)");
         System.out.println("input dimensions: " + options.vectorDimension);
         System.out.println("number of hashes: " + options.numHashes);
     }
 
+    protected static long rate(long rows, long millis)
+    {
+        return rows * 1000 / Math.max(1, millis);
+    }
+
     @Override
     public void indexVector(T vector) throws Exception
     {
         curList.add(vector);
         if (curList.size() == batchSize)
         {
-            pool.execute(new SignatureIndexWriterTask<T>(vecWriters, sigWriters, curList,
+            pool.execute(new SignatureIndexWriterTask<T>(writers, curList,
                     parser, family));
             curList = new ArrayList<T>();
         }
@@ -171,18 +209,53 @@ public class ThreadedRandomProjectionIndexer<T> extends SignatureIndexWriter<T>
         try
         {
             if (curList.size() != 0)
-                pool.execute(new SignatureIndexWriterTask<T>(vecWriters, sigWriters,
+                pool.execute(new SignatureIndexWriterTask<T>(writers,
                         curList, parser, family));
 
             pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
 
-            closeHandles(vecWriters);
-            closeHandles(sigWriters);
+            closeHandles(writers);
         }
         catch (InterruptedException ex)
         {
             // FIXME keep waiting?
             throw new IOException(ex);
         }
+        long signaturesDone = System.currentTimeMillis();
+        signatureMillis = signaturesDone - startTime;
+        if (options.numPermutations > 0)
+            createPermutationIndex();
+        permutationMillis = System.currentTimeMillis() - signaturesDone;
+    }
+
+    /**
+     * Build the permutation lists from the signature shards. The shards are read in the same (name) order as IndexReader reads the vector 
+     * shards, so ordinals line up with rows of the vector store.
+     * @throws IOException
+     */
+    protected void createPermutationIndex() throws IOException
+    {
+        SignatureStoreReader store = new SignatureStoreReader(IndexReader.listFiles(new File(rootDirName, Constants.signatureStore)));
+        try
+        {
+            if (runSize > 0)
+            {
+                new ExternalPermutationIndexWriter(rootDirName, store, options, runSize).createIndex();
+            }
+            else
+            {
+                if (store.size() > Integer.MAX_VALUE)
+                    throw new IOException("Too many signatures to sort in memory: " + store.size() + ". Set a run size to use an external sort");
+                SignatureMatrix signatures = new SignatureMatrix(store.numBits(), (int) store.size());
+                store.read(0, (int) store.size(), signatures);
+                PermutationIndexWriter permWriter = new PermutationIndexWriter(rootDirName, signatures, options);
+                permWriter.setParallelism(numThreads, Runtime.getRuntime().maxMemory() / 2);
+                permWriter.createIndex();
+            }
+        }
+        catch (OutputAlreadyExistsException ex)
+        {
+            throw new IOException(ex);
+        }
     }
 }
@@ -0,0 +1,77 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Memory mapped reader for the raw vector files written by VectorStoreWriter. A store can span several files (e.g. the shards written
+ * by the multi threaded indexer): see RecordStoreReader. All reads are absolute, so a single reader can be shared between threads.
+ */
+public class VectorStoreReader extends RecordStoreReader
+{
+    protected int dimension;
+
+    public VectorStoreReader(File file) throws IOException
+    {
+        this(new File [] {file}, maxSegmentBytes);
+    }
+
+    public VectorStoreReader(File [] files) throws IOException
+    {
+        this(files, maxSegmentBytes);
+    }
+
+    /**
+     * @param files files making up the store, in row order
+     * @param segmentBytes max size of a single mapped segment: only really here so the multiple segment logic can be tested without 2GB files
+     * @throws IOException
+     */
+    VectorStoreReader(File [] files, long segmentBytes) throws IOException
+    {
+        super(files, segmentBytes, VectorStoreWriter.magic, "Vector store");
+        dimension = width;
+    }
+
+    @Override
+    protected int rowBytes(int width)
+    {
+        return VectorStoreWriter.rowBytes(width);
+    }
+
+    public int dimension() {return dimension;}
+
+    /**
+     * Copy the values of the vector stored in a particular row into dest, which must have length >= dimension()
+     * @param row
+     * @param dest
+     * @return dest
+     */
+    public double [] get(long row, double [] dest)
+    {
+        return get(row, dest, 0, dimension);
+    }
+
+    /**
+     * Copy values [from, to) of the vector stored in a particular row into the same positions of dest: reading a vector a block at a time means
+     * the rest of it need not be read if it turns out not to be wanted
+     * @param row
+     * @param dest
+     * @param from
+     * @param to
+     * @return dest
+     */
+    public double [] get(long row, double [] dest, int from, int to)
+    {
+        int seg = segment(row);
+        ByteBuffer b = segments[seg];
+        int offset = offset(row, seg) + 8 + 8 * from;
+        for(int i = from; i < to; i++, offset += 8) dest[i] = b.getDouble(offset);
+        return dest;
+    }
+
+    public double [] get(long row)
+    {
+        return get(row, new double[dimension]);
+    }
+}
@@ -0,0 +1,44 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes raw vectors to a record store which can be memory mapped by VectorStoreReader. The width of the store is the dimension, and each
+ * row holds the id of a vector followed by its values as doubles.
+ */
+public class VectorStoreWriter extends RecordStoreWriter
+{
+    public static final int magic = 0x464c5631;
+
+    protected int dimension;
+
+    public VectorStoreWriter(File file, int dimension) throws IOException
+    {
+        super(file, magic, dimension, rowBytes(dimension), "Vector store");
+        this.dimension = dimension;
+    }
+
+    /**
+     * Number of bytes taken up by a single row of a vector store of the given dimension
+     * @param dimension
+     * @return
+     */
+    public static int rowBytes(int dimension)
+    {
+        return 8 * (dimension + 1);
+    }
+
+    public void write(VectorWithId vec) throws IOException
+    {
+        write(vec.id, vec.vals);
+    }
+
+    public void write(long id, double [] vals) throws IOException
+    {
+        if(vals.length != dimension) throw new IOException("Expected vector of dimension " + dimension + " but got " + vals.length + " for id: " + id);
+        ByteBuffer row = startRow(id);
+        for(double d : vals) row.putDouble(d);
+    }
+}
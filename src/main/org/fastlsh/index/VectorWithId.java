@@ -32,6 +32,16 @@ public class VectorWithId implements Serializable
         vals = vector;
     }
     
+    public long id()
+    {
+        return id;
+    }
+
+    public double [] values()
+    {
+        return vals;
+    }
+
     public double norm2()
     {
         return MathFns.norm2(vals);
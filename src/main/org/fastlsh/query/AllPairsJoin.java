@@ -0,0 +1,453 @@
+package org.fastlsh.query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.fastlsh.index.IndexReader;
+import org.fastlsh.index.InvalidIndexException;
+import org.fastlsh.index.VectorStoreReader;
+import org.fastlsh.threshold.CosineSimilarityThreshold;
+import org.fastlsh.threshold.L2Threshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.BlockingThreadPool;
+import org.fastlsh.util.IntStoreReader;
+import org.fastlsh.util.OutputAlreadyExistsException;
+import org.fastlsh.util.RequiredOption;
+import org.fastlsh.util.SignatureMatrix;
+import org.fastlsh.util.SimpleCli;
+
+/**
+ * Finds every pair of vectors in an index which passes a score threshold and which are at most window entries apart in any of the first
+ * numPermutations permutation lists: the all pairs (PLEB) use of the permutation lists in Ravichandran et al., without searching for each vector
+ * on its own. Each list is read straight through, and every pair inside the sliding window becomes a candidate pair.
+ *
+ * <br>Candidate pairs are packed into longs (smaller ordinal in the high half), and deduplicated across the lists by sorting. To bound memory,
+ * the pairs are split into partitions by their smaller ordinal, and the lists are read once per partition: each partition's pairs are collected,
+ * sorted, deduplicated, and scored in parallel chunks, and those which pass the threshold are written out in (smaller ordinal, larger ordinal) order.
+ * Low ordinals are the smaller of more pairs than high ones, so partitions are narrower at the low end (see partitionEnd()), and a partition 
+ * which turns out not to fit is split rather than allowed to grow past the memory limit.
+ *
+ * <br>The output is a pair file: a magic number, the number of pairs, then for each pair the ids of its two vectors and its score. Read it with PairReader.
+ */
+public class AllPairsJoin
+{
+    public static final int magic = 0x50414952;
+    protected static final int headerBytes = 12;
+    /** Default number of entries of a permutation list read at once */
+    public static final int defaultListBlock = 1 << 16;
+    /** Candidate pairs scored per task */
+    protected static final int scoreChunk = 1 << 14;
+    protected static final int streamBufferBytes = 1 << 16;
+
+    protected IndexReader reader;
+    protected VectorStoreReader rawVectors;
+    protected IntStoreReader [] permutationLists;
+    protected int numVectors;
+    protected int window;
+    protected int numPermutations;
+    protected ScoreThreshold scoreThresh;
+    protected int numThreads = 1;
+    protected long maxMemoryBytes = Runtime.getRuntime().maxMemory() / 4;
+    protected int listBlock = defaultListBlock;
+    protected int maxHammingDistance = -1;
+    protected SignatureMatrix signatureMatrix;
+    /** Candidate pairs of the partition being joined */
+    protected long [] keys;
+
+    /**
+     * @param indexDir
+     * @param window pairs of entries at most this far apart in a list are candidates
+     * @param numPermutations number of permutation lists to read
+     * @param scoreThresh
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InvalidIndexException
+     */
+    public AllPairsJoin(String indexDir, int window, int numPermutations, ScoreThreshold scoreThresh) throws IOException, ClassNotFoundException, InvalidIndexException
+    {
+        reader = new IndexReader(indexDir);
+        reader.initializeOptions();
+        reader.initializePermutationIndex();
+        reader.initializePermutationLists();
+        reader.initializeRawVecs();
+        if(numPermutations > reader.options.numPermutations) throw(new InvalidIndexException(indexDir, "Max  available permutations is: " + reader.options.numPermutations + ". " + numPermutations + " were requested"));
+        if(window <= 0) throw new IllegalArgumentException("Window must be positive, got " + window);
+        rawVectors = reader.rawVectors;
+        permutationLists = reader.permutationLists;
+        numVectors = (int) rawVectors.size();
+        this.window = window;
+        this.numPermutations = numPermutations;
+        this.scoreThresh = scoreThresh;
+    }
+
+    /**
+     * @param numThreads threads to score pairs with
+     * @param maxMemoryBytes memory to use for candidate pairs and their scores: the fewer partitions this allows, the fewer times the lists are read
+     */
+    public void setParallelism(int numThreads, long maxMemoryBytes)
+    {
+        this.numThreads = numThreads;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * @param listBlock number of entries of a permutation list to read at once
+     */
+    public void setListBlock(int listBlock)
+    {
+        if(listBlock <= 0) throw new IllegalArgumentException("List block must be positive, got " + listBlock);
+        this.listBlock = listBlock;
+    }
+
+    /**
+     * Only score pairs whose signatures differ in at most maxDistance bits (see NearestNeighborSearcher.setHammingFilter()). The first call
+     * which turns the filter on reads all of the signatures into memory.
+     * @param maxDistance max number of differing bits, or a negative number to turn the filter off
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public void setHammingFilter(int maxDistance) throws InvalidIndexException, IOException
+    {
+        if(maxDistance >= 0 && signatureMatrix == null)
+        {
+            reader.initializeSignatureMatrix();
+            signatureMatrix = reader.signatureMatrix;
+        }
+        maxHammingDistance = maxDistance;
+    }
+
+    /**
+     * @return the number of candidate pairs found in each list, counting pairs found in several lists once per list
+     */
+    protected long pairsPerList()
+    {
+        long w = Math.min(window, Math.max(0, numVectors - 1));
+        return numVectors * w - w * (w + 1) / 2;
+    }
+
+    /**
+     * The end of partition k of numPartitions. In a list, each vector is next to about 2 * window others, and vector a is the smaller ordinal 
+     * of a pair with a fraction (n - a) / n of them, so the pairs filed under ordinals [0, x) are a fraction 1 - (1 - x / n)^2 of the total. 
+     * Partition k ends where that reaches k / numPartitions.
+     */
+    protected int partitionEnd(int k, int numPartitions)
+    {
+        if(k >= numPartitions) return numVectors;
+        return (int) Math.ceil(numVectors * (1 - Math.sqrt(1 - (double) k / numPartitions)));
+    }
+
+    /**
+     * Find the pairs and write them to a pair file
+     * @param output
+     * @return the number of pairs written
+     * @throws IOException
+     * @throws OutputAlreadyExistsException
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if the memory limit cannot hold the candidate pairs of even a single vector
+     */
+    public long join(File output) throws IOException, OutputAlreadyExistsException, InterruptedException
+    {
+        if(output.exists()) throw new OutputAlreadyExistsException(output.getAbsolutePath());
+        // each pair takes a key, and then a key and a score if it passes
+        long maxPairs = Math.max(1, Math.min(Integer.MAX_VALUE - 8, maxMemoryBytes / 24));
+        long totalPairs = pairsPerList() * numPermutations;
+        // plan on filling partitions 7/8 full, so that few of them have to be split
+        long plannedPairs = Math.max(1, maxPairs / 8 * 7);
+        int numPartitions = (int) Math.min(numVectors, Math.max(1, (totalPairs + plannedPairs - 1) / plannedPairs));
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), streamBufferBytes));
+        long numWritten = 0;
+        BlockingThreadPool pool = new BlockingThreadPool(numThreads, 2 * numThreads);
+        try
+        {
+            out.writeInt(magic);
+            out.writeLong(0);
+            keys = new long[(int) Math.min(maxPairs, Math.max(1, totalPairs))];
+            int k = 1;
+            int lo = 0;
+            int hi = partitionEnd(k, numPartitions);
+            while(lo < numVectors)
+            {
+                int numCollected = collect(lo, hi);
+                if(numCollected < 0)
+                {
+                    if(hi - lo == 1) throw new IllegalArgumentException("Memory for " + keys.length + " candidate pairs cannot hold those of ordinal " + lo + ": allow more memory");
+                    hi = lo + (hi - lo) / 2;
+                    continue;
+                }
+                numWritten += score(unique(keys, numCollected), pool, out);
+                lo = hi;
+                while(k < numPartitions && partitionEnd(k, numPartitions) <= lo) k++;
+                hi = partitionEnd(k, numPartitions);
+            }
+        }
+        finally
+        {
+            keys = null;
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            out.close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(output, "rw");
+        try
+        {
+            raf.seek(4);
+            raf.writeLong(numWritten);
+        }
+        finally
+        {
+            raf.close();
+        }
+        return numWritten;
+    }
+
+    /**
+     * Read every list through, collecting the pairs whose smaller ordinal is in [lo, hi) into keys
+     * @return the number of pairs collected, or -1 if they do not fit in keys
+     */
+    protected int collect(int lo, int hi) throws IOException
+    {
+        int n = 0;
+        int [] block = new int[listBlock + window];
+        for(int p = 0; p < numPermutations; p++)
+        {
+            IntStoreReader list = permutationLists[p];
+            long length = list.length();
+            for(long start = 0; start < length; start += listBlock)
+            {
+                // each block overlaps the next by the window, so every pair starting in this block is in it
+                long end = Math.min(length, start + listBlock + window);
+                list.get(start, end, block, 0);
+                for(int i = 0, max = (int) (Math.min(length, start + listBlock) - start); i < max; i++)
+                {
+                    int a = block[i];
+                    for(int j = i + 1, last = (int) Math.min(end - start, i + window + 1L); j < last; j++)
+                    {
+                        int b = block[j];
+                        int small = a < b ? a : b;
+                        if(small < lo || small >= hi) continue;
+                        if(n == keys.length) return -1;
+                        keys[n++] = ((long) small << 32) | (a < b ? b : a);
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Sort the first n keys, and remove the duplicates
+     * @return the number of distinct keys, which are left at the start of the array
+     */
+    protected static int unique(long [] keys, int n)
+    {
+        if(n == 0) return 0;
+        Arrays.sort(keys, 0, n);
+        int retval = 1;
+        for(int i = 1; i < n; i++)
+        {
+            if(keys[i] != keys[retval - 1]) keys[retval++] = keys[i];
+        }
+        return retval;
+    }
+
+    /**
+     * Score the first numKeys keys, which are sorted, in parallel chunks, and write those which pass, in key order
+     * @return the number of pairs written
+     */
+    protected long score(int numKeys, BlockingThreadPool pool, DataOutputStream out) throws IOException, InterruptedException
+    {
+        int numChunks = (numKeys + scoreChunk - 1) / scoreChunk;
+        ScoreTask [] tasks = new ScoreTask[numChunks];
+        CountDownLatch scored = new CountDownLatch(numChunks);
+        AtomicReference<Exception> failed = new AtomicReference<Exception>();
+        for(int c = 0; c < numChunks; c++)
+        {
+            tasks[c] = new ScoreTask(keys, c * scoreChunk, Math.min(numKeys, (c + 1) * scoreChunk), scored, failed);
+            pool.execute(tasks[c]);
+        }
+        scored.await();
+        if(failed.get() != null) throw new IOException("Scoring failed", failed.get());
+        long retval = 0;
+        for(ScoreTask task : tasks)
+        {
+            for(int i = 0; i < task.numPassed; i++)
+            {
+                long key = task.passed[i];
+                out.writeLong(reader.id((int) (key >>> 32)));
+                out.writeLong(reader.id((int) key));
+                out.writeDouble(task.scores[i]);
+            }
+            retval += task.numPassed;
+        }
+        return retval;
+    }
+
+    protected class ScoreTask implements Runnable
+    {
+        final long [] keys;
+        final int from;
+        final int to;
+        final CountDownLatch scored;
+        final AtomicReference<Exception> failed;
+        long [] passed;
+        double [] scores;
+        int numPassed;
+
+        ScoreTask(long [] keys, int from, int to, CountDownLatch scored, AtomicReference<Exception> failed)
+        {
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.scored = scored;
+            this.failed = failed;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                passed = new long[64];
+                scores = new double[64];
+                double [] x = new double[rawVectors.dimension()];
+                double [] y = new double[rawVectors.dimension()];
+                int numWords = signatureMatrix == null ? 0 : signatureMatrix.numWords();
+                int current = -1;
+                for(int i = from; i < to; i++)
+                {
+                    long key = keys[i];
+                    int a = (int) (key >>> 32);
+                    int b = (int) key;
+                    if(maxHammingDistance >= 0 && signatureMatrix.hammingDistance(b, signatureMatrix.words(), a * numWords) > maxHammingDistance) continue;
+                    // keys are sorted, so each vector's pairs with larger ordinals come together
+                    if(a != current) rawVectors.get(current = a, x);
+                    double score = scoreThresh.score(x, rawVectors.get(b, y));
+                    if(!scoreThresh.threshold(score)) continue;
+                    if(numPassed == passed.length)
+                    {
+                        passed = Arrays.copyOf(passed, 2 * numPassed);
+                        scores = Arrays.copyOf(scores, 2 * numPassed);
+                    }
+                    passed[numPassed] = key;
+                    scores[numPassed++] = score;
+                }
+            }
+            catch(Exception e)
+            {
+                failed.compareAndSet(null, e);
+            }
+            finally
+            {
+                scored.countDown();
+            }
+        }
+    }
+
+    /**
+     * Sequential reader for the pair files written by AllPairsJoin
+     */
+    public static class PairReader implements Closeable
+    {
+        protected final DataInputStream in;
+        protected final long size;
+        protected long remaining;
+        protected long id1;
+        protected long id2;
+        protected double score;
+
+        public PairReader(File file) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), streamBufferBytes));
+            if(in.readInt() != magic)
+            {
+                in.close();
+                throw new IOException("Not a pair file: " + file.getAbsolutePath());
+            }
+            size = remaining = in.readLong();
+        }
+
+        /**
+         * @return the number of pairs in the file
+         */
+        public long size() {return size;}
+
+        /**
+         * Advance to the next pair
+         * @return false if there are no more
+         * @throws IOException
+         */
+        public boolean next() throws IOException
+        {
+            if(remaining == 0) return false;
+            id1 = in.readLong();
+            id2 = in.readLong();
+            score = in.readDouble();
+            remaining--;
+            return true;
+        }
+
+        public long id1() {return id1;}
+
+        public long id2() {return id2;}
+
+        public double score() {return score;}
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Find all pairs above a similarity threshold in an index
+     * @param args
+     * <br>-idx directory containing search index
+     * <br>-o output pair file
+     * <br>-w window: entries at most this far apart in a permutation list are candidate pairs
+     * <br>-p number of permutations to use
+     * <br>-t min cosine similarity, or max distance with -l2
+     * <br>-l2 threshold on Euclidean distance rather than cosine similarity (optional)
+     * <br>-hd max Hamming distance between the signatures of a pair for it to be scored (optional)
+     * <br>-threads number of threads to score with (optional, default 1)
+     * <br>-mem MB of memory for candidate pairs (optional)
+     * @throws Exception
+     */
+    public static void main(String [] args) throws Exception
+    {
+        CommandLine cmd = new SimpleCli()
+        .addOption(new RequiredOption("idx", true, "directory containing index"))
+        .addOption(new RequiredOption("o", true, "output pair file"))
+        .addOption(new RequiredOption("w", true, "entries at most this far apart in a permutation list are candidate pairs"))
+        .addOption(new RequiredOption("p", true, "number of permutations to use"))
+        .addOption(new RequiredOption("t", true, "min cosine similarity, or max Euclidean distance with -l2"))
+        .addOption(new Option("l2", false, "threshold on Euclidean distance rather than cosine similarity"))
+        .addOption(new Option("hd", true, "max Hamming distance between the signatures of a pair for it to be scored"))
+        .addOption(new Option("threads", true, "number of threads to score with"))
+        .addOption(new Option("mem", true, "MB of memory for candidate pairs")).parse(args);
+
+        double threshold = Double.parseDouble(cmd.getOptionValue("t"));
+        ScoreThreshold thresh = cmd.hasOption("l2") ? new L2Threshold(threshold) : new CosineSimilarityThreshold(threshold);
+        AllPairsJoin join = new AllPairsJoin(cmd.getOptionValue("idx"), Integer.parseInt(cmd.getOptionValue("w")), Integer.parseInt(cmd.getOptionValue("p")), thresh);
+        long maxMemoryBytes = cmd.hasOption("mem") ? Long.parseLong(cmd.getOptionValue("mem")) << 20 : join.maxMemoryBytes;
+        join.setParallelism(Integer.parseInt(cmd.getOptionValue("threads", "1")), maxMemoryBytes);
+        join.setHammingFilter(Integer.parseInt(cmd.getOptionValue("hd", "-1")));
+        long start = System.currentTimeMillis();
+        long numPairs = join.join(new File(cmd.getOptionValue("o")));
+        System.out.println("Wrote " + numPairs + " pairs in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
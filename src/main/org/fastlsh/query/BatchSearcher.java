@@ -0,0 +1,551 @@
+package org.fastlsh.query;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fastlsh.index.InvalidIndexException;
+import org.fastlsh.index.PositionTable;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.BlockingThreadPool;
+import org.fastlsh.util.IntStoreReader;
+import org.fastlsh.util.Neighbor;
+
+/**
+ * Runs a batch of id queries against a NearestNeighborSearcher on a pool of worker threads, streaming the results to a writer as they come in.
+ * Ids are read from the input a chunk at a time, each chunk is searched by one worker with its own SearchContext, and the chunk's results are handed
+ * to a single writer thread through a bounded queue. So memory use depends on the number of threads and the chunk size, not on the number of queries.
+ *
+ * <br>Results are written in the order chunks finish, not input order, in the text format of NearestNeighborSearcher.main(): each query id, a line
+ * of dashes, a line of neighbor id,score for each neighbor, then a blank line. Ids which are not in the index are skipped.
+ *
+ * <br>Fixed beam batches can also be locality ordered (see setLocalityOrdered()), which turns each query's random reads of the permutation lists
+ * into one sequential sweep of each list per block of queries.
+ *
+ * <br>The searcher must be set up (filters, bounded scoring, adaptive beam) before the batch is run, and not changed while it runs.
+ */
+public class BatchSearcher
+{
+    /** Default number of query ids per task */
+    public static final int defaultChunkSize = 256;
+
+    protected final NearestNeighborSearcher searcher;
+    protected final int beamRadius;
+    protected final int numPermutations;
+    protected final int maxNeighbors;
+    protected final Comparator<Neighbor> comparator;
+    protected final ScoreThreshold scoreThresh;
+    protected boolean adaptive;
+    protected int chunkSize = defaultChunkSize;
+    protected int sweepSize;
+
+    protected final ThreadLocal<SearchContext> contexts = new ThreadLocal<SearchContext>()
+    {
+        @Override
+        protected SearchContext initialValue()
+        {
+            return searcher.createContext();
+        }
+    };
+
+    /**
+     * @param searcher
+     * @param beamRadius see NearestNeighborSearcher.getScoredNeighbors(): ignored by adaptive searches
+     * @param numPermutations
+     * @param maxNeighbors
+     * @param comparator
+     * @param scoreThresh
+     */
+    public BatchSearcher(NearestNeighborSearcher searcher, int beamRadius, int numPermutations, int maxNeighbors,
+            Comparator<Neighbor> comparator, ScoreThreshold scoreThresh)
+    {
+        this.searcher = searcher;
+        this.beamRadius = beamRadius;
+        this.numPermutations = numPermutations;
+        this.maxNeighbors = maxNeighbors;
+        this.comparator = comparator;
+        this.scoreThresh = scoreThresh;
+    }
+
+    /**
+     * @param adaptive true to search with NearestNeighborSearcher.getAdaptiveNeighbors(), as set up by its setAdaptiveBeam()
+     */
+    public void setAdaptive(boolean adaptive)
+    {
+        if(adaptive && sweepSize > 0) throw new IllegalArgumentException("Adaptive searches cannot be swept");
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @param chunkSize number of query ids given to a worker at once
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if(chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive, got " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Rather than searching each query's beams in input order, which reads each permutation list at random places, read the input sweepSize
+     * queries at a time and sweep each list once for all of them (see Sweep). Only for fixed beam searches.
+     * @param sweepSize number of queries to search together, or 0 to search them in input order
+     * @throws IllegalArgumentException if the slots for sweepSize queries (see Sweep) would take more than half of the max heap
+     */
+    public void setLocalityOrdered(int sweepSize)
+    {
+        if(sweepSize < 0) throw new IllegalArgumentException("Sweep size must be non-negative, got " + sweepSize);
+        if(sweepSize > 0 && adaptive) throw new IllegalArgumentException("Adaptive searches cannot be swept");
+        long slotInts = (long) sweepSize * numPermutations * 2 * beamRadius;
+        long bytes = 4 * slotInts + sweepBytesPerQuery(numPermutations) * sweepSize;
+        if(slotInts > Integer.MAX_VALUE - 8 || bytes > Runtime.getRuntime().maxMemory() / 2)
+        {
+            throw new IllegalArgumentException("A sweep of " + sweepSize + " queries over " + numPermutations + " lists with beam radius " + beamRadius 
+                    + " needs " + bytes + " bytes, more than half the max heap: use a smaller sweep size");
+        }
+        this.sweepSize = sweepSize;
+    }
+
+    /**
+     * Search for each of the ids in the input, one per line, and write the results out
+     * @param ids
+     * @param out
+     * @param numThreads number of worker threads
+     * @return the number of ids which were found in the index
+     * @throws IOException if reading, searching or writing fails, or a line is not an id. Reading stops at the first failure.
+     * @throws InterruptedException
+     */
+    public long search(BufferedReader ids, Writer out, int numThreads) throws IOException, InterruptedException
+    {
+        // a chunk holds its place in the pool until the writer's queue takes it, so the queue never needs more room than the pool allows
+        int maxQueued = 2 * numThreads;
+        BlockingQueue<Chunk> done = new ArrayBlockingQueue<Chunk>(maxQueued + 1);
+        ResultWriter writer = new ResultWriter(done, out);
+        Thread writerThread = new Thread(writer, "BatchSearcher writer");
+        writerThread.start();
+        BlockingThreadPool pool = new BlockingThreadPool(numThreads, maxQueued);
+        AtomicReference<Exception> failed = new AtomicReference<Exception>();
+        try
+        {
+            if(sweepSize > 0) searchBySweeps(ids, pool, done, failed);
+            else searchInOrder(ids, pool, done, failed);
+        }
+        finally
+        {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            done.put(Chunk.end);
+            writerThread.join();
+        }
+        if(failed.get() != null) throw new IOException("Search failed", failed.get());
+        if(writer.error != null) throw writer.error;
+        return writer.numFound;
+    }
+
+    protected void searchInOrder(BufferedReader ids, BlockingThreadPool pool, BlockingQueue<Chunk> done, AtomicReference<Exception> failed) throws IOException
+    {
+        Chunk chunk = new Chunk(chunkSize);
+        String line;
+        long lineNumber = 0;
+        while((line = ids.readLine()) != null && failed.get() == null)
+        {
+            lineNumber++;
+            line = line.trim();
+            if(line.length() == 0) continue;
+            chunk.queryIds[chunk.numQueries++] = parseId(line, lineNumber);
+            if(chunk.numQueries == chunkSize)
+            {
+                pool.execute(new SearchTask(chunk, done, failed));
+                chunk = new Chunk(chunkSize);
+            }
+        }
+        if(chunk.numQueries > 0 && failed.get() == null) pool.execute(new SearchTask(chunk, done, failed));
+    }
+
+    /**
+     * @param line a trimmed, non-empty line of the input
+     * @param lineNumber
+     * @return the id on the line
+     * @throws IOException if the line is not an id
+     */
+    protected static long parseId(String line, long lineNumber) throws IOException
+    {
+        try
+        {
+            return Long.parseLong(line);
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IOException("Line " + lineNumber + " of the query ids is not an id: " + line, e);
+        }
+    }
+
+    /**
+     * Read the ids sweepSize at a time, and search each sweep's queries together. Ids which are not in the index are dropped as they are read.
+     */
+    protected void searchBySweeps(BufferedReader ids, BlockingThreadPool pool, BlockingQueue<Chunk> done, AtomicReference<Exception> failed) 
+            throws IOException, InterruptedException
+    {
+        if(numPermutations > searcher.maxPermutations)
+        {
+            throw new IOException("Search failed", new InvalidIndexException(searcher.reader.rootDir, "Max  available permutations is: " + searcher.maxPermutations + ". " + numPermutations + " were requested"));
+        }
+        Sweep sweep = new Sweep(sweepSize);
+        String line;
+        long lineNumber = 0;
+        while((line = ids.readLine()) != null && failed.get() == null)
+        {
+            lineNumber++;
+            line = line.trim();
+            if(line.length() == 0) continue;
+            long id = parseId(line, lineNumber);
+            int ordinal = searcher.reader.ordinal(id);
+            if(ordinal < 0) continue;
+            sweep.queryIds[sweep.numQueries] = id;
+            sweep.ordinals[sweep.numQueries++] = ordinal;
+            if(sweep.numQueries == sweepSize) sweep.run(pool, done, failed);
+        }
+        if(sweep.numQueries > 0 && failed.get() == null) sweep.run(pool, done, failed);
+    }
+
+    /**
+     * @return the bytes a Sweep needs per query, apart from its beams
+     */
+    protected static long sweepBytesPerQuery(int numPermutations)
+    {
+        // query id, ordinal, and per list a beam size, a beam start and a sort key
+        return 12 + numPermutations * 16L;
+    }
+
+    /**
+     * A block of queries which are searched together. Each permutation list is swept once: the queries are sorted by their positions in the list, 
+     * and a window of the list slides forward over their beams, so each entry is read at most once, in order, however many beams it falls in. 
+     * Each query's beam in each list is copied out of the window into its own slot. Once every list has been swept, the queries' candidates are
+     * replayed from their slots in the order getNeighborOrdinals() would have found them, and scored, so the results are the same.
+     *
+     * <br>Slots take 8 * beamRadius bytes per query per permutation. Each list has its own scratch space for sorting the queries and for its
+     * window, allocated once with the sweep, since the lists are swept in parallel.
+     */
+    protected class Sweep
+    {
+        final long [] queryIds;
+        final int [] ordinals;
+        int numQueries;
+        final int width = 2 * beamRadius;
+        /** The beam of query q in list p is in slot q * numPermutations + p: beamSizes[slot] ordinals at beams[slot * width], the first of them at beamStarts[slot] from the query's position */
+        final int [] beams;
+        final int [] beamSizes;
+        final int [] beamStarts;
+        /** Per list: the queries sorted by position, and the window */
+        final long [][] orders;
+        final int [][] windows;
+
+        Sweep(int size)
+        {
+            queryIds = new long[size];
+            ordinals = new int[size];
+            beams = new int[size * numPermutations * width];
+            beamSizes = new int[size * numPermutations];
+            beamStarts = new int[size * numPermutations];
+            orders = new long[numPermutations][size];
+            windows = new int[numPermutations][width];
+        }
+
+        /**
+         * Sweep every list, then score the queries, a chunk per task: waits for both, and leaves the sweep empty
+         */
+        void run(BlockingThreadPool pool, BlockingQueue<Chunk> done, AtomicReference<Exception> failed) throws InterruptedException
+        {
+            CountDownLatch swept = new CountDownLatch(numPermutations);
+            for(int p = 0; p < numPermutations; p++) pool.execute(new ListSweepTask(this, p, swept, failed));
+            swept.await();
+            if(failed.get() == null)
+            {
+                CountDownLatch scored = new CountDownLatch((numQueries + chunkSize - 1) / chunkSize);
+                for(int from = 0; from < numQueries; from += chunkSize)
+                {
+                    pool.execute(new SweepScoreTask(this, from, Math.min(numQueries, from + chunkSize), scored, done, failed));
+                }
+                scored.await();
+            }
+            numQueries = 0;
+        }
+
+        /**
+         * Fill in the slots of every query for list p
+         */
+        void sweep(int p) throws IOException
+        {
+            IntStoreReader list = searcher.permutationLists[p];
+            PositionTable positions = searcher.reader.permutationPositions;
+            long length = list.length();
+            // sort the queries by position, with the query's index in the low bits
+            long [] order = orders[p];
+            for(int q = 0; q < numQueries; q++) order[q] = ((long) positions.get(ordinals[q], p) << 32) | q;
+            Arrays.sort(order, 0, numQueries);
+            int [] window = windows[p];
+            long windowStart = 0, windowEnd = 0;
+            for(int i = 0; i < numQueries; i++)
+            {
+                long key = order[i];
+                int q = (int) key;
+                long pos = key >>> 32;
+                long min = Math.max(0, pos - beamRadius);
+                long max = Math.min(length, pos + beamRadius);
+                // beams only move forward: drop what is behind this one, and read what is past the end of the window
+                if(min >= windowEnd) windowStart = windowEnd = min;
+                else if(min > windowStart)
+                {
+                    System.arraycopy(window, (int) (min - windowStart), window, 0, (int) (windowEnd - min));
+                    windowStart = min;
+                }
+                if(max > windowEnd)
+                {
+                    list.get(windowEnd, max, window, (int) (windowEnd - windowStart));
+                    windowEnd = max;
+                }
+                int slot = q * numPermutations + p;
+                System.arraycopy(window, (int) (min - windowStart), beams, slot * width, (int) (max - min));
+                beamSizes[slot] = (int) (max - min);
+                beamStarts[slot] = (int) (min - pos);
+            }
+        }
+
+        /**
+         * Put query q's candidates in a context, as getNeighborOrdinals() would have
+         */
+        void replay(int q, SearchContext context)
+        {
+            context.clearCandidates(beamRadius, numPermutations);
+            for(int p = 0; p < numPermutations; p++)
+            {
+                int slot = q * numPermutations + p;
+                for(int i = 0, offset = slot * width, start = beamStarts[slot]; i < beamSizes[slot]; i++) context.addCandidate(beams[offset + i], Math.abs(start + i));
+            }
+        }
+    }
+
+    protected class ListSweepTask implements Runnable
+    {
+        final Sweep sweep;
+        final int permutation;
+        final CountDownLatch swept;
+        final AtomicReference<Exception> failed;
+
+        ListSweepTask(Sweep sweep, int permutation, CountDownLatch swept, AtomicReference<Exception> failed)
+        {
+            this.sweep = sweep;
+            this.permutation = permutation;
+            this.swept = swept;
+            this.failed = failed;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                sweep.sweep(permutation);
+            }
+            catch(Exception e)
+            {
+                failed.compareAndSet(null, e);
+            }
+            finally
+            {
+                swept.countDown();
+            }
+        }
+    }
+
+    protected class SweepScoreTask implements Runnable
+    {
+        final Sweep sweep;
+        final int from;
+        final int to;
+        final CountDownLatch scored;
+        final BlockingQueue<Chunk> done;
+        final AtomicReference<Exception> failed;
+
+        SweepScoreTask(Sweep sweep, int from, int to, CountDownLatch scored, BlockingQueue<Chunk> done, AtomicReference<Exception> failed)
+        {
+            this.sweep = sweep;
+            this.from = from;
+            this.to = to;
+            this.scored = scored;
+            this.done = done;
+            this.failed = failed;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                SearchContext context = contexts.get();
+                Chunk chunk = new Chunk(to - from);
+                for(int q = from; q < to; q++)
+                {
+                    sweep.replay(q, context);
+                    int count = searcher.score(sweep.ordinals[q], maxNeighbors, comparator, scoreThresh, context);
+                    chunk.queryIds[chunk.numQueries] = sweep.queryIds[q];
+                    chunk.counts[chunk.numQueries++] = count;
+                    if(count > 0) chunk.add(context, count);
+                }
+                done.put(chunk);
+            }
+            catch(Exception e)
+            {
+                failed.compareAndSet(null, e);
+            }
+            finally
+            {
+                scored.countDown();
+            }
+        }
+    }
+
+    /**
+     * The query ids of a chunk, and once it has been searched, their results: query i has counts[i] neighbors, which follow those of the queries before it
+     */
+    protected static class Chunk
+    {
+        static final Chunk end = new Chunk(0);
+
+        final long [] queryIds;
+        final int [] counts;
+        int numQueries;
+        long [] ids = new long[0];
+        double [] scores = new double[0];
+        int numResults;
+
+        Chunk(int size)
+        {
+            queryIds = new long[size];
+            counts = new int[size];
+        }
+
+        void add(SearchContext context, int count)
+        {
+            if(numResults + count > ids.length)
+            {
+                int capacity = Math.max(numResults + count, 2 * ids.length);
+                ids = Arrays.copyOf(ids, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            System.arraycopy(context.resultIds, 0, ids, numResults, count);
+            System.arraycopy(context.resultScores, 0, scores, numResults, count);
+            numResults += count;
+        }
+    }
+
+    protected class SearchTask implements Runnable
+    {
+        final Chunk chunk;
+        final BlockingQueue<Chunk> done;
+        final AtomicReference<Exception> failed;
+
+        SearchTask(Chunk chunk, BlockingQueue<Chunk> done, AtomicReference<Exception> failed)
+        {
+            this.chunk = chunk;
+            this.done = done;
+            this.failed = failed;
+        }
+
+        @Override
+        public void run()
+        {
+            int i = 0;
+            try
+            {
+                SearchContext context = contexts.get();
+                for(; i < chunk.numQueries; i++)
+                {
+                    int count = search(chunk.queryIds[i], context);
+                    chunk.counts[i] = count;
+                    if(count > 0) chunk.add(context, count);
+                }
+                done.put(chunk);
+            }
+            catch(Exception e)
+            {
+                // the whole batch fails, so the chunk's results are not written: say which query it stopped at
+                String query = i < chunk.numQueries ? "id " + chunk.queryIds[i] : "a chunk";
+                failed.compareAndSet(null, new IOException("Search for " + query + " failed", e));
+            }
+        }
+    }
+
+    /**
+     * @return the number of neighbors of id, left in the context, or -1 if id is not in the index
+     */
+    protected int search(long id, SearchContext context) throws InvalidIndexException, IOException
+    {
+        if(adaptive) return searcher.getAdaptiveNeighbors(id, numPermutations, maxNeighbors, comparator, scoreThresh, context);
+        return searcher.getScoredNeighbors(id, beamRadius, numPermutations, maxNeighbors, comparator, scoreThresh, context);
+    }
+
+    /**
+     * Writes chunks as they come off the queue, until the end marker. After an error it keeps taking chunks, so the workers never block.
+     */
+    protected static class ResultWriter implements Runnable
+    {
+        final BlockingQueue<Chunk> done;
+        final Writer out;
+        long numFound;
+        IOException error;
+
+        ResultWriter(BlockingQueue<Chunk> done, Writer out)
+        {
+            this.done = done;
+            this.out = out;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Chunk chunk;
+                while((chunk = done.take()) != Chunk.end)
+                {
+                    if(error != null) continue;
+                    try
+                    {
+                        write(chunk);
+                    }
+                    catch(IOException e)
+                    {
+                        error = e;
+                    }
+                }
+                if(error == null) out.flush();
+            }
+            catch(InterruptedException e)
+            {
+                error = new IOException("Interrupted while writing results", e);
+            }
+            catch(IOException e)
+            {
+                error = e;
+            }
+        }
+
+        void write(Chunk chunk) throws IOException
+        {
+            for(int i = 0, r = 0; i < chunk.numQueries; i++)
+            {
+                if(chunk.counts[i] < 0) continue;
+                numFound++;
+                out.write(chunk.queryIds[i] + "\n--------------\n");
+                for(int max = r + chunk.counts[i]; r < max; r++) out.write(chunk.ids[r] + "," + chunk.scores[r] + "\n");
+                out.write("\n\n");
+            }
+        }
+    }
+}
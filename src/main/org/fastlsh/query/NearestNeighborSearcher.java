@@ -15,13 +15,9 @@
 
 package org.fastlsh.query;
 
-import gnu.trove.iterator.TLongObjectIterator;
-import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.map.hash.TLongObjectHashMap;
-import gnu.trove.set.hash.TLongHashSet;
-
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -31,14 +27,25 @@ import java.util.Arrays;
 import java.util.Comparator;
 
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.fastlsh.hash.HashFamily;
+import org.fastlsh.index.Constants;
 import org.fastlsh.index.IndexReader;
 import org.fastlsh.index.InvalidIndexException;
+import org.fastlsh.index.PositionTable;
+import org.fastlsh.index.SignatureStoreReader;
+import org.fastlsh.index.VectorStoreReader;
+import org.fastlsh.threshold.BoundedScoreThreshold;
 import org.fastlsh.threshold.L2Threshold;
 import org.fastlsh.threshold.ScoreThreshold;
 import org.fastlsh.util.Neighbor;
-import org.fastlsh.util.LongStoreReaderDisk;
+import org.fastlsh.util.IntStoreReader;
+import org.fastlsh.util.MathFns;
+import org.fastlsh.util.Permuter;
 import org.fastlsh.util.RequiredOption;
+import org.fastlsh.util.SignatureMatrix;
 import org.fastlsh.util.SimpleCli;
+import org.fastlsh.util.TopK;
 
 /**
  * Class for doing approximate nearest neighbor search on and index built with one of the indexer classes. 
@@ -48,13 +55,45 @@ import org.fastlsh.util.SimpleCli;
  * <br>For an example of use of this class, see the test in 
  * org.fastlsh.index.TestSmallEnd2End in the test source tree
  *
+ * <br>Indices with a packed signature store (see SignatureStoreWriter) can also be searched with vectors which are not in the index: the query
+ * is hashed with the index's hash family, and its position in each permutation list is found by binary search, comparing it with the
+ * signatures in the list, permuted on the fly by the permutations regenerated from the index's seed.
+ *
+ * <br>Once it has been set up, a searcher can be shared by any number of threads, each searching with its own SearchContext (see BatchSearcher).
+ *
  */
 public class NearestNeighborSearcher
 {
+    /** Number of elements of a candidate's vector read and scored at a time by bounded scoring: a multiple of four */
+    protected static final int scoreBlock = 64;
+
     IndexReader reader;
-    TLongObjectHashMap<double []> rawVectorMap;
-    LongStoreReaderDisk [] permutationLists;
+    VectorStoreReader rawVectors;
+    IntStoreReader [] permutationLists;
     int maxPermutations;
+    HashFamily hashFamily;
+    SignatureStoreReader signatures;
+    Permuter [] permuters;
+    SignatureMatrix signatureMatrix;
+    int maxHammingDistance = -1;
+    int maxVoted = -1;
+    boolean voteByDistance;
+    /** When bounded scoring is on, upper bounds on the norms of the suffixes of the vectors which start at each multiple of scoreBlock, by ordinal */
+    float [] suffixNorms;
+    int numScoreBlocks;
+    boolean boundedScoring;
+    int adaptiveChunkSize = -1;
+    int adaptiveMaxRadius;
+    int adaptiveMaxHammingDistance;
+    int adaptiveStableSteps;
+    final ThreadLocal<SearchContext> contexts = new ThreadLocal<SearchContext>()
+    {
+        @Override
+        protected SearchContext initialValue()
+        {
+            return createContext();
+        }
+    };
     
     /**
      * Create a searcher based on the output directory of one of our indexers
@@ -71,11 +110,134 @@ public class NearestNeighborSearcher
         reader.initializePermutationIndex();
         reader.initializePermutationLists();
         reader.initializeRawVecs();
-        rawVectorMap = reader.rawVectorMap;
+        rawVectors = reader.rawVectors;
         maxPermutations = reader.options.numPermutations;
         permutationLists = reader.permutationLists;
+        if(new File(indexDir, Constants.signatureStore).exists())
+        {
+            reader.initializeSignatureStore();
+            reader.initializePermuters();
+            signatures = reader.signatureStore;
+            permuters = reader.permuters;
+            hashFamily = reader.options.hashFamily;
+        }
     }
     
+    /**
+     * Create scratch space for searching this index from one thread. Methods which take a SearchContext allocate nothing once the context
+     * has grown to fit the queries it is used for; the other methods use a context kept per thread.
+     * @return
+     */
+    public SearchContext createContext()
+    {
+        return new SearchContext(reader.options.vectorDimension, (reader.options.numHashes + 63) >>> 6);
+    }
+
+    /**
+     * Only exact score candidates whose signatures differ from the query's in at most maxDistance bits. The fraction of bits in which two
+     * cosine hash signatures differ estimates the angle between the vectors divided by pi, so this cheaply drops candidates whose estimated
+     * angle is too big to pass a similarity threshold (see maxHammingDistance(double, int, double)), before their vectors are read.
+     * The first call which turns the filter on reads all of the signatures into memory.
+     * @param maxDistance max number of differing bits, or a negative number to turn the filter off
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public void setHammingFilter(int maxDistance) throws InvalidIndexException, IOException
+    {
+        if(maxDistance >= 0) loadSignatureMatrix();
+        maxHammingDistance = maxDistance;
+    }
+
+    private void loadSignatureMatrix() throws InvalidIndexException, IOException
+    {
+        if(signatureMatrix != null) return;
+        reader.initializeSignatureMatrix();
+        signatureMatrix = reader.signatureMatrix;
+    }
+
+    /**
+     * The Hamming distance filter to use with a cosine similarity threshold. Signatures of vectors at angle theta differ in each bit with
+     * probability p = theta / pi, so the bound is numBits * p plus numStdDevs standard deviations of the binomial(numBits, p) distribution.
+     * @param minCosine minimum cosine similarity which will be kept
+     * @param numBits number of bits in the signatures
+     * @param numStdDevs slack for the variance of the estimate: larger values drop fewer true neighbors, and filter less
+     * @return
+     */
+    public static int maxHammingDistance(double minCosine, int numBits, double numStdDevs)
+    {
+        double p = Math.acos(Math.max(-1.0, Math.min(1.0, minCosine))) / Math.PI;
+        double bound = numBits * p + numStdDevs * Math.sqrt(numBits * p * (1 - p));
+        return (int) Math.min(numBits, Math.ceil(bound));
+    }
+
+    /**
+     * Only exact score the maxScored candidates found in the most permutation beams. Candidates near the query in many permutations are much more
+     * likely to be true neighbors, so this trades a little recall for scoring far fewer candidates. Ties are broken by the candidates' total
+     * distance from the query's position in the lists if byDistance is set, and then by ordinal.
+     * @param maxScored max number of candidates to score, or a negative number to score them all
+     * @param byDistance
+     */
+    public void setVoteFilter(int maxScored, boolean byDistance)
+    {
+        maxVoted = maxScored;
+        voteByDistance = byDistance;
+    }
+
+    /**
+     * Score candidates a block of scoreBlock elements at a time, reading only as much of each candidate's vector as it takes to prove that it cannot
+     * pass the threshold, or cannot beat the worst of the best neighbors found so far (see BoundedScoreThreshold.cannotPass()). Results are identical 
+     * to those of full scoring, and thresholds which are not BoundedScoreThresholds are always scored in full. The first call which turns bounded scoring on reads all of the vectors once, to compute the norms of their
+     * blocks' suffixes, which take 4 bytes per block per vector.
+     * @param bounded
+     */
+    public void setBoundedScoring(boolean bounded)
+    {
+        if(bounded && suffixNorms == null)
+        {
+            int dimension = rawVectors.dimension();
+            int numBlocks = (dimension + scoreBlock - 1) / scoreBlock;
+            if(rawVectors.size() * numBlocks > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many vectors for bounded scoring: " + rawVectors.size());
+            float [] tmp = new float[(int) rawVectors.size() * numBlocks];
+            double [] vec = new double[dimension];
+            for(int row = 0, base = 0; base < tmp.length; row++, base += numBlocks)
+            {
+                rawVectors.get(row, vec);
+                double sum = 0;
+                for(int i = dimension - 1; i >= 0; i--)
+                {
+                    sum += vec[i] * vec[i];
+                    if(i % scoreBlock == 0) tmp[base + i / scoreBlock] = Math.nextUp((float) Math.sqrt(sum));
+                }
+            }
+            numScoreBlocks = numBlocks;
+            suffixNorms = tmp;
+        }
+        boundedScoring = bounded;
+    }
+
+    /**
+     * Settings for getAdaptiveNeighbors(), which rather than reading a fixed beam from each permutation list, walks outwards from the query's 
+     * position in each list a chunk at a time, on both sides. A side of a list is done once a whole chunk of its signatures differ from the query's
+     * in more than maxHammingDistance bits (so dense regions of the lists stop early), or once it reaches maxRadius or the end of the list (so sparse
+     * ones go further than a fixed beam would). The whole search stops once the top k has been full, and unchanged, for stableSteps steps.
+     * The first call reads all of the signatures into memory.
+     * @param chunkSize entries read from each side of each list per step
+     * @param maxRadius max distance from the query's position to walk in any list
+     * @param maxHammingDistance only entries whose signatures differ from the query's in at most this many bits become candidates
+     * @param stableSteps
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public void setAdaptiveBeam(int chunkSize, int maxRadius, int maxHammingDistance, int stableSteps) throws InvalidIndexException, IOException
+    {
+        if(chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive, got " + chunkSize);
+        loadSignatureMatrix();
+        adaptiveChunkSize = chunkSize;
+        adaptiveMaxRadius = maxRadius;
+        adaptiveMaxHammingDistance = maxHammingDistance;
+        adaptiveStableSteps = stableSteps;
+    }
+
     /**
      * Get all similar items within a particular distance in each of the first numPermutations permutations list. You can tune the number returned by altering either the beamwidth
      * or the number of permutations used. Note that numPermutatiosn must be <= the number of permutation lists written out by the indexer: this class does not create new permutation lists
@@ -87,35 +249,123 @@ public class NearestNeighborSearcher
      * @throws IOException
      */
     public long [] getNeighbors(long id, int beamRadius, int numPermutations) throws InvalidIndexException, IOException
+    {
+        int ordinal = reader.ordinal(id);
+        if(ordinal < 0) return null;
+        SearchContext context = contexts.get();
+        int numCandidates = getNeighborOrdinals(ordinal, beamRadius, numPermutations, context);
+        long [] ids = new long[numCandidates];
+        for(int i = 0; i < numCandidates; i++) ids[i] = reader.id(context.candidates[i]);
+        return ids;
+    }
+
+    /**
+     * Same as getNeighbors(long id, int beamRadius, int numPermutations), but in terms of ordinals rather than external ids
+     * @param ordinal ordinal of object to search for
+     * @param beamRadius max number greater and lesser than this object in each of the ordered permutation lists
+     * @param numPermutations number of permutations to use
+     * @return ordinals of the neighbors
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public int [] getNeighborOrdinals(int ordinal, int beamRadius, int numPermutations) throws InvalidIndexException, IOException
+    {
+        SearchContext context = contexts.get();
+        return Arrays.copyOf(context.candidates, getNeighborOrdinals(ordinal, beamRadius, numPermutations, context));
+    }
+
+    /**
+     * Same as getNeighborOrdinals(int ordinal, int beamRadius, int numPermutations), but leaves the ordinals in context.candidates()
+     * @return the number of neighbors found
+     */
+    public int getNeighborOrdinals(int ordinal, int beamRadius, int numPermutations, SearchContext context) throws InvalidIndexException, IOException
     {
         if(numPermutations > maxPermutations) throw(new InvalidIndexException(reader.rootDir, "Max  available permutations is: " + maxPermutations + ". " + numPermutations + " were requested"));
-        TLongHashSet sims = new TLongHashSet();
-        if(!reader.permutationIndex.containsKey(id)) return null;
-        int [] positions = reader.permutationIndex.get(id);
-        if(maxPermutations != positions.length) throw(new InvalidIndexException(reader.rootDir, "Found invalid number of permutations: " + positions.length+ " for input id: " + id));
+        context.clearCandidates(beamRadius, numPermutations);
+        PositionTable positions = reader.permutationPositions;
         for(int i = 0; i < numPermutations; i++)
         {
-            getNeighbors(positions[i], beamRadius, permutationLists[i], sims);
+            getNeighbors(positions.get(ordinal, i), beamRadius, permutationLists[i], context);
         }        
-        return sims.toArray();
+        return context.numCandidates;
     }
     
     /**
-     * Helper method for getSimilars(long id, int beamRadius, int numPermutations). 
+     * Helper method for getNeighborOrdinals(int ordinal, int beamRadius, int numPermutations, SearchContext context). 
      * @param pos
      * @param beamRadius
      * @param r
-     * @param output
+     * @param context
      * @throws IOException
      */
-    private void getNeighbors(long pos, int beamRadius, LongStoreReaderDisk r, TLongHashSet output) throws IOException
+    private void getNeighbors(long pos, int beamRadius, IntStoreReader r, SearchContext context) throws IOException
     {
         long max = Math.min(r.length(), (long)pos+beamRadius);
         long min = Math.max(0, (long)pos-beamRadius);
-        long [] ids = r.get(min, max);
-        output.addAll(ids);
+        int num = (int) (max - min);
+        int [] beam = context.beam(num);
+        r.get(min, max, beam, 0);
+        for(int i = 0; i < num; i++) context.addCandidate(beam[i], (int) Math.abs(min + i - pos));
     }
-    
+
+    /**
+     * Get all similar items within a particular distance of a query vector in each of the first numPermutations permutation lists. The query
+     * need not be in the index, but the index must have a signature store.
+     * @param query vector to search for
+     * @param beamRadius max number greater and lesser than the query's position in each of the ordered permutation lists
+     * @param numPermutations number of permutations to use
+     * @return ordinals of the neighbors
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public int [] getNeighborOrdinals(double [] query, int beamRadius, int numPermutations) throws InvalidIndexException, IOException
+    {
+        SearchContext context = contexts.get();
+        return Arrays.copyOf(context.candidates, getNeighborOrdinals(query, beamRadius, numPermutations, context));
+    }
+
+    /**
+     * Same as getNeighborOrdinals(double [] query, int beamRadius, int numPermutations), but leaves the ordinals in context.candidates()
+     * @return the number of neighbors found
+     */
+    public int getNeighborOrdinals(double [] query, int beamRadius, int numPermutations, SearchContext context) throws InvalidIndexException, IOException
+    {
+        if(numPermutations > maxPermutations) throw(new InvalidIndexException(reader.rootDir, "Max  available permutations is: " + maxPermutations + ". " + numPermutations + " were requested"));
+        if(signatures == null) throw(new InvalidIndexException(reader.rootDir, "Searching by vector needs a signature store: see IndexReader.packSignatures()"));
+        int numWords = signatures.numWords();
+        hashFamily.makeSignature(query, context.signature, 0);
+        context.clearCandidates(beamRadius, numPermutations);
+        for(int i = 0; i < numPermutations; i++)
+        {
+            permuters[i].permute(context.signature, 0, context.permuted, 0, numWords);
+            getNeighbors(position(permutationLists[i], permuters[i], context.permuted, context.scratch), beamRadius, permutationLists[i], context);
+        }
+        return context.numCandidates;
+    }
+
+    /**
+     * Binary search for the position of a permuted signature in a permutation list
+     * @param list permutation list, sorted by signatures permuted by p
+     * @param p
+     * @param permuted the permuted query signature
+     * @param scratch space for two signatures
+     * @return the position of the first entry in the list whose permuted signature is not less than the query's
+     */
+    protected long position(IntStoreReader list, Permuter p, long [] permuted, long [] scratch) throws IOException
+    {
+        int numWords = permuted.length;
+        long lo = 0, hi = list.length();
+        while(lo < hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            signatures.get(list.get(mid), scratch, 0);
+            p.permute(scratch, 0, scratch, numWords, numWords);
+            if(SignatureMatrix.compare(scratch, numWords, permuted, 0, numWords) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
     public Neighbor [] getScoredNeighbors(long srcId, int beamRadius, int numPermutations,
     		Comparator<Neighbor> comparator, ScoreThreshold scoreThresh) throws InvalidIndexException, IOException {
     	return getScoredNeighbors(srcId, beamRadius, numPermutations, Integer.MAX_VALUE, comparator, scoreThresh);
@@ -127,7 +377,9 @@ public class NearestNeighborSearcher
      * @param srcId id of object to search for
      * @param beamRadius max number greater and lesser than this object in each of the ordered permutation lists
      * @param numPermutations number of permutations to use
-     * @param threshold similarity threshold
+     * @param maxNeighbors max number of neighbors to return: negative or Integer.MAX_VALUE for no limit
+     * @param comparator order of the returned neighbors
+     * @param scoreThresh similarity threshold
      * @return
      * @throws InvalidIndexException
      * @throws IOException
@@ -136,60 +388,362 @@ public class NearestNeighborSearcher
     		Comparator<Neighbor> comparator, ScoreThreshold scoreThresh)
     				throws InvalidIndexException, IOException
     {
-    	long [] potentialSimilars = getNeighbors(srcId, beamRadius, numPermutations);
-    	if (potentialSimilars == null) {
-    		return null;
-    	}
-        double [] srcVec = rawVectorMap.get(srcId);
-        if(srcVec == null) return null;
+        SearchContext context = contexts.get();
+        if(getScoredNeighbors(srcId, beamRadius, numPermutations, maxNeighbors, comparator, scoreThresh, context) < 0) return null;
+        return results(context);
+    }
+
+    /**
+     * Same as getScoredNeighbors(long srcId, int beamRadius, int numPermutations, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh),
+     * but leaves the neighbors in context.resultIds() and context.resultScores()
+     * @return the number of neighbors found, or -1 if srcId is not in the index
+     */
+    public int getScoredNeighbors(long srcId, int beamRadius, int numPermutations, int maxNeighbors,
+            Comparator<Neighbor> comparator, ScoreThreshold scoreThresh, SearchContext context)
+                    throws InvalidIndexException, IOException
+    {
+        int srcOrdinal = reader.ordinal(srcId);
+        if(srcOrdinal < 0) return -1;
+        getNeighborOrdinals(srcOrdinal, beamRadius, numPermutations, context);
+        return score(srcOrdinal, maxNeighbors, comparator, scoreThresh, context);
+    }
+
+    /**
+     * Score the candidates in a context against the vector with ordinal srcOrdinal
+     * @return the number of neighbors found
+     */
+    int score(int srcOrdinal, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh, SearchContext context) throws IOException
+    {
+        if(maxHammingDistance >= 0) System.arraycopy(signatureMatrix.words(), srcOrdinal * signatureMatrix.numWords(), context.signature, 0, signatureMatrix.numWords());
+        return score(rawVectors.get(srcOrdinal, context.queryVec), maxNeighbors, comparator, scoreThresh, context);
+    }
+
+    /**
+     * Get list of similar items for a query vector, which need not be in the index, within beamRadius of its position in the first
+     * numPermutations permutation lists, which pass the score threshold. The index must have a signature store.
+     * @param query vector to search for
+     * @param beamRadius max number greater and lesser than the query's position in each of the ordered permutation lists
+     * @param numPermutations number of permutations to use
+     * @param maxNeighbors max number of neighbors to return: negative or Integer.MAX_VALUE for no limit
+     * @param comparator order of the returned neighbors
+     * @param scoreThresh similarity threshold
+     * @return
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public Neighbor [] getScoredNeighbors(double [] query, int beamRadius, int numPermutations, int maxNeighbors,
+            Comparator<Neighbor> comparator, ScoreThreshold scoreThresh)
+                    throws InvalidIndexException, IOException
+    {
+        SearchContext context = contexts.get();
+        getScoredNeighbors(query, beamRadius, numPermutations, maxNeighbors, comparator, scoreThresh, context);
+        return results(context);
+    }
+
+    /**
+     * Same as getScoredNeighbors(double [] query, int beamRadius, int numPermutations, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh),
+     * but leaves the neighbors in context.resultIds() and context.resultScores()
+     * @return the number of neighbors found
+     */
+    public int getScoredNeighbors(double [] query, int beamRadius, int numPermutations, int maxNeighbors,
+            Comparator<Neighbor> comparator, ScoreThreshold scoreThresh, SearchContext context)
+                    throws InvalidIndexException, IOException
+    {
+        getNeighborOrdinals(query, beamRadius, numPermutations, context);
+        return score(query, maxNeighbors, comparator, scoreThresh, context);
+    }
+
+    /**
+     * Get the best maxNeighbors items which pass the score threshold by walking the first numPermutations permutation lists outwards from 
+     * srcId's positions, as set up by setAdaptiveBeam(). The number of list entries read and why the walk stopped are left in the context.
+     * The searcher's Hamming filter and bounded scoring apply, but the vote filter does not.
+     * @param srcId id of object to search for
+     * @param numPermutations number of permutations to use
+     * @param maxNeighbors number of neighbors to find
+     * @param comparator Neighbor.SimilarityComparator or Neighbor.DissimilarityComparator
+     * @param scoreThresh
+     * @param context gets the neighbors, in context.resultIds() and context.resultScores()
+     * @return the number of neighbors found, or -1 if srcId is not in the index
+     * @throws InvalidIndexException
+     * @throws IOException
+     */
+    public int getAdaptiveNeighbors(long srcId, int numPermutations, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh, 
+            SearchContext context) throws InvalidIndexException, IOException
+    {
+        int srcOrdinal = reader.ordinal(srcId);
+        if(srcOrdinal < 0) return -1;
+        checkAdaptive(numPermutations, maxNeighbors, comparator);
+        int numWords = signatureMatrix.numWords();
+        System.arraycopy(signatureMatrix.words(), srcOrdinal * numWords, context.signature, 0, numWords);
+        context.startWalk(numPermutations);
+        PositionTable positions = reader.permutationPositions;
+        for(int i = 0; i < numPermutations; i++) context.starts[i] = positions.get(srcOrdinal, i);
+        return walk(rawVectors.get(srcOrdinal, context.queryVec), numPermutations, maxNeighbors, comparator, scoreThresh, context);
+    }
+
+    /**
+     * Same as getAdaptiveNeighbors(long srcId, int numPermutations, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh, SearchContext context),
+     * for a query vector which need not be in the index. The index must have a signature store.
+     * @return the number of neighbors found
+     */
+    public int getAdaptiveNeighbors(double [] query, int numPermutations, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh, 
+            SearchContext context) throws InvalidIndexException, IOException
+    {
+        checkAdaptive(numPermutations, maxNeighbors, comparator);
+        if(signatures == null) throw(new InvalidIndexException(reader.rootDir, "Searching by vector needs a signature store: see IndexReader.packSignatures()"));
+        int numWords = signatures.numWords();
+        hashFamily.makeSignature(query, context.signature, 0);
+        context.startWalk(numPermutations);
+        for(int i = 0; i < numPermutations; i++)
+        {
+            permuters[i].permute(context.signature, 0, context.permuted, 0, numWords);
+            context.starts[i] = position(permutationLists[i], permuters[i], context.permuted, context.scratch);
+        }
+        return walk(query, numPermutations, maxNeighbors, comparator, scoreThresh, context);
+    }
+
+    private void checkAdaptive(int numPermutations, int maxNeighbors, Comparator<Neighbor> comparator) throws InvalidIndexException
+    {
+        if(adaptiveChunkSize <= 0) throw new IllegalStateException("Adaptive search needs setAdaptiveBeam() to be called first");
+        if(numPermutations > maxPermutations) throw(new InvalidIndexException(reader.rootDir, "Max  available permutations is: " + maxPermutations + ". " + numPermutations + " were requested"));
+        if(maxNeighbors <= 0) throw new IllegalArgumentException("Adaptive search needs a positive number of neighbors, got " + maxNeighbors);
+        if(!(comparator instanceof Neighbor.SimilarityComparator || comparator instanceof Neighbor.DissimilarityComparator))
+        {
+            throw new IllegalArgumentException("Adaptive search keeps a top k, so needs Neighbor.SimilarityComparator or Neighbor.DissimilarityComparator");
+        }
+    }
+
+    /**
+     * Walk the lists out from the start positions in a context a step at a time, scoring each step's new candidates, until the top k is stable 
+     * or every side of every list is done
+     */
+    private int walk(double [] srcVec, int numPermutations, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh,
+            SearchContext context) throws IOException
+    {
+        context.clearCandidates(adaptiveMaxRadius, numPermutations);
+        context.numScored = 0;
+        context.numAbandoned = 0;
+        if(boundedScoring && scoreThresh instanceof BoundedScoreThreshold) context.prepared = ((BoundedScoreThreshold) scoreThresh).prepare(srcVec, context.prepared);
+        context.best.reset(maxNeighbors, comparator instanceof Neighbor.SimilarityComparator);
+        System.arraycopy(context.starts, 0, context.lower, 0, numPermutations);
+        System.arraycopy(context.starts, 0, context.upper, 0, numPermutations);
+        int numScored = 0;
+        int stableSteps = 0;
+        while(true)
+        {
+            boolean walking = false;
+            boolean cutShort = false;
+            for(int i = 0; i < numPermutations; i++)
+            {
+                if(context.lowerStops[i] == null) context.lowerStops[i] = step(i, true, context);
+                if(context.upperStops[i] == null) context.upperStops[i] = step(i, false, context);
+                walking |= context.lowerStops[i] == null || context.upperStops[i] == null;
+                cutShort |= context.lowerStops[i] == SearchContext.StopReason.RADIUS || context.upperStops[i] == SearchContext.StopReason.RADIUS;
+            }
+            boolean changed = scoreInto(srcVec, numScored, context.numCandidates, scoreThresh, context);
+            numScored = context.numCandidates;
+            stableSteps = context.best.isFull() && !changed ? stableSteps + 1 : 0;
+            if(stableSteps >= adaptiveStableSteps) context.stopReason = SearchContext.StopReason.STABLE;
+            else if(!walking) context.stopReason = cutShort ? SearchContext.StopReason.RADIUS : SearchContext.StopReason.EXHAUSTED;
+            if(context.stopReason != null) return drainBest(context);
+        }
+    }
+
+    /**
+     * Read the next chunk of permutation list i on one side of the query's position, adding the entries whose signatures are within the adaptive
+     * Hamming distance of the query's as candidates. A side is exhausted by a chunk with no such entries, or by reaching the end of the list.
+     * @param i
+     * @param down true for the side before the query's position
+     * @param context
+     * @return null if that side of the list should be walked further, otherwise why not
+     * @throws IOException
+     */
+    private SearchContext.StopReason step(int i, boolean down, SearchContext context) throws IOException
+    {
+        IntStoreReader list = permutationLists[i];
+        long start = context.starts[i];
+        long from, to, limit, end;
+        if(down)
+        {
+            end = 0;
+            limit = Math.max(end, start - adaptiveMaxRadius);
+            to = context.lower[i];
+            from = Math.max(limit, to - adaptiveChunkSize);
+            context.lower[i] = from;
+        }
+        else
+        {
+            end = list.length();
+            limit = Math.min(end, start + adaptiveMaxRadius);
+            from = context.upper[i];
+            to = Math.min(limit, from + adaptiveChunkSize);
+            context.upper[i] = to;
+        }
+        SearchContext.StopReason atLimit = limit == end ? SearchContext.StopReason.EXHAUSTED : SearchContext.StopReason.RADIUS;
+        int num = (int) (to - from);
+        if(num <= 0) return atLimit;
+        int [] beam = context.beam(num);
+        list.get(from, to, beam, 0);
+        context.numVisited += num;
+        int near = 0;
+        for(int j = 0; j < num; j++)
+        {
+            if(signatureMatrix.hammingDistance(beam[j], context.signature, 0) > adaptiveMaxHammingDistance) continue;
+            context.addCandidate(beam[j], (int) Math.abs(from + j - start));
+            near++;
+        }
+        if(near == 0) return SearchContext.StopReason.EXHAUSTED;
+        return (down ? from : to) == limit ? atLimit : null;
+    }
+
+    protected static Neighbor [] results(SearchContext context)
+    {
+        Neighbor [] retval = new Neighbor[context.numResults];
+        for(int i = 0; i < retval.length; i++) retval[i] = new Neighbor(context.resultIds[i], context.resultScores[i]);
+        return retval;
+    }
+
+    /**
+     * Score the candidates in a context against a query vector, keeping the best maxNeighbors of those which pass the threshold. When the comparator is
+     * Neighbor.SimilarityComparator or Neighbor.DissimilarityComparator, the best are kept in a bounded heap (see TopK) as they are scored, 
+     * rather than sorting all of them, and nothing is allocated.
+     * @param srcVec
+     * @param maxNeighbors max number of neighbors to return: negative or Integer.MAX_VALUE for no limit
+     * @param comparator
+     * @param scoreThresh
+     * @param context holds the candidates, and gets the results, in comparator order
+     * @return the number of neighbors found
+     * @throws IOException
+     */
+    protected int score(double [] srcVec, int maxNeighbors, Comparator<Neighbor> comparator, ScoreThreshold scoreThresh, SearchContext context) throws IOException
+    {
+        int [] potentialSimilars = context.candidates;
+        int numCandidates = context.numCandidates;
+        if(maxNeighbors < 0) maxNeighbors = Integer.MAX_VALUE;
+        context.numScored = 0;
+        context.numAbandoned = 0;
+        if(boundedScoring && scoreThresh instanceof BoundedScoreThreshold) context.prepared = ((BoundedScoreThreshold) scoreThresh).prepare(srcVec, context.prepared);
+        if(maxVoted >= 0 && numCandidates > maxVoted) numCandidates = selectByVotes(context);
+        if(comparator instanceof Neighbor.SimilarityComparator || comparator instanceof Neighbor.DissimilarityComparator)
+        {
+            context.best.reset(Math.min(maxNeighbors, numCandidates), comparator instanceof Neighbor.SimilarityComparator);
+            scoreInto(srcVec, 0, numCandidates, scoreThresh, context);
+            return drainBest(context);
+        }
+
         ArrayList<Neighbor> tmp = new ArrayList<Neighbor>();
-        for(int i = 0, max = potentialSimilars.length; i < max; i++) {
-            long targetId = potentialSimilars[i];
-            double [] targetVec = rawVectorMap.get(targetId);
-            double score = scoreThresh.score(srcVec, targetVec);
-            if (scoreThresh.threshold(score)) tmp.add(new Neighbor(targetId, score));
+        for(int i = 0; i < numCandidates; i++) {
+            int target = potentialSimilars[i];
+            if(!passesHammingFilter(target, context)) continue;
+            double score = score(srcVec, target, scoreThresh, Double.NaN, context);
+            if (scoreThresh.threshold(score)) tmp.add(new Neighbor(reader.id(target), score));
         }
         
         Neighbor [] neighbors = tmp.toArray(new Neighbor[tmp.size()]);
-        if (neighbors != null) Arrays.sort(neighbors, comparator);
-        
-        if (maxNeighbors != Integer.MAX_VALUE) {
-        	Neighbor [] topNeighbors = new Neighbor[maxNeighbors];
-        	for (int i = 0; i < maxNeighbors; i++) {
-        		topNeighbors[i] = neighbors[i];
-        	}
-        	return topNeighbors;
+        Arrays.sort(neighbors, comparator);
+        context.numResults = Math.min(neighbors.length, maxNeighbors);
+        context.ensureResults(context.numResults);
+        for(int i = 0; i < context.numResults; i++)
+        {
+            context.resultIds[i] = neighbors[i].id;
+            context.resultScores[i] = neighbors[i].score;
         }
-        else
-        	return neighbors;
+        return context.numResults;
     }
 
     /**
-     * Helper method for batch file usage: read a list of object ids to search for near neighbors for, one per line, from an input text file
-     * @param inputFile text file containing ids, one per line
-     * @return
-     * @throws Exception
+     * Score candidates [from, to) of a context against a query vector, adding those which pass the threshold to the context's top k
+     * @return true if any were added
      */
-    protected static long [] getTargetIds(String inputFile) throws Exception
+    private boolean scoreInto(double [] srcVec, int from, int to, ScoreThreshold scoreThresh, SearchContext context) throws IOException
     {
-        TLongArrayList tmp = new TLongArrayList();
-        BufferedReader reader = null;
-        try
+        TopK best = context.best;
+        // the worst kept score only bounds scoring if the threshold also prefers larger scores (i.e. accepts infinity) exactly when the heap does
+        boolean boundByBest = best.largestFirst() == scoreThresh.threshold(Double.POSITIVE_INFINITY);
+        boolean retval = false;
+        for(int i = from; i < to; i++) {
+            int target = context.candidates[i];
+            if(!passesHammingFilter(target, context)) continue;
+            double score = score(srcVec, target, scoreThresh, boundByBest && best.isFull() && best.size() > 0 ? best.worstScore() : Double.NaN, context);
+            if (scoreThresh.threshold(score) && best.canAdd(score)) retval |= best.add(reader.id(target), score);
+        }
+        return retval;
+    }
+
+    private int drainBest(SearchContext context)
+    {
+        context.ensureResults(context.best.size());
+        context.numResults = context.best.drain(context.resultIds, context.resultScores);
+        return context.numResults;
+    }
+
+    /**
+     * Score one candidate against the query, a block at a time if bounded scoring is on and the threshold supports it
+     * @param srcVec
+     * @param target ordinal of the candidate
+     * @param scoreThresh
+     * @param bound score the candidate must be no worse than to be kept, or NaN for none
+     * @param context
+     * @return the score, or NaN if scoring was abandoned because the candidate cannot pass the threshold or the bound
+     * @throws IOException
+     */
+    private double score(double [] srcVec, int target, ScoreThreshold scoreThresh, double bound, SearchContext context) throws IOException
+    {
+        double [] targetVec = context.targetVec;
+        if(!boundedScoring || !(scoreThresh instanceof BoundedScoreThreshold)) return scoreThresh.score(srcVec, rawVectors.get(target, targetVec));
+        BoundedScoreThreshold bounded = (BoundedScoreThreshold) scoreThresh;
+        double [] sums = context.sums;
+        Arrays.fill(sums, 0.0);
+        int base = target * numScoreBlocks;
+        for(int from = 0, dim = srcVec.length; from < dim; from += scoreBlock)
         {
-            reader = new BufferedReader(new FileReader(inputFile));
-            String line = "";
-            while((line = reader.readLine()) != null)
+            int to = Math.min(dim, from + scoreBlock);
+            rawVectors.get(target, targetVec, from, to);
+            bounded.accumulate(srcVec, targetVec, from, to, sums);
+            if(to < dim && bounded.cannotPass(sums, to, context.prepared, suffixNorms[base], suffixNorms[base + to / scoreBlock], bound))
             {
-                tmp.add(Long.parseLong(line.trim()));
+                context.numAbandoned++;
+                return Double.NaN;
             }
         }
-        finally
+        return bounded.finish(sums);
+    }
+
+    /**
+     * Replace the candidates in a context with the maxVoted which were found in the most permutation beams
+     * @param context
+     * @return the number of candidates left
+     */
+    private int selectByVotes(SearchContext context)
+    {
+        TopK mostVoted = context.mostVoted;
+        mostVoted.reset(maxVoted, true);
+        // distances only break ties, so scale them to less than one vote
+        double distanceScale = 1.0 / (context.numPermutations * (context.beamRadius + 1.0));
+        for(int i = 0, max = context.numCandidates; i < max; i++)
         {
-            if(reader != null) reader.close();
+            double votes = voteByDistance ? context.votes[i] - context.distances[i] * distanceScale : context.votes[i];
+            if(mostVoted.canAdd(votes)) mostVoted.add(context.candidates[i], votes);
         }
-        return tmp.toArray();
+        context.ensureResults(maxVoted);
+        int retval = mostVoted.drain(context.resultIds, context.resultScores);
+        for(int i = 0; i < retval; i++) context.candidates[i] = (int) context.resultIds[i];
+        context.numCandidates = retval;
+        return retval;
     }
-    
+
+    /**
+     * @param target
+     * @param context holds the query signature
+     * @return false if the Hamming filter is on, and the target's signature is too far from the query's: otherwise, counts the target as scored
+     */
+    private boolean passesHammingFilter(int target, SearchContext context)
+    {
+        if(maxHammingDistance >= 0 && signatureMatrix.hammingDistance(target, context.signature, 0) > maxHammingDistance) return false;
+        context.numScored++;
+        return true;
+    }
+
     /**
      * Batch mode nearest neighbor search for a list of ids contained in a text file from an index directory
      * @param args
@@ -199,6 +753,13 @@ public class NearestNeighborSearcher
      * <br>-b beamwidth to search for in sorted permutation lists
      * <br>-p number of permutations to use 
      * <br>-m minimum cosine similarity to take (-1 will take anything)
+     * <br>-hd max Hamming distance between signatures of candidates to score (optional)
+     * <br>-v max number of candidates to score, by number of permutations they were found in (optional)
+     * <br>-bs score candidates a block at a time, stopping as soon as they cannot pass (optional)
+     * <br>-ad walk the permutation lists adaptively, up to beamwidth from each position, taking entries within this Hamming distance (optional)
+     * <br>-k number of neighbors to find for each target: required with -ad
+     * <br>-threads number of threads to search with (optional, default 1): results are streamed to the output file as they are found, see BatchSearcher
+     * <br>-sweep number of targets to search together by sweeping each permutation list once, rather than one at a time (optional)
      * @throws Exception
      */
     public static void main(String [] args) throws Exception
@@ -209,35 +770,44 @@ public class NearestNeighborSearcher
         .addOption(new RequiredOption("o", true, "output file"))
         .addOption(new RequiredOption("b", true, "beamwidth to search for within sorted bitset arrays"))
         .addOption(new RequiredOption("p", true, "number of permutations to use in getting similars"))        
-        .addOption(new RequiredOption("t", true, "threshold for similarity/dissimilarity")).parse(args);
+        .addOption(new RequiredOption("t", true, "threshold for similarity/dissimilarity"))
+        .addOption(new Option("hd", true, "max Hamming distance between the signatures of a target and a candidate for the candidate to be scored"))
+        .addOption(new Option("v", true, "max number of candidates to score, taking those found in the most permutations"))
+        .addOption(new Option("bs", false, "score candidates a block at a time, stopping as soon as they cannot pass the threshold"))
+        .addOption(new Option("ad", true, "walk the permutation lists adaptively, taking entries with signatures within this Hamming distance of the target's"))
+        .addOption(new Option("k", true, "number of neighbors to find for each target"))
+        .addOption(new Option("threads", true, "number of threads to search with"))
+        .addOption(new Option("sweep", true, "number of targets to search together with one sequential sweep of each permutation list")).parse(args);
         
         NearestNeighborSearcher searcher = new NearestNeighborSearcher(cmd.getOptionValue("idx"));
         int beamWidth = Integer.parseInt(cmd.getOptionValue("b"));
         double minSimilarity = Double.parseDouble(cmd.getOptionValue("t"));
         int numPermutations = Integer.parseInt(cmd.getOptionValue("p"));
         
-        long [] targetIds = getTargetIds(cmd.getOptionValue("i"));
-        TLongObjectHashMap<Neighbor []> allSims = new TLongObjectHashMap<Neighbor []>();
-
         Comparator<Neighbor> comparator = new Neighbor.DissimilarityComparator();
         ScoreThreshold thresh = new L2Threshold(minSimilarity);
-        for(long id : targetIds)
+        searcher.setHammingFilter(Integer.parseInt(cmd.getOptionValue("hd", "-1")));
+        searcher.setVoteFilter(Integer.parseInt(cmd.getOptionValue("v", "-1")), true);
+        searcher.setBoundedScoring(cmd.hasOption("bs"));
+        int maxNeighbors = Integer.parseInt(cmd.getOptionValue("k", "-1"));
+        boolean adaptive = cmd.hasOption("ad");
+        if(adaptive) searcher.setAdaptiveBeam(16, beamWidth, Integer.parseInt(cmd.getOptionValue("ad")), 2);
+        int numThreads = Integer.parseInt(cmd.getOptionValue("threads", "1"));
+
+        BatchSearcher batch = new BatchSearcher(searcher, beamWidth, numPermutations, maxNeighbors, comparator, thresh);
+        batch.setAdaptive(adaptive);
+        batch.setLocalityOrdered(Integer.parseInt(cmd.getOptionValue("sweep", "0")));
+        BufferedReader ids = new BufferedReader(new FileReader(cmd.getOptionValue("i")));
+        BufferedWriter writer = new BufferedWriter(new FileWriter(cmd.getOptionValue("o")));
+        try
         {
-            Neighbor [] sims = searcher.getScoredNeighbors(id, beamWidth, numPermutations, -1, comparator, thresh);
-            if(sims != null) allSims.put(id, sims);
+            batch.search(ids, writer, numThreads);
+        }
+        finally
+        {
+            ids.close();
+            writer.close();
         }
-        BufferedWriter writer = new BufferedWriter(new FileWriter(cmd.getOptionValue("o")));
-        TLongObjectIterator<Neighbor []> ids = allSims.iterator();
-        while(ids.hasNext()) {
-        	ids.advance();
-        	long id = ids.key();
-        	writer.write(id + "\n--------------\n");
-        	Neighbor [] sims = allSims.get(id);
-        	for(Neighbor similar : sims) writer.write(similar.id + "," + similar.score + "\n");
-        	writer.write("\n\n");
-        }
-        writer.flush();
-        writer.close();
         
         System.out.println("NearestNeighborSearcher.java finished.");
     }
@@ -0,0 +1,188 @@
+package org.fastlsh.query;
+
+import java.util.Arrays;
+
+import org.fastlsh.util.EpochIntSet;
+import org.fastlsh.util.TopK;
+
+/**
+ * Scratch space for the queries of one thread: the candidate set and list, the buffer permutation list ranges are read into, vector and
+ * signature buffers, the top k heap, and the results of the last query. Buffers only grow, so once a context has seen a query as large as
+ * the current one, searching with it allocates nothing. A context must not be shared between threads.
+ *
+ * <br>Create contexts with NearestNeighborSearcher.createContext().
+ */
+public class SearchContext
+{
+    /**
+     * Why an adaptive search (see NearestNeighborSearcher.getAdaptiveNeighbors()) stopped walking the permutation lists
+     */
+    public static enum StopReason
+    {
+        /** The top k was full, and did not change, for the searcher's number of stable steps */
+        STABLE,
+        /** Every side of every list reached a chunk of signatures all too far from the query's, or the end of its list */
+        EXHAUSTED,
+        /** Some side of some list reached the max radius before either of the above: a larger radius might find more */
+        RADIUS
+    }
+
+    final EpochIntSet visited;
+    int [] candidates;
+    /** Number of permutation beams each candidate was found in */
+    int [] votes;
+    /** Sum over those beams of each candidate's distance from the query's position */
+    int [] distances;
+    int numCandidates;
+    /** Max distance from the query's position, and number of permutations, of the last search */
+    int beamRadius;
+    int numPermutations;
+    int [] beam;
+    final double [] queryVec;
+    final double [] targetVec;
+    final long [] signature;
+    final long [] permuted;
+    final long [] scratch;
+    final TopK best = new TopK(0, true);
+    final TopK mostVoted = new TopK(0, true);
+    long [] resultIds;
+    double [] resultScores;
+    int numResults;
+    int numScored;
+    int numAbandoned;
+    /** Running sums and prepared query for bounded scoring: see ScoreThreshold */
+    final double [] sums = new double[4];
+    double [] prepared;
+    /** Adaptive search state: each list's start position, the range of it walked so far, and why each side of it stopped (null if it has not) */
+    long [] starts = new long[0];
+    long [] lower = new long[0];
+    long [] upper = new long[0];
+    StopReason [] lowerStops = new StopReason[0];
+    StopReason [] upperStops = new StopReason[0];
+    int numVisited;
+    StopReason stopReason;
+
+    SearchContext(int dimension, int numWords)
+    {
+        visited = new EpochIntSet(1024);
+        candidates = new int[1024];
+        votes = new int[1024];
+        distances = new int[1024];
+        beam = new int[256];
+        queryVec = new double[dimension];
+        targetVec = new double[dimension];
+        signature = new long[numWords];
+        permuted = new long[numWords];
+        scratch = new long[2 * numWords];
+        resultIds = new long[64];
+        resultScores = new double[64];
+    }
+
+    /**
+     * @return number of candidates found by the last getNeighborOrdinals() call with this context, or the number kept by the searcher's vote filter
+     * after a getScoredNeighbors() call
+     */
+    public int numCandidates() {return numCandidates;}
+
+    /**
+     * @return the ordinals of the candidates found by the last getNeighborOrdinals() call with this context, in [0, numCandidates())
+     */
+    public int [] candidates() {return candidates;}
+
+    /**
+     * @return number of neighbors found by the last getScoredNeighbors() call with this context
+     */
+    public int numResults() {return numResults;}
+
+    /**
+     * @return number of candidates whose vectors were scored by the last getScoredNeighbors() call with this context: less than numCandidates() 
+     * if the searcher's Hamming filter is on
+     */
+    public int numScored() {return numScored;}
+
+    /**
+     * @return number of the scored candidates whose scoring was stopped part way through by the searcher's bounded scoring, because they could no
+     * longer pass the threshold or make the top k
+     */
+    public int numAbandoned() {return numAbandoned;}
+
+    /**
+     * @return number of permutation list entries read by the last getAdaptiveNeighbors() call with this context, counting an ordinal once for each 
+     * list it was read from
+     */
+    public int numVisited() {return numVisited;}
+
+    /**
+     * @return why the last getAdaptiveNeighbors() call with this context stopped
+     */
+    public StopReason stopReason() {return stopReason;}
+
+    /**
+     * @return ids of the neighbors found by the last getScoredNeighbors() call with this context, best first, in [0, numResults())
+     */
+    public long [] resultIds() {return resultIds;}
+
+    /**
+     * @return scores of the neighbors found by the last getScoredNeighbors() call with this context, in the same order as resultIds()
+     */
+    public double [] resultScores() {return resultScores;}
+
+    void clearCandidates(int beamRadius, int numPermutations)
+    {
+        this.beamRadius = beamRadius;
+        this.numPermutations = numPermutations;
+        visited.clear();
+        numCandidates = 0;
+    }
+
+    void addCandidate(int ordinal, int distance)
+    {
+        int idx = visited.putIfAbsent(ordinal, numCandidates);
+        if(idx >= 0)
+        {
+            votes[idx]++;
+            distances[idx] += distance;
+            return;
+        }
+        if(numCandidates == candidates.length)
+        {
+            candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+            votes = Arrays.copyOf(votes, 2 * numCandidates);
+            distances = Arrays.copyOf(distances, 2 * numCandidates);
+        }
+        candidates[numCandidates] = ordinal;
+        votes[numCandidates] = 1;
+        distances[numCandidates] = distance;
+        numCandidates++;
+    }
+
+    void startWalk(int numPermutations)
+    {
+        if(starts.length < numPermutations)
+        {
+            starts = new long[numPermutations];
+            lower = new long[numPermutations];
+            upper = new long[numPermutations];
+            lowerStops = new StopReason[numPermutations];
+            upperStops = new StopReason[numPermutations];
+        }
+        Arrays.fill(lowerStops, null);
+        Arrays.fill(upperStops, null);
+        numVisited = 0;
+        stopReason = null;
+    }
+
+    int [] beam(int size)
+    {
+        if(beam.length < size) beam = new int[Math.max(size, 2 * beam.length)];
+        return beam;
+    }
+
+    void ensureResults(int size)
+    {
+        if(resultIds.length >= size) return;
+        int capacity = Math.max(size, 2 * resultIds.length);
+        resultIds = new long[capacity];
+        resultScores = new double[capacity];
+    }
+}
@@ -0,0 +1,39 @@
+package org.fastlsh.threshold;
+
+/** A ScoreThreshold whose scores can also be computed a block of elements at a time, so that scoring a candidate can stop as soon as the part 
+ *  seen so far proves it will fail: prepare() the query once, accumulate() each block [from, to) of the target in order into four running sums
+ *  (zeroed before the first block), checking cannotPass() between blocks, and finish() the sums once the whole target has been accumulated. 
+ *  Every block but the last must start and end on a multiple of four, and a finished score is then identical to score(x, y).
+ */
+public interface BoundedScoreThreshold extends ScoreThreshold {
+	/**
+	 * Per query work for cannotPass()
+	 * @param x the query
+	 * @param prepared space to reuse, or null
+	 * @return prepared, or a new array if it was null or too short
+	 */
+	public double [] prepare(double [] x, double [] prepared);
+
+	/**
+	 * Add the terms for elements [from, to) of x and y to the running sums
+	 * @param sums four running sums
+	 */
+	public void accumulate(double [] x, double [] y, int from, int to, double [] sums);
+
+	/**
+	 * @param sums running sums over all the elements of x and y
+	 * @return the score
+	 */
+	public double finish(double [] sums);
+
+	/**
+	 * @param sums running sums over elements [0, to)
+	 * @param to
+	 * @param prepared result of prepare() for the query
+	 * @param yNorm an upper bound on the Euclidean norm of the target
+	 * @param yRestNorm an upper bound on the Euclidean norm of elements [to, y.length) of the target
+	 * @param bound a score the target must be no worse than to be of any use, or NaN for none
+	 * @return true if the finished score is certain to fail threshold(), or to be strictly worse than bound
+	 */
+	public boolean cannotPass(double [] sums, int to, double [] prepared, double yNorm, double yRestNorm, double bound);
+}
@@ -2,7 +2,7 @@ package org.fastlsh.threshold;
 
 import org.fastlsh.util.MathFns;
 
-public class CosineSimilarityThreshold implements ScoreThreshold {
+public class CosineSimilarityThreshold implements BoundedScoreThreshold {
 	private double threshold;
 	
 	public CosineSimilarityThreshold(double threshold) {
@@ -20,4 +20,43 @@ public class CosineSimilarityThreshold implements ScoreThreshold {
 	public boolean threshold(double score) {
 		return score >= threshold;
 	}
+
+	/**
+	 * @return a bound on the rounding error of a dot product with x, per unit norm of the other vector, followed by the norms of the suffixes 
+	 * of the query: element i + 1 is the norm of x[i, x.length)
+	 */
+	@Override
+	public double[] prepare(double[] x, double[] prepared) {
+		int n = x.length;
+		if (prepared == null || prepared.length < n + 2) prepared = new double[n + 2];
+		double sum = 0;
+		prepared[n + 1] = 0;
+		for (int i = n - 1; i >= 0; i--) {
+			sum += x[i] * x[i];
+			prepared[i + 1] = Math.sqrt(sum);
+		}
+		prepared[0] = 4 * (n + 4) * Math.ulp(1.0) * prepared[1];
+		return prepared;
+	}
+
+	@Override
+	public void accumulate(double[] x, double[] y, int from, int to, double[] sums) {
+		MathFns.dotAccumulate(x, y, from, to, sums);
+	}
+
+	@Override
+	public double finish(double[] sums) {
+		return (sums[0] + sums[1]) + (sums[2] + sums[3]);
+	}
+
+	/**
+	 * By Cauchy-Schwarz the rest of the dot product is at most the product of the norms of the rest of the query and of the target. The partial 
+	 * sum and the finished score may each be off by rounding, so the bound allows for that too.
+	 */
+	@Override
+	public boolean cannotPass(double[] sums, int to, double[] prepared, double yNorm, double yRestNorm, double bound) {
+		double limit = bound > threshold ? bound : threshold;
+		double best = (sums[0] + sums[1]) + (sums[2] + sums[3]) + prepared[to + 1] * yRestNorm + prepared[0] * yNorm;
+		return best < limit;
+	}
 }
@@ -2,7 +2,7 @@ package org.fastlsh.threshold;
 
 import org.fastlsh.util.MathFns;
 
-public class L2Threshold implements ScoreThreshold {
+public class L2Threshold implements BoundedScoreThreshold {
 	double threshold;
 	
 	public L2Threshold(double threshold) {
@@ -21,4 +21,29 @@ public class L2Threshold implements ScoreThreshold {
 		return score <= threshold;
 	}
 
+	@Override
+	public double[] prepare(double[] x, double[] prepared) {
+		return prepared;
+	}
+
+	@Override
+	public void accumulate(double[] x, double[] y, int from, int to, double[] sums) {
+		MathFns.l2DistSquaredAccumulate(x, y, from, to, sums);
+	}
+
+	@Override
+	public double finish(double[] sums) {
+		return Math.sqrt((sums[0] + sums[1]) + (sums[2] + sums[3]));
+	}
+
+	/**
+	 * The partial sum of squares only grows, so the candidate fails once it exceeds the square of the smaller of the threshold and the bound.
+	 * The limit is nudged up so that exceeding it also means the rounded square root exceeds the limit, with no square root taken.
+	 */
+	@Override
+	public boolean cannotPass(double[] sums, int to, double[] prepared, double yNorm, double yRestNorm, double bound) {
+		double limit = bound < threshold ? bound : threshold;
+		double next = Math.nextUp(limit);
+		return (sums[0] + sums[1]) + (sums[2] + sums[3]) > Math.nextUp(next * next);
+	}
 }
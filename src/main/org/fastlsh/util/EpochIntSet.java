@@ -0,0 +1,114 @@
+package org.fastlsh.util;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing set of ints which clears in constant time: each slot is stamped with the epoch it was filled in, and clear() just starts
+ * a new epoch, so slots from earlier epochs read as empty. Meant to be reused for many small sets, such as the candidates of each query.
+ * Each key can also carry an int value (see putIfAbsent()), so the set doubles as a map.
+ */
+public class EpochIntSet
+{
+    protected int [] keys;
+    protected int [] values;
+    protected int [] stamps;
+    protected int epoch = 1;
+    protected int mask;
+    protected int size;
+
+    /**
+     * @param expectedSize number of elements which can be added before the table grows
+     */
+    public EpochIntSet(int expectedSize)
+    {
+        int capacity = 16;
+        while(capacity < 2 * expectedSize) capacity <<= 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        stamps = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {return size;}
+
+    /**
+     * Empty the set, in constant time (apart from once every 2^31 calls)
+     */
+    public void clear()
+    {
+        size = 0;
+        if(++epoch == Integer.MAX_VALUE)
+        {
+            Arrays.fill(stamps, 0);
+            epoch = 1;
+        }
+    }
+
+    /**
+     * @param key
+     * @return true if key was not already in the set
+     */
+    public boolean add(int key)
+    {
+        return putIfAbsent(key, 0) == -1;
+    }
+
+    /**
+     * Add a key with a value, if it is not already in the set
+     * @param key
+     * @param value must not be -1
+     * @return the key's existing value, or -1 if it was added
+     */
+    public int putIfAbsent(int key, int value)
+    {
+        int slot = hash(key) & mask;
+        while(stamps[slot] == epoch)
+        {
+            if(keys[slot] == key) return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        stamps[slot] = epoch;
+        if(++size * 2 > keys.length) grow();
+        return -1;
+    }
+
+    public boolean contains(int key)
+    {
+        int slot = hash(key) & mask;
+        while(stamps[slot] == epoch)
+        {
+            if(keys[slot] == key) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    protected static int hash(int key)
+    {
+        // ordinals from the same part of a permutation list are often close together, so spread them out
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    protected void grow()
+    {
+        int [] oldKeys = keys;
+        int [] oldValues = values;
+        int [] oldStamps = stamps;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        stamps = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for(int i = 0; i < oldKeys.length; i++)
+        {
+            if(oldStamps[i] != epoch) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while(stamps[slot] == epoch) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            stamps[slot] = epoch;
+        }
+    }
+}
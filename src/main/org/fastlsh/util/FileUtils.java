@@ -1,6 +1,10 @@
 package org.fastlsh.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 public class FileUtils
 {
@@ -9,4 +13,30 @@ public class FileUtils
         if(dir.exists()) throw new OutputAlreadyExistsException(dir.getAbsolutePath());
         return dir.mkdirs();
     }
+
+    /**
+     * Memory map a region of a file as a sequence of buffers, each at most segmentBytes long, so that files larger than 2GB can be mapped.
+     * Callers should pick a segmentBytes which is a multiple of their record size, so that no record straddles two segments.
+     * @param channel open channel on the file to map
+     * @param mode map mode (read only or read write)
+     * @param offset offset in bytes of the start of the region
+     * @param length length in bytes of the region
+     * @param segmentBytes max number of bytes in any one segment
+     * @param order byte order of the returned buffers
+     * @return the mapped segments, in file order
+     * @throws IOException
+     */
+    public static ByteBuffer [] map(FileChannel channel, FileChannel.MapMode mode, long offset, long length, long segmentBytes, ByteOrder order) throws IOException
+    {
+        int numSegments = (int) ((length + segmentBytes - 1) / segmentBytes);
+        ByteBuffer [] segments = new ByteBuffer[Math.max(numSegments, 1)];
+        if(numSegments == 0) segments[0] = ByteBuffer.allocate(0).order(order);
+        for(int i = 0; i < numSegments; i++)
+        {
+            long start = i * segmentBytes;
+            long size = Math.min(segmentBytes, length - start);
+            segments[i] = channel.map(mode, offset + start, size).order(order);
+        }
+        return segments;
+    }
 }
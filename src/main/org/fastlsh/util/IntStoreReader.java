@@ -0,0 +1,50 @@
+package org.fastlsh.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Int valued counterpart of LongStoreReader: a long header holding the number of values, followed by the values themselves.
+ */
+public abstract class IntStoreReader implements Closeable {
+    protected static final int sizeOfInt = 4;
+    protected static final int headerBytes = 8;
+    protected static final String mode = "r";
+
+    protected String fileName;
+    protected long length;
+    
+    public static void createIntStore(int [] vals, String fileName) throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        dos.writeLong((long) vals.length);
+        for(int i : vals) dos.writeInt(i);
+        dos.close();
+    }
+    
+    public abstract int get(long pos) throws IOException; 
+    
+    /**
+     * Copy the values in [start, end) into dest, starting at offset
+     * @param start
+     * @param end
+     * @param dest
+     * @param offset
+     * @throws IOException
+     */
+    public abstract void get(long start, long end, int [] dest, int offset) throws IOException;
+
+    public int [] get(long start, long end) throws IOException
+    {
+        int [] vals = new int[(int) (end - start)];
+        get(start, end, vals, 0);
+        return vals;
+    }
+    
+    public long length() {return length;}
+
+    public void close() throws IOException {}
+}
@@ -0,0 +1,45 @@
+package org.fastlsh.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class IntStoreReaderDisk extends IntStoreReader
+{
+    protected RandomAccessFile file;
+    protected byte [] bytes = new byte[0];
+    protected ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    public IntStoreReaderDisk(String filename) throws IOException 
+    {
+        fileName = filename;
+        file = new RandomAccessFile(filename, mode);
+        length = file.readLong();
+    }
+    
+    public synchronized int get(long pos) throws IOException 
+    {
+        file.seek(headerBytes + pos * sizeOfInt);
+        return file.readInt();
+    }
+    
+    public synchronized void get(long start, long end, int [] dest, int offset) throws IOException 
+    {
+        int numInts = (int) (end-start);
+        file.seek(headerBytes + start * sizeOfInt);
+        // reads are synchronized, so one buffer can be reused for all of them
+        if(bytes.length < numInts * sizeOfInt)
+        {
+            bytes = new byte[numInts * sizeOfInt];
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        file.readFully(bytes, 0, numInts * sizeOfInt);
+        for(int i = 0; i < numInts; i++ ) dest[offset + i] = buffer.getInt(i * sizeOfInt);
+    }
+    
+    @Override
+    public void close() throws IOException 
+    {
+        file.close();
+    }
+}
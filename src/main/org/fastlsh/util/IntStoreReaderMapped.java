@@ -0,0 +1,71 @@
+package org.fastlsh.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * IntStoreReader which memory maps the whole store once. Like LongStoreReaderMapped, reads are absolute and need no locking.
+ */
+public class IntStoreReaderMapped extends IntStoreReader
+{
+    protected static final int defaultSegmentShift = 28;
+
+    protected IntBuffer [] segments;
+    protected int segmentShift;
+    protected long segmentMask;
+
+    public IntStoreReaderMapped(String filename) throws IOException
+    {
+        this(filename, defaultSegmentShift);
+    }
+
+    /**
+     * @param filename
+     * @param segmentShift log2 of the number of ints in each mapped segment
+     * @throws IOException
+     */
+    IntStoreReaderMapped(String filename, int segmentShift) throws IOException
+    {
+        fileName = filename;
+        this.segmentShift = segmentShift;
+        segmentMask = (1L << segmentShift) - 1;
+        RandomAccessFile file = new RandomAccessFile(filename, mode);
+        try
+        {
+            length = file.readLong();
+            FileChannel channel = file.getChannel();
+            if(channel.size() < headerBytes + length * sizeOfInt) throw new IOException("Int store " + filename + " is truncated: expected " + length + " values");
+            ByteBuffer [] bytes = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, headerBytes, length * sizeOfInt, (1L << segmentShift) * sizeOfInt, ByteOrder.BIG_ENDIAN);
+            segments = new IntBuffer[bytes.length];
+            for(int i = 0; i < bytes.length; i++) segments[i] = bytes[i].asIntBuffer();
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    @Override
+    public int get(long pos)
+    {
+        return segments[(int) (pos >>> segmentShift)].get((int) (pos & segmentMask));
+    }
+
+    @Override
+    public void get(long start, long end, int [] dest, int offset)
+    {
+        while(start < end)
+        {
+            IntBuffer segment = segments[(int) (start >>> segmentShift)];
+            int from = (int) (start & segmentMask);
+            int num = (int) Math.min(end - start, segment.limit() - from);
+            for(int i = 0; i < num; i++) dest[offset + i] = segment.get(from + i);
+            offset += num;
+            start += num;
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package org.fastlsh.util;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
-public abstract class LongStoreReader {
+public abstract class LongStoreReader implements Closeable {
     protected static final int sizeOfLong = 8;
     protected static final String mode = "r";
 
@@ -13,7 +15,7 @@ public abstract class LongStoreReader {
     
     public static void createLongStore(long [] vals, String fileName) throws IOException
     {
-        DataOutputStream dos = new DataOutputStream(new FileOutputStream(fileName));
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
         dos.writeLong((long) vals.length);
         for(long l : vals) dos.writeLong(l);
         dos.close();
@@ -24,4 +26,6 @@ public abstract class LongStoreReader {
     public abstract long [] get(long start, long end) throws IOException;
     
     public long length() {return length;}
+
+    public void close() throws IOException {}
 }
@@ -7,6 +7,8 @@ import java.nio.ByteBuffer;
 public class LongStoreReaderDisk extends LongStoreReader
 {
 	protected RandomAccessFile file;
+	protected byte [] bytes = new byte[0];
+	protected ByteBuffer buffer = ByteBuffer.wrap(bytes);
 	
     public LongStoreReaderDisk(String filename) throws IOException 
     {
@@ -25,17 +27,18 @@ public class LongStoreReaderDisk extends LongStoreReader
         int numLongs = (int) (end-start);
         long [] vals = new long[numLongs];
         file.seek(++start* sizeOfLong);
-        byte [] bytes = new byte[numLongs * sizeOfLong];
-        file.read(bytes);
-        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
-        buffer.put(bytes, 0, bytes.length);
-        buffer.flip();
-        for(int i = 0; i < numLongs; i++ ) vals[i] = buffer.getLong();
+        // reads are synchronized, so one buffer can be reused for all of them
+        if(bytes.length < numLongs * sizeOfLong)
+        {
+            bytes = new byte[numLongs * sizeOfLong];
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        file.readFully(bytes, 0, numLongs * sizeOfLong);
+        for(int i = 0; i < numLongs; i++ ) vals[i] = buffer.getLong(i * sizeOfLong);
         return vals;
     }
     
-    
-    //TODO: Move this to LongStoreReader?
+    @Override
     public void close() throws IOException 
     {
         file.close();
@@ -0,0 +1,87 @@
+package org.fastlsh.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LongStoreReader which memory maps the whole store once and then serves reads through absolute indexing into the mapping. 
+ * There is no file position to share, so reads need no locking and any number of threads can query the same store concurrently.
+ * Stores larger than 2GB are mapped in several segments.
+ */
+public class LongStoreReaderMapped extends LongStoreReader
+{
+    protected static final int defaultSegmentShift = 27;
+
+    protected LongBuffer [] segments;
+    protected int segmentShift;
+    protected long segmentMask;
+
+    public LongStoreReaderMapped(String filename) throws IOException
+    {
+        this(filename, defaultSegmentShift);
+    }
+
+    /**
+     * @param filename
+     * @param segmentShift log2 of the number of longs in each mapped segment
+     * @throws IOException
+     */
+    LongStoreReaderMapped(String filename, int segmentShift) throws IOException
+    {
+        fileName = filename;
+        this.segmentShift = segmentShift;
+        segmentMask = (1L << segmentShift) - 1;
+        RandomAccessFile file = new RandomAccessFile(filename, mode);
+        try
+        {
+            length = file.readLong();
+            FileChannel channel = file.getChannel();
+            if(channel.size() < (length + 1) * sizeOfLong) throw new IOException("Long store " + filename + " is truncated: expected " + length + " values");
+            ByteBuffer [] bytes = FileUtils.map(channel, FileChannel.MapMode.READ_ONLY, sizeOfLong, length * sizeOfLong, (1L << segmentShift) * sizeOfLong, ByteOrder.BIG_ENDIAN);
+            segments = new LongBuffer[bytes.length];
+            for(int i = 0; i < bytes.length; i++) segments[i] = bytes[i].asLongBuffer();
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    @Override
+    public long get(long pos) throws IOException
+    {
+        return segments[(int) (pos >>> segmentShift)].get((int) (pos & segmentMask));
+    }
+
+    @Override
+    public long [] get(long start, long end) throws IOException
+    {
+        long [] vals = new long[(int) (end - start)];
+        get(start, end, vals, 0);
+        return vals;
+    }
+
+    /**
+     * Copy the values in [start, end) into dest, starting at offset
+     * @param start
+     * @param end
+     * @param dest
+     * @param offset
+     */
+    public void get(long start, long end, long [] dest, int offset)
+    {
+        while(start < end)
+        {
+            LongBuffer segment = segments[(int) (start >>> segmentShift)];
+            int from = (int) (start & segmentMask);
+            int num = (int) Math.min(end - start, segment.limit() - from);
+            for(int i = 0; i < num; i++) dest[offset + i] = segment.get(from + i);
+            offset += num;
+            start += num;
+        }
+    }
+}
@@ -4,17 +4,51 @@ package org.fastlsh.util;
  */
 public class MathFns {
 	/**
-	 * Computes the dot product between two equal-length arrays of doubles.
+	 * Computes the dot product between two equal-length arrays of doubles. The sum is split over four accumulators, so that the additions 
+	 * can overlap rather than each waiting on the last: the result can differ from dotSequential() in the last few bits.
 	 * @param x first array
 	 * @param y second array
 	 * @return dot product
 	 */
 	public static double dot(double [] x, double [] y) {
 	    assert(x.length == y.length);
-	    double result = 0;
-		for (int i = 0, max = x.length; i < max; i++) result += x[i] * y[i];
-		return result;
-	}
+        return dot(x, y, 0, x.length);
+    }
+
+    /**
+     * Computes the dot product between x and the length x.length slice of y starting at offset
+     * @param x first array
+     * @param y second array
+     * @param offset start of the slice of y
+     * @param length number of elements to use
+     * @return dot product
+     */
+    public static double dot(double [] x, double [] y, int offset, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int max = length - 3; i < max; i += 4) {
+            s0 += x[i] * y[offset + i];
+            s1 += x[i + 1] * y[offset + i + 1];
+            s2 += x[i + 2] * y[offset + i + 2];
+            s3 += x[i + 3] * y[offset + i + 3];
+        }
+        for (; i < length; i++) s0 += x[i] * y[offset + i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Computes the dot product between two equal-length arrays of doubles with a single accumulator, summing strictly in index order. 
+     * Hash functions use this, so that signatures do not depend on how dot() is implemented.
+     * @param x first array
+     * @param y second array
+     * @return dot product
+     */
+    public static double dotSequential(double [] x, double [] y) {
+        assert(x.length == y.length);
+        double result = 0;
+        for (int i = 0, max = x.length; i < max; i++) result += x[i] * y[i];
+        return result;
+    }
 	
 	/**
 	 * Computes the Euclidean (l2) distance between two equal-length arrays of doubles.
@@ -24,10 +58,92 @@ public class MathFns {
 	 */
 	public static double l2Dist(double [] x, double [] y) {
         assert(x.length == y.length);
-	    double result = 0;
-		for (int i = 0, max = x.length; i < max; i++) result += (y[i] - x[i]) * (y[i] - x[i]);
-		return Math.sqrt(result);
-	}
+        return Math.sqrt(l2DistSquared(x, y, 0, x.length));
+    }
+
+    /**
+     * Computes the squared Euclidean distance between x and the length x.length slice of y starting at offset
+     * @param x first array
+     * @param y second array
+     * @param offset start of the slice of y
+     * @param length number of elements to use
+     * @return squared Euclidean distance
+     */
+    public static double l2DistSquared(double [] x, double [] y, int offset, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int max = length - 3; i < max; i += 4) {
+            double d0 = y[offset + i] - x[i];
+            double d1 = y[offset + i + 1] - x[i + 1];
+            double d2 = y[offset + i + 2] - x[i + 2];
+            double d3 = y[offset + i + 3] - x[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < length; i++) {
+            double d = y[offset + i] - x[i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Adds the terms of dot(x, y) for elements [from, to) to four running sums, using the same accumulator for each element as dot(x, y, 0, length).
+     * Accumulating consecutive blocks which start on multiples of four, and then adding the sums as dot() does, gives exactly dot(x, y).
+     * @param x first array
+     * @param y second array
+     * @param from first element
+     * @param to end of the elements
+     * @param sums four running sums
+     */
+    public static void dotAccumulate(double [] x, double [] y, int from, int to, double [] sums) {
+        double s0 = sums[0], s1 = sums[1], s2 = sums[2], s3 = sums[3];
+        int i = from;
+        for (int max = to - 3; i < max; i += 4) {
+            s0 += x[i] * y[i];
+            s1 += x[i + 1] * y[i + 1];
+            s2 += x[i + 2] * y[i + 2];
+            s3 += x[i + 3] * y[i + 3];
+        }
+        for (; i < to; i++) s0 += x[i] * y[i];
+        sums[0] = s0;
+        sums[1] = s1;
+        sums[2] = s2;
+        sums[3] = s3;
+    }
+
+    /**
+     * Adds the terms of l2DistSquared(x, y, 0, length) for elements [from, to) to four running sums, as dotAccumulate() does for dot()
+     * @param x first array
+     * @param y second array
+     * @param from first element
+     * @param to end of the elements
+     * @param sums four running sums
+     */
+    public static void l2DistSquaredAccumulate(double [] x, double [] y, int from, int to, double [] sums) {
+        double s0 = sums[0], s1 = sums[1], s2 = sums[2], s3 = sums[3];
+        int i = from;
+        for (int max = to - 3; i < max; i += 4) {
+            double d0 = y[i] - x[i];
+            double d1 = y[i + 1] - x[i + 1];
+            double d2 = y[i + 2] - x[i + 2];
+            double d3 = y[i + 3] - x[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < to; i++) {
+            double d = y[i] - x[i];
+            s0 += d * d;
+        }
+        sums[0] = s0;
+        sums[1] = s1;
+        sums[2] = s2;
+        sums[3] = s3;
+    }
 
 	/**
 	 * Computes the Euclidean norm of an array of doubles.
@@ -35,11 +151,130 @@ public class MathFns {
 	 * @return norm of the input array
 	 */
     public static double norm2(double [] vals) {
-        double out = 0;
-        for(int i = 0, m = vals.length; i < m; i++) out += vals[i]*vals[i];
-        return Math.sqrt(out);
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int max = vals.length - 3; i < max; i += 4) {
+            s0 += vals[i] * vals[i];
+            s1 += vals[i + 1] * vals[i + 1];
+            s2 += vals[i + 2] * vals[i + 2];
+            s3 += vals[i + 3] * vals[i + 3];
+        }
+        for (; i < vals.length; i++) s0 += vals[i] * vals[i];
+        return Math.sqrt((s0 + s1) + (s2 + s3));
+    }
+
+    /**
+     * Computes the dot product of a query with each of numRows rows packed one after another (row-major, q.length values each) in rows,
+     * starting at offset. Rows are handled four at a time, so each value of the query is loaded once per four rows. Each row is summed in
+     * the same order as dot(q, rows, offset, length), so its result does not depend on where it falls in the batch.
+     * @param q query
+     * @param rows packed rows
+     * @param offset index of the first value of the first row
+     * @param numRows number of rows
+     * @param out out[i] is set to the dot product of q with row i
+     */
+    public static void dot(double [] q, double [] rows, int offset, int numRows, double [] out) {
+        int dim = q.length;
+        int r = 0;
+        for (; r + 3 < numRows; r += 4) {
+            int o0 = offset + r * dim, o1 = o0 + dim, o2 = o1 + dim, o3 = o2 + dim;
+            double a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            double b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+            double c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+            double d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+            int i = 0;
+            for (int max = dim - 3; i < max; i += 4) {
+                double x0 = q[i], x1 = q[i + 1], x2 = q[i + 2], x3 = q[i + 3];
+                a0 += x0 * rows[o0 + i];
+                a1 += x1 * rows[o0 + i + 1];
+                a2 += x2 * rows[o0 + i + 2];
+                a3 += x3 * rows[o0 + i + 3];
+                b0 += x0 * rows[o1 + i];
+                b1 += x1 * rows[o1 + i + 1];
+                b2 += x2 * rows[o1 + i + 2];
+                b3 += x3 * rows[o1 + i + 3];
+                c0 += x0 * rows[o2 + i];
+                c1 += x1 * rows[o2 + i + 1];
+                c2 += x2 * rows[o2 + i + 2];
+                c3 += x3 * rows[o2 + i + 3];
+                d0 += x0 * rows[o3 + i];
+                d1 += x1 * rows[o3 + i + 1];
+                d2 += x2 * rows[o3 + i + 2];
+                d3 += x3 * rows[o3 + i + 3];
+            }
+            for (; i < dim; i++) {
+                double x = q[i];
+                a0 += x * rows[o0 + i];
+                b0 += x * rows[o1 + i];
+                c0 += x * rows[o2 + i];
+                d0 += x * rows[o3 + i];
+            }
+            out[r] = (a0 + a1) + (a2 + a3);
+            out[r + 1] = (b0 + b1) + (b2 + b3);
+            out[r + 2] = (c0 + c1) + (c2 + c3);
+            out[r + 3] = (d0 + d1) + (d2 + d3);
+        }
+        for (; r < numRows; r++) out[r] = dot(q, rows, offset + r * dim, dim);
+    }
+
+    /**
+     * Computes the squared Euclidean distance of a query to each of numRows rows packed as in dot(double [], double [], int, int, double []),
+     * summing each row in the same order as l2DistSquared(q, rows, offset, length)
+     * @param q query
+     * @param rows packed rows
+     * @param offset index of the first value of the first row
+     * @param numRows number of rows
+     * @param out out[i] is set to the squared distance from q to row i
+     */
+    public static void l2DistSquared(double [] q, double [] rows, int offset, int numRows, double [] out) {
+        int dim = q.length;
+        int r = 0;
+        for (; r + 3 < numRows; r += 4) {
+            int o0 = offset + r * dim, o1 = o0 + dim, o2 = o1 + dim, o3 = o2 + dim;
+            double a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            double b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+            double c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+            double d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+            int i = 0;
+            for (int max = dim - 3; i < max; i += 4) {
+                double x0 = q[i], x1 = q[i + 1], x2 = q[i + 2], x3 = q[i + 3];
+                double e0 = rows[o0 + i] - x0, e1 = rows[o0 + i + 1] - x1, e2 = rows[o0 + i + 2] - x2, e3 = rows[o0 + i + 3] - x3;
+                a0 += e0 * e0;
+                a1 += e1 * e1;
+                a2 += e2 * e2;
+                a3 += e3 * e3;
+                e0 = rows[o1 + i] - x0; e1 = rows[o1 + i + 1] - x1; e2 = rows[o1 + i + 2] - x2; e3 = rows[o1 + i + 3] - x3;
+                b0 += e0 * e0;
+                b1 += e1 * e1;
+                b2 += e2 * e2;
+                b3 += e3 * e3;
+                e0 = rows[o2 + i] - x0; e1 = rows[o2 + i + 1] - x1; e2 = rows[o2 + i + 2] - x2; e3 = rows[o2 + i + 3] - x3;
+                c0 += e0 * e0;
+                c1 += e1 * e1;
+                c2 += e2 * e2;
+                c3 += e3 * e3;
+                e0 = rows[o3 + i] - x0; e1 = rows[o3 + i + 1] - x1; e2 = rows[o3 + i + 2] - x2; e3 = rows[o3 + i + 3] - x3;
+                d0 += e0 * e0;
+                d1 += e1 * e1;
+                d2 += e2 * e2;
+                d3 += e3 * e3;
+            }
+            for (; i < dim; i++) {
+                double x = q[i];
+                double e0 = rows[o0 + i] - x, e1 = rows[o1 + i] - x, e2 = rows[o2 + i] - x, e3 = rows[o3 + i] - x;
+                a0 += e0 * e0;
+                b0 += e1 * e1;
+                c0 += e2 * e2;
+                d0 += e3 * e3;
+            }
+            out[r] = (a0 + a1) + (a2 + a3);
+            out[r + 1] = (b0 + b1) + (b2 + b3);
+            out[r + 2] = (c0 + c1) + (c2 + c3);
+            out[r + 3] = (d0 + d1) + (d2 + d3);
+        }
+        for (; r < numRows; r++) out[r] = l2DistSquared(q, rows, offset + r * dim, dim);
     }
-    
+
     /**
      * Divides each element of an array of doubles by a non-zero scalar.
      * @param vals the array
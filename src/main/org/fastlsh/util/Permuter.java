@@ -15,6 +15,7 @@
 
 package org.fastlsh.util;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /** Encodes a permutation and associated methods.  In particular,
@@ -23,11 +24,27 @@ import java.util.Random;
  */
 public class Permuter
 {
-    Random rand = new Random();
+    Random rand;
     int [] permutation;
 
     public Permuter(int numBits)
     {
+        this(numBits, new Random());
+    }
+
+    /** Creates a permuter whose sequence of permutations is fixed by seed.
+     * 
+     * @param numBits number of bits to permute
+     * @param seed seed for the random number generator
+     */
+    public Permuter(int numBits, long seed)
+    {
+        this(numBits, new Random(seed));
+    }
+
+    protected Permuter(int numBits, Random rand)
+    {
+        this.rand = rand;
         permutation = initializeSortIndexArray(numBits);
         reset();
     }
@@ -66,4 +83,26 @@ public class Permuter
         }
         return output;
     }
+
+    /** Permutes the bits of a signature packed in src starting at srcOffset, writing the result to dest starting at destOffset.
+     *  Only the set bits are visited, and nothing is allocated.
+     * 
+     * @param src words holding the input bits
+     * @param srcOffset index of the first word of the input in src
+     * @param dest words to write the permuted bits to
+     * @param destOffset index of the first word of the output in dest
+     * @param numWords number of words in the signature
+     */
+    public void permute(long [] src, int srcOffset, long [] dest, int destOffset, int numWords)
+    {
+        Arrays.fill(dest, destOffset, destOffset + numWords, 0L);
+        for (int w = 0; w < numWords; w++) {
+            long word = src[srcOffset + w];
+            while (word != 0) {
+                int target = permutation[(w << 6) + Long.numberOfTrailingZeros(word)];
+                dest[destOffset + (target >>> 6)] |= 1L << (target & 0x3F);
+                word &= word - 1;
+            }
+        }
+    }
 }
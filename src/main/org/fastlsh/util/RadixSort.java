@@ -0,0 +1,200 @@
+package org.fastlsh.util;
+
+import java.util.Arrays;
+
+/**
+ * Radix sorts for the primitive arrays and packed signatures used when building indices, where a comparison sort would be far too slow.
+ */
+public class RadixSort
+{
+    protected static final int digitBits = 16;
+    protected static final int numBuckets = 1 << digitBits;
+    protected static final int signatureDigitBits = 8;
+    protected static final int signatureBuckets = 1 << signatureDigitBits;
+    protected static final int insertionSortThreshold = 32;
+
+    /**
+     * Sort keys in ascending (signed) order, applying the same rearrangement to values. This is a stable LSD radix sort, 16 bits at a time,
+     * which needs temporary copies of both arrays.
+     * @param keys
+     * @param values
+     */
+    public static void sort(long [] keys, int [] values)
+    {
+        int n = keys.length;
+        if(values.length != n) throw new IllegalArgumentException("Keys and values must have the same length: " + n + " vs " + values.length);
+        if(n < 2) return;
+        long [] keyTmp = new long[n];
+        int [] valTmp = new int[n];
+        int [] counts = new int[numBuckets];
+        for(int shift = 0; shift < 64; shift += digitBits)
+        {
+            Arrays.fill(counts, 0);
+            for(int i = 0; i < n; i++) counts[digit(keys[i], shift)]++;
+            // nothing to do if every key has the same digit
+            if(counts[digit(keys[0], shift)] == n) continue;
+            int total = 0;
+            for(int b = 0; b < numBuckets; b++)
+            {
+                int c = counts[b];
+                counts[b] = total;
+                total += c;
+            }
+            for(int i = 0; i < n; i++)
+            {
+                int dest = counts[digit(keys[i], shift)]++;
+                keyTmp[dest] = keys[i];
+                valTmp[dest] = values[i];
+            }
+            System.arraycopy(keyTmp, 0, keys, 0, n);
+            System.arraycopy(valTmp, 0, values, 0, n);
+        }
+    }
+
+    /**
+     * The digit of a key at a particular shift, with the sign bit flipped so that negative keys sort first
+     */
+    protected static int digit(long key, int shift)
+    {
+        return (int) (((key ^ Long.MIN_VALUE) >>> shift) & (numBuckets - 1));
+    }
+
+    /**
+     * Sort rows of a signature matrix into the order defined by SignatureMatrix.compare(int, int): lexicographic from bit 0 up, with 
+     * ties broken by id and then by row. This is a most significant digit first radix sort on 8 bit digits, where the first digit is bits 0-7 of the 
+     * first word (bit 0 being the most significant), and so on. Each digit pass is a stable counting sort, buckets are sorted recursively 
+     * on the next digit, and small buckets are finished off with an insertion sort.
+     * @param matrix
+     * @param rows rows of the matrix to sort
+     */
+    public static void sort(SignatureMatrix matrix, int [] rows)
+    {
+        new SignatureSorter(matrix).sort(rows);
+    }
+
+    /**
+     * The first word of a signature decides nearly every comparison, so it is carried along with each row (bit reversed, so that bit 0 is 
+     * its most significant bit) in an array parallel to the rows. Digits of the first word, and most comparisons, then come from a 
+     * sequential scan of that array rather than a random read of the matrix.
+     */
+    protected static class SignatureSorter
+    {
+        final SignatureMatrix matrix;
+        final long [] words;
+        final int numWords;
+        final int numDigits;
+        final int [][] counts;
+        int [] tmp;
+        long [] keys;
+        long [] tmpKeys;
+
+        SignatureSorter(SignatureMatrix matrix)
+        {
+            this.matrix = matrix;
+            words = matrix.words();
+            numWords = matrix.numWords();
+            numDigits = (matrix.numBits() + signatureDigitBits - 1) / signatureDigitBits;
+            // one set of counts per digit, since a pass needs its bucket boundaries while the next digit is being sorted
+            counts = new int[numDigits][signatureBuckets + 1];
+        }
+
+        void sort(int [] rows)
+        {
+            int n = rows.length;
+            tmp = new int[n];
+            keys = new long[n];
+            tmpKeys = new long[n];
+            for(int i = 0; i < n; i++) keys[i] = Long.reverse(words[rows[i] * numWords]);
+            sort(rows, 0, n, 0);
+        }
+
+        int digit(int i, int row, int d)
+        {
+            long word = d < 8 ? keys[i] : Long.reverse(words[row * numWords + (d >>> 3)]);
+            return (int) (word >>> (56 - ((d & 7) << 3))) & (signatureBuckets - 1);
+        }
+
+        void sort(int [] rows, int from, int to, int d)
+        {
+            while(true)
+            {
+                if(to - from <= insertionSortThreshold)
+                {
+                    insertionSort(rows, from, to);
+                    return;
+                }
+                if(d == numDigits)
+                {
+                    // identical signatures (so identical keys): order by id, then row
+                    sortByIds(rows, from, to);
+                    return;
+                }
+                int [] c = counts[d];
+                Arrays.fill(c, 0);
+                for(int i = from; i < to; i++) c[digit(i, rows[i], d) + 1]++;
+                if(c[digit(from, rows[from], d) + 1] == to - from)
+                {
+                    // everything has the same digit, so go straight on to the next one
+                    d++;
+                    continue;
+                }
+                for(int b = 0; b < signatureBuckets; b++) c[b + 1] += c[b];
+                for(int i = from; i < to; i++)
+                {
+                    int row = rows[i];
+                    int dest = from + c[digit(i, row, d)]++;
+                    tmp[dest] = row;
+                    tmpKeys[dest] = keys[i];
+                }
+                System.arraycopy(tmp, from, rows, from, to - from);
+                System.arraycopy(tmpKeys, from, keys, from, to - from);
+                // c[b] is now the end of bucket b, relative to from
+                int start = from;
+                for(int b = 0; b < signatureBuckets; b++)
+                {
+                    int end = from + c[b];
+                    if(end - start > 1) sort(rows, start, end, d + 1);
+                    start = end;
+                }
+                return;
+            }
+        }
+
+        /**
+         * Sort rows[from, to) by id and then by row: rows go into row order first, and the stable sort on ids keeps that order for equal ids
+         */
+        void sortByIds(int [] rows, int from, int to)
+        {
+            Arrays.sort(rows, from, to);
+            int [] sorted = Arrays.copyOfRange(rows, from, to);
+            long [] ids = new long[sorted.length];
+            for(int i = 0; i < ids.length; i++) ids[i] = matrix.id(sorted[i]);
+            RadixSort.sort(ids, sorted);
+            System.arraycopy(sorted, 0, rows, from, sorted.length);
+        }
+
+        int compare(long key1, int row1, long key2, int row2)
+        {
+            if(key1 != key2) return (key1 ^ Long.MIN_VALUE) < (key2 ^ Long.MIN_VALUE) ? -1 : 1;
+            return matrix.compare(row1, row2);
+        }
+
+        void insertionSort(int [] rows, int from, int to)
+        {
+            for(int i = from + 1; i < to; i++)
+            {
+                int row = rows[i];
+                long key = keys[i];
+                int j = i - 1;
+                while(j >= from && compare(keys[j], rows[j], key, row) > 0)
+                {
+                    rows[j + 1] = rows[j];
+                    keys[j + 1] = keys[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+                keys[j + 1] = key;
+            }
+        }
+    }
+}
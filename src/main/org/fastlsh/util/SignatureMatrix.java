@@ -0,0 +1,226 @@
+package org.fastlsh.util;
+
+import java.util.Arrays;
+
+/**
+ * All of the signatures of an index packed into a single long[], numWords longs per row, along with the external id of each row.
+ * The row of a signature is its ordinal. This replaces arrays of Signature objects (each with its own BitSet and long[]), so building 
+ * permutation lists over millions of signatures allocates a handful of large arrays rather than an object per signature per permutation.
+ * 
+ * <br>Bits are laid out exactly as in BitSet, and bits past numBits in the last word of a row must be zero.
+ */
+public class SignatureMatrix
+{
+    protected static final int insertionSortThreshold = 16;
+
+    protected final int numBits;
+    protected final int numWords;
+    protected long [] words;
+    protected long [] ids;
+    protected int numRows;
+
+    public SignatureMatrix(int numBits, int capacity)
+    {
+        this.numBits = numBits;
+        numWords = (numBits + 63) >>> 6;
+        words = new long[capacity * numWords];
+        ids = new long[capacity];
+    }
+
+    public int numBits() {return numBits;}
+
+    public int numWords() {return numWords;}
+
+    public int size() {return numRows;}
+
+    /**
+     * The packed words backing the matrix: row r occupies [r * numWords(), (r + 1) * numWords())
+     * @return
+     */
+    public long [] words() {return words;}
+
+    public long id(int row) {return ids[row];}
+
+    public long word(int row, int word) {return words[row * numWords + word];}
+
+    /**
+     * Append a signature, growing the matrix if need be
+     * @param id external id of the signature
+     * @param bits
+     * @return the row (ordinal) of the signature
+     */
+    public int add(long id, BitSet bits)
+    {
+        if(bits.numBits != numBits) throw new IllegalArgumentException("Expected signature of " + numBits + " bits, but got " + bits.numBits);
+        ensureCapacity(numRows + 1);
+        System.arraycopy(bits.bits, 0, words, numRows * numWords, numWords);
+        ids[numRows] = id;
+        return numRows++;
+    }
+
+    /**
+     * Append a signature already packed into words, as in words()
+     * @param id external id of the signature
+     * @param src
+     * @param offset index of the first word of the signature in src
+     * @return the row (ordinal) of the signature
+     */
+    public int add(long id, long [] src, int offset)
+    {
+        ensureCapacity(numRows + 1);
+        System.arraycopy(src, offset, words, numRows * numWords, numWords);
+        ids[numRows] = id;
+        return numRows++;
+    }
+
+    /**
+     * Remove all rows, keeping the allocated capacity
+     */
+    public void clear()
+    {
+        numRows = 0;
+    }
+
+    protected void ensureCapacity(int rows)
+    {
+        if(rows <= ids.length) return;
+        int newCapacity = (int) Math.min(Integer.MAX_VALUE / numWords, Math.max(rows, ids.length * 2L));
+        if(newCapacity < rows) throw new IllegalStateException("Signature matrix cannot hold " + rows + " rows");
+        words = Arrays.copyOf(words, newCapacity * numWords);
+        ids = Arrays.copyOf(ids, newCapacity);
+    }
+
+    /**
+     * Copy a row out into a (newly allocated) BitSet
+     * @param row
+     * @return
+     */
+    public BitSet get(int row)
+    {
+        BitSet retval = new BitSet(numBits);
+        System.arraycopy(words, row * numWords, retval.bits, 0, numWords);
+        return retval;
+    }
+
+    /**
+     * Permute the bits of every row into dest, which ends up with the same number of rows and ids as this matrix
+     * @param p
+     * @param dest
+     */
+    public void permute(Permuter p, SignatureMatrix dest)
+    {
+        if(dest.numBits != numBits) throw new IllegalArgumentException("Can't permute into a matrix with " + dest.numBits + " bits from one with " + numBits);
+        dest.numRows = 0;
+        dest.ensureCapacity(numRows);
+        for(int r = 0, offset = 0; r < numRows; r++, offset += numWords) p.permute(words, offset, dest.words, offset, numWords);
+        System.arraycopy(ids, 0, dest.ids, 0, numRows);
+        dest.numRows = numRows;
+    }
+
+    /**
+     * Compare two rows with the same ordering as LexicographicBitSetComparator: the first differing bit (from bit 0 up) decides, and the row
+     * with that bit set is greater. Equal signatures are ordered by id, as LexicographicBitSetComparator orders them, and then by row.
+     * @param row1
+     * @param row2
+     * @return
+     */
+    public int compare(int row1, int row2)
+    {
+        int cmp = compare(words, row1 * numWords, words, row2 * numWords, numWords);
+        if(cmp != 0) return cmp;
+        return compareIds(row1, row2);
+    }
+
+    /**
+     * Order rows by id, and rows with the same id by row
+     */
+    public int compareIds(int row1, int row2)
+    {
+        long id1 = ids[row1];
+        long id2 = ids[row2];
+        if(id1 != id2) return id1 > id2 ? 1 : -1;
+        return row1 == row2 ? 0 : row1 > row2 ? 1 : -1;
+    }
+
+    /**
+     * Compare two packed signatures with the same ordering as LexicographicBitSetComparator
+     * @param words1
+     * @param offset1 index of the first word of the first signature in words1
+     * @param words2
+     * @param offset2 index of the first word of the second signature in words2
+     * @param numWords
+     * @return 0 if the signatures are equal
+     */
+    public static int compare(long [] words1, int offset1, long [] words2, int offset2, int numWords)
+    {
+        for(int i = 0; i < numWords; i++)
+        {
+            long w1 = words1[offset1 + i];
+            long w2 = words2[offset2 + i];
+            if(w1 != w2)
+            {
+                long xor = w1 ^ w2;
+                return (w1 & xor & -xor) != 0 ? 1 : -1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param row
+     * @param words
+     * @param offset
+     * @return the number of bits which differ between a row and the signature in words starting at offset
+     */
+    public int hammingDistance(int row, long [] words, int offset)
+    {
+        return hammingDistance(this.words, row * numWords, words, offset, numWords);
+    }
+
+    public static int hammingDistance(long [] words1, int offset1, long [] words2, int offset2, int numWords)
+    {
+        int retval = 0;
+        for(int i = 0; i < numWords; i++) retval += Long.bitCount(words1[offset1 + i] ^ words2[offset2 + i]);
+        return retval;
+    }
+
+    /**
+     * Sort an array of rows of this matrix, ordered by compare(int, int)
+     * @param rows
+     */
+    public void sort(int [] rows)
+    {
+        int [] tmp = rows.clone();
+        mergeSort(tmp, rows, 0, rows.length);
+    }
+
+    /**
+     * Merge sort src[from, to) into dest[from, to): src and dest must start out with the same contents
+     */
+    protected void mergeSort(int [] src, int [] dest, int from, int to)
+    {
+        if(to - from <= insertionSortThreshold)
+        {
+            for(int i = from + 1; i < to; i++)
+            {
+                int row = dest[i];
+                int j = i - 1;
+                while(j >= from && compare(dest[j], row) > 0)
+                {
+                    dest[j + 1] = dest[j];
+                    j--;
+                }
+                dest[j + 1] = row;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dest, src, from, mid);
+        mergeSort(dest, src, mid, to);
+        for(int i = from, l = from, r = mid; i < to; i++)
+        {
+            if(r >= to || (l < mid && compare(src[l], src[r]) <= 0)) dest[i] = src[l++];
+            else dest[i] = src[r++];
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.fastlsh.util;
+
+/**
+ * Keeps the k best (id, score) pairs seen so far in a bounded binary heap held in parallel primitive arrays, so nothing is allocated per candidate.
+ * The heap's root is the worst pair kept, so a candidate which cannot beat it is rejected in constant time.
+ *
+ * <br>Pairs are ordered as Neighbor.SimilarityComparator (largest score first) or Neighbor.DissimilarityComparator (smallest score first) order them,
+ * including their tie breaking on id, so toNeighbors() gives exactly the first k elements of a full sort with the corresponding comparator.
+ */
+public class TopK
+{
+    protected int k;
+    protected boolean largestFirst;
+    protected long [] ids;
+    protected double [] scores;
+    protected int size;
+
+    /**
+     * @param k number of pairs to keep
+     * @param largestFirst true to keep the largest scores (ties go to the larger id), false to keep the smallest (ties go to the smaller id)
+     */
+    public TopK(int k, boolean largestFirst)
+    {
+        if(k < 0) throw new IllegalArgumentException("k must be non-negative, got " + k);
+        this.k = k;
+        this.largestFirst = largestFirst;
+        ids = new long[k];
+        scores = new double[k];
+    }
+
+    /**
+     * Empty the heap, and start keeping a different number of pairs, in a different order. Arrays are only reallocated if k grows beyond
+     * the largest k used so far.
+     * @param k
+     * @param largestFirst
+     */
+    public void reset(int k, boolean largestFirst)
+    {
+        if(k < 0) throw new IllegalArgumentException("k must be non-negative, got " + k);
+        if(k > ids.length)
+        {
+            ids = new long[k];
+            scores = new double[k];
+        }
+        this.k = k;
+        this.largestFirst = largestFirst;
+        size = 0;
+    }
+
+    public int size() {return size;}
+
+    public boolean isFull() {return size == k;}
+
+    public void clear() {size = 0;}
+
+    public boolean largestFirst() {return largestFirst;}
+
+    /**
+     * @return the score of the worst pair kept: only valid when size() > 0
+     */
+    public double worstScore() {return scores[0];}
+
+    /**
+     * @param score
+     * @return false if a pair with this score certainly would not be kept
+     */
+    public boolean canAdd(double score)
+    {
+        if(size < k) return true;
+        if(k == 0) return false;
+        return largestFirst ? score >= scores[0] : score <= scores[0];
+    }
+
+    /**
+     * Offer a pair
+     * @param id
+     * @param score
+     * @return true if it was kept
+     */
+    public boolean add(long id, double score)
+    {
+        if(size < k)
+        {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if(k == 0 || !better(id, score, ids[0], scores[0])) return false;
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * @return true if (id1, score1) comes before (id2, score2)
+     */
+    protected boolean better(long id1, double score1, long id2, double score2)
+    {
+        if(score1 != score2) return largestFirst ? score1 > score2 : score1 < score2;
+        return largestFirst ? id1 > id2 : id1 < id2;
+    }
+
+    protected boolean better(int i, int j)
+    {
+        return better(ids[i], scores[i], ids[j], scores[j]);
+    }
+
+    protected void siftUp(int i)
+    {
+        while(i > 0)
+        {
+            int parent = (i - 1) >>> 1;
+            if(!better(parent, i)) return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    protected void siftDown(int i)
+    {
+        while(true)
+        {
+            int worst = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if(left < size && better(worst, left)) worst = left;
+            if(right < size && better(worst, right)) worst = right;
+            if(worst == i) return;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    protected void swap(int i, int j)
+    {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+
+    /**
+     * Empty the heap into ids and scores, best first
+     * @param ids
+     * @param scores
+     * @return the number of pairs written
+     */
+    public int drain(long [] ids, double [] scores)
+    {
+        int retval = size;
+        while(size > 0)
+        {
+            ids[size - 1] = this.ids[0];
+            scores[size - 1] = this.scores[0];
+            pop();
+        }
+        return retval;
+    }
+
+    /**
+     * Remove the worst pair
+     */
+    protected void pop()
+    {
+        size--;
+        if(size > 0)
+        {
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Empty the heap into an array of neighbors, best first
+     * @return
+     */
+    public Neighbor [] toNeighbors()
+    {
+        Neighbor [] retval = new Neighbor[size];
+        while(size > 0)
+        {
+            retval[size - 1] = new Neighbor(ids[0], scores[0]);
+            pop();
+        }
+        return retval;
+    }
+}
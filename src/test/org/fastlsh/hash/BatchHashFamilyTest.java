@@ -0,0 +1,83 @@
+package org.fastlsh.hash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.fastlsh.index.VectorWithId;
+import org.junit.Test;
+
+public class BatchHashFamilyTest
+{
+    protected static VectorWithId [] randomVectors(int n, int dimension, Random rand)
+    {
+        VectorWithId [] retval = new VectorWithId[n];
+        for(int i = 0; i < n; i++)
+        {
+            double [] vals = new double[dimension];
+            for(int j = 0; j < dimension; j++) vals[j] = rand.nextGaussian();
+            retval[i] = new VectorWithId(i, vals);
+        }
+        return retval;
+    }
+
+    @Test
+    public void testMatchesCosineHashes()
+    {
+        // small dimension, 2 words; large dimension, so the projections are split into several cache blocks
+        int [][] shapes = new int [][] {{7, 100}, {3000, 70}};
+        for(int [] shape : shapes)
+        {
+            int dimension = shape[0];
+            int numHashes = shape[1];
+            HashFunction [] fns = new HashFunction[numHashes];
+            Random rand = new Random(42);
+            for(int i = 0; i < numHashes; i++) fns[i] = new CosineHash(dimension, rand);
+            HashFamily expected = new HashFamily(fns);
+            BatchHashFamily batch = new BatchHashFamily(dimension, numHashes, 42L);
+            Assert.assertEquals(numHashes, batch.numHashes());
+
+            VectorWithId [] vecs = randomVectors(23, dimension, new Random(7));
+            int numWords = (numHashes + 63) >>> 6;
+            // an odd offset and range, so both the blocked and the leftover paths are used
+            long [] words = new long[1 + 21 * numWords];
+            Arrays.fill(words, -1L);
+            batch.makeSignatures(vecs, 1, 22, words, 1);
+            long [] single = new long[1 + numWords];
+            for(int v = 1; v < 22; v++)
+            {
+                long [] bits = expected.makeSignature(vecs[v]).bits;
+                Assert.assertTrue(Arrays.equals(bits, batch.makeSignature(vecs[v]).bits));
+                Assert.assertTrue(Arrays.equals(bits, Arrays.copyOfRange(words, 1 + (v - 1) * numWords, 1 + v * numWords)));
+                // hashing a bare vector, over a dirty buffer
+                Arrays.fill(single, -1L);
+                batch.makeSignature(vecs[v].values(), single, 1);
+                Assert.assertTrue(Arrays.equals(bits, Arrays.copyOfRange(single, 1, single.length)));
+                Arrays.fill(single, -1L);
+                expected.makeSignature(vecs[v].values(), single, 1);
+                Assert.assertTrue(Arrays.equals(bits, Arrays.copyOfRange(single, 1, single.length)));
+            }
+
+            // the default implementation gives the same packed words
+            long [] defaultWords = new long[words.length];
+            expected.makeSignatures(vecs, 1, 22, defaultWords, 1);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(words, 1, words.length), Arrays.copyOfRange(defaultWords, 1, defaultWords.length)));
+        }
+    }
+
+    @Test
+    public void testSerializesSeedOnly() throws Exception
+    {
+        // a family with a quarter of a million projection values
+        BatchHashFamily family = new BatchHashFamily(1000, 256, 42L);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(family);
+        oos.close();
+        Assert.assertTrue(bytes.size() < 1024);
+        HadamardHashFamilyTest.assertBatchMatchesSingle(family, 1000);
+    }
+}
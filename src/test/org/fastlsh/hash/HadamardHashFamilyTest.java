@@ -0,0 +1,121 @@
+package org.fastlsh.hash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.fastlsh.index.VectorWithId;
+import org.fastlsh.util.BitSet;
+import org.junit.Test;
+
+public class HadamardHashFamilyTest
+{
+    @Test
+    public void testFwht()
+    {
+        Random rand = new Random(3);
+        int n = 16;
+        double [] x = new double[n];
+        for(int i = 0; i < n; i++) x[i] = rand.nextGaussian();
+        double [] y = x.clone();
+        HadamardHashFamily.fwht(y);
+        for(int i = 0; i < n; i++)
+        {
+            // H[i][j] = (-1)^popcount(i & j)
+            double expected = 0;
+            for(int j = 0; j < n; j++) expected += (Integer.bitCount(i & j) % 2 == 0 ? 1 : -1) * x[j];
+            Assert.assertEquals(expected, y[i], 1e-9);
+        }
+    }
+
+    @Test
+    public void testBatchMatchesSingle() throws Exception
+    {
+        // fewer hashes than the padded dimension; several blocks, the last one partial
+        int [][] shapes = new int [][] {{100, 70}, {33, 150}};
+        for(int [] shape : shapes)
+        {
+            int dimension = shape[0];
+            int numHashes = shape[1];
+            HadamardHashFamily family = new HadamardHashFamily(dimension, numHashes, 42L);
+            Assert.assertEquals(numHashes, family.numHashes());
+            assertBatchMatchesSingle(family, dimension);
+        }
+    }
+
+    /**
+     * Check that makeSignatures() and makeSignature(double [], long [], int) pack the same signatures as makeSignature(), and that a serialized copy of the family makes the same signatures
+     */
+    protected static void assertBatchMatchesSingle(HashFamily family, int dimension) throws Exception
+    {
+        int numHashes = family.numHashes();
+        VectorWithId [] vecs = BatchHashFamilyTest.randomVectors(9, dimension, new Random(7));
+        int numWords = (numHashes + 63) >>> 6;
+        long [] words = new long[1 + 8 * numWords];
+        Arrays.fill(words, -1L);
+        family.makeSignatures(vecs, 1, 9, words, 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(family);
+        oos.close();
+        HashFamily copy = (HashFamily) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        long [] single = new long[1 + numWords];
+        for(int v = 1; v < 9; v++)
+        {
+            long [] bits = family.makeSignature(vecs[v]).bits;
+            Assert.assertTrue(Arrays.equals(bits, Arrays.copyOfRange(words, 1 + (v - 1) * numWords, 1 + v * numWords)));
+            Arrays.fill(single, -1L);
+            family.makeSignature(vecs[v].values(), single, 1);
+            Assert.assertTrue(Arrays.equals(bits, Arrays.copyOfRange(single, 1, single.length)));
+            Assert.assertTrue(Arrays.equals(bits, copy.makeSignature(vecs[v]).bits));
+        }
+    }
+
+    @Test
+    public void testAngleEstimate()
+    {
+        assertEstimatesAngles(new HadamardHashFamily(300, 4096, 11L), 300, new Random(5));
+    }
+
+    /**
+     * Check that the fraction of differing bits in the signatures of vectors at various angles is close to angle / pi
+     */
+    protected static void assertEstimatesAngles(HashFamily family, int dimension, Random rand)
+    {
+        int numHashes = family.numHashes();
+        double [] angles = new double [] {0.1, 0.5, 1.0, 1.5, 2.5};
+        for(double angle : angles)
+        {
+            // x and an orthogonal unit vector u, so y = cos(angle) x + sin(angle) u
+            double [] x = BatchHashFamilyTest.randomVectors(1, dimension, rand)[0].values();
+            double [] u = BatchHashFamilyTest.randomVectors(1, dimension, rand)[0].values();
+            normalize(x);
+            double dot = 0;
+            for(int i = 0; i < dimension; i++) dot += x[i] * u[i];
+            for(int i = 0; i < dimension; i++) u[i] -= dot * x[i];
+            normalize(u);
+            double [] y = new double[dimension];
+            for(int i = 0; i < dimension; i++) y[i] = Math.cos(angle) * x[i] + Math.sin(angle) * u[i];
+
+            BitSet bx = family.makeSignature(new VectorWithId(0, x));
+            BitSet by = family.makeSignature(new VectorWithId(1, y));
+            int differing = 0;
+            for(int i = 0; i < bx.bits.length; i++) differing += Long.bitCount(bx.bits[i] ^ by.bits[i]);
+            Assert.assertEquals(angle / Math.PI, differing / (double) numHashes, 0.04);
+        }
+    }
+
+    protected static void normalize(double [] x)
+    {
+        double norm = 0;
+        for(double v : x) norm += v * v;
+        norm = Math.sqrt(norm);
+        for(int i = 0; i < x.length; i++) x[i] /= norm;
+    }
+}
@@ -0,0 +1,37 @@
+package org.fastlsh.hash;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class SparseCosineHashFamilyTest
+{
+    @Test
+    public void testBatchMatchesSingle() throws Exception
+    {
+        SparseCosineHashFamily family = new SparseCosineHashFamily(100, 150, 42L);
+        Assert.assertEquals(150, family.numHashes());
+        HadamardHashFamilyTest.assertBatchMatchesSingle(family, 100);
+    }
+
+    @Test
+    public void testSparsity()
+    {
+        int dimension = 10000;
+        int numHashes = 256;
+        SparseCosineHashFamily family = new SparseCosineHashFamily(dimension, numHashes, 3L);
+        // about sqrt(dimension) = 100 nonzeros per projection
+        Assert.assertEquals(100.0, family.numNonZeros() / (double) numHashes, 5.0);
+        // even when that rounds down to nothing, every projection gets a nonzero
+        family = new SparseCosineHashFamily(10, numHashes, 1000, 3L);
+        Assert.assertTrue(family.numNonZeros() >= numHashes);
+    }
+
+    @Test
+    public void testAngleEstimate()
+    {
+        HadamardHashFamilyTest.assertEstimatesAngles(new SparseCosineHashFamily(300, 4096, 11L), 300, new Random(5));
+    }
+}
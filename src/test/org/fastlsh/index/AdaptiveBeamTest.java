@@ -0,0 +1,77 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.Comparator;
+
+import junit.framework.Assert;
+
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.fastlsh.query.SearchContext;
+import org.fastlsh.threshold.CosineSimilarityThreshold;
+import org.fastlsh.threshold.L2Threshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.Neighbor;
+import org.junit.Test;
+
+public class AdaptiveBeamTest
+{
+    int numHashes   = 128;
+    int numFeatures = 30;
+    int numRows     = 2000;
+    int numCopies   = 100;
+
+    @Test
+    public void testAdaptiveSearch() throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        try
+        {
+            IndexOptions options = HammingFilterTest.makePlantedIndex(dir, numHashes, numFeatures, numRows, numCopies);
+            NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+            SearchContext context = searcher.createContext();
+            Comparator<Neighbor> comparator = new Neighbor.SimilarityComparator();
+            ScoreThreshold thresh = new CosineSimilarityThreshold(0.5);
+            int numPermutations = options.numPermutations;
+
+            // with no Hamming bound and no stability check, the walk reads exactly the fixed beam
+            searcher.setAdaptiveBeam(7, 20, numHashes, Integer.MAX_VALUE);
+            for(int i = 0; i < 20; i++)
+            {
+                Neighbor [] expected = searcher.getScoredNeighbors(i, 20, numPermutations, 5, comparator, thresh);
+                int numResults = searcher.getAdaptiveNeighbors(i, numPermutations, 5, comparator, thresh, context);
+                Assert.assertEquals(SearchContext.StopReason.RADIUS, context.stopReason());
+                Assert.assertEquals(expected.length, numResults);
+                for(int j = 0; j < numResults; j++) Assert.assertEquals(expected[j].id, context.resultIds()[j]);
+            }
+
+            // a Hamming bound and a stable top 2 (the vector itself and its copy) stop well short of the max radius
+            int maxDistance = NearestNeighborSearcher.maxHammingDistance(0.9, numHashes, 3.0);
+            searcher.setAdaptiveBeam(8, 500, maxDistance, 2);
+            int bothFound = 0;
+            int numVisited = 0;
+            for(int i = 0; i < numCopies; i++)
+            {
+                int numResults = searcher.getAdaptiveNeighbors(i, numPermutations, 2, comparator, thresh, context);
+                Assert.assertTrue(context.stopReason() != SearchContext.StopReason.RADIUS);
+                numVisited += context.numVisited();
+                if(numResults == 2 && context.resultIds()[0] + context.resultIds()[1] == numRows + 2 * i) bothFound++;
+            }
+            Assert.assertTrue("found both for " + bothFound, bothFound >= 90);
+            Assert.assertTrue("visited " + numVisited, numVisited < numCopies * numPermutations * 1000 / 10);
+
+            // query vectors start from their binary searched positions, and the nearest to an indexed vector is itself
+            VectorStoreReader vectors = new VectorStoreReader(new File(dir, Constants.inputData));
+            for(int i = 0; i < 20; i++)
+            {
+                int numResults = searcher.getAdaptiveNeighbors(vectors.get(i), numPermutations, 1, new Neighbor.DissimilarityComparator(), new L2Threshold(0.5), context);
+                Assert.assertEquals(1, numResults);
+                Assert.assertEquals(i, context.resultIds()[0]);
+            }
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+}
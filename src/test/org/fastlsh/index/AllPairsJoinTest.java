@@ -0,0 +1,131 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import junit.framework.Assert;
+
+import org.fastlsh.query.AllPairsJoin;
+import org.fastlsh.threshold.CosineSimilarityThreshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.junit.Test;
+
+public class AllPairsJoinTest
+{
+    int numHashes   = 128;
+    int numFeatures = 30;
+    int numRows     = 2000;
+    int numCopies   = 100;
+    int window      = 10;
+
+    @Test
+    public void testAllPairs() throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        try
+        {
+            IndexOptions options = HammingFilterTest.makePlantedIndex(dir, numHashes, numFeatures, numRows, numCopies);
+            ScoreThreshold thresh = new CosineSimilarityThreshold(0.9);
+            List<String> expected = bruteForce(dir, options.numPermutations, thresh);
+
+            // one partition on one thread, and many partitions on several threads, both find exactly the pairs within the window
+            AllPairsJoin join = new AllPairsJoin(dir.getAbsolutePath(), window, options.numPermutations, thresh);
+            Assert.assertEquals(expected, read(join, new File(dir, "pairs1")));
+            join.setParallelism(3, 24 * 5000);
+            Assert.assertEquals(expected, read(join, new File(dir, "pairs2")));
+
+            // blocks much smaller than the lists, and not a multiple of the window, so that pairs straddle the block boundaries
+            for(int listBlock : new int [] {37, 1, window})
+            {
+                join.setListBlock(listBlock);
+                Assert.assertEquals(expected, read(join, new File(dir, "pairs_block" + listBlock)));
+            }
+            join.setListBlock(AllPairsJoin.defaultListBlock);
+
+            // too little memory for even one vector's pairs fails cleanly
+            join.setParallelism(1, 24 * 10);
+            try
+            {
+                join.join(new File(dir, "pairs_small"));
+                Assert.fail("Expected the memory limit to be too small");
+            }
+            catch(IllegalArgumentException e) { /* expected */ }
+            join.setParallelism(3, 24 * 5000);
+
+            // nearly all of the planted copies are found
+            HashSet<String> found = new HashSet<String>(expected);
+            int numPlanted = 0;
+            for(int i = 0; i < numCopies; i++)
+            {
+                for(String pair : found) if(pair.startsWith(i + " " + (numRows + i) + " ") || pair.startsWith((numRows + i) + " " + i + " ")) numPlanted++;
+            }
+            Assert.assertTrue("found " + numPlanted, numPlanted >= 90);
+
+            // the Hamming filter only drops pairs
+            join.setHammingFilter(NearestNeighborSearcher.maxHammingDistance(0.9, numHashes, 3.0));
+            List<String> filtered = read(join, new File(dir, "pairs3"));
+            Assert.assertTrue(found.containsAll(filtered));
+            Assert.assertTrue(filtered.size() >= expected.size() * 9 / 10);
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+
+    protected List<String> read(AllPairsJoin join, File file) throws Exception
+    {
+        long numPairs = join.join(file);
+        AllPairsJoin.PairReader pairs = new AllPairsJoin.PairReader(file);
+        List<String> retval = new ArrayList<String>();
+        try
+        {
+            Assert.assertEquals(numPairs, pairs.size());
+            while(pairs.next()) retval.add(pairs.id1() + " " + pairs.id2() + " " + Double.doubleToLongBits(pairs.score()));
+        }
+        finally
+        {
+            pairs.close();
+        }
+        Assert.assertEquals(numPairs, retval.size());
+        return retval;
+    }
+
+    /**
+     * Score every pair within the window in each list, in (smaller ordinal, larger ordinal) order
+     */
+    protected List<String> bruteForce(File dir, int numPermutations, ScoreThreshold thresh) throws Exception
+    {
+        IndexReader reader = new IndexReader(dir.getAbsolutePath());
+        reader.initializeOptions();
+        reader.initializePermutationIndex();
+        reader.initializePermutationLists();
+        reader.initializeRawVecs();
+        TreeSet<Long> keys = new TreeSet<Long>();
+        for(int p = 0; p < numPermutations; p++)
+        {
+            int [] list = reader.permutationLists[p].get(0, reader.permutationLists[p].length());
+            for(int i = 0; i < list.length; i++)
+            {
+                for(int j = i + 1; j <= i + window && j < list.length; j++)
+                {
+                    keys.add(((long) Math.min(list[i], list[j]) << 32) | Math.max(list[i], list[j]));
+                }
+            }
+        }
+        List<String> retval = new ArrayList<String>();
+        for(long key : keys)
+        {
+            int a = (int) (key >>> 32);
+            int b = (int) key;
+            double score = thresh.score(reader.rawVectors.get(a), reader.rawVectors.get(b));
+            if(thresh.threshold(score)) retval.add(reader.id(a) + " " + reader.id(b) + " " + Double.doubleToLongBits(score));
+        }
+        return retval;
+    }
+}
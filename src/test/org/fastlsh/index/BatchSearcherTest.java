@@ -0,0 +1,125 @@
+package org.fastlsh.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.fastlsh.query.BatchSearcher;
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.fastlsh.threshold.L2Threshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.Neighbor;
+import org.junit.Test;
+
+public class BatchSearcherTest
+{
+    int numHashes   = 128;
+    int numFeatures = 30;
+    int numRows     = 2000;
+    int numCopies   = 100;
+
+    @Test
+    public void testMatchesSingleQueries() throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        try
+        {
+            IndexOptions options = HammingFilterTest.makePlantedIndex(dir, numHashes, numFeatures, numRows, numCopies);
+            NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+            Comparator<Neighbor> comparator = new Neighbor.DissimilarityComparator();
+            ScoreThreshold thresh = new L2Threshold(1.2);
+
+            StringBuilder ids = new StringBuilder();
+            Map<Long, String> expected = new HashMap<Long, String>();
+            for(long id = 0; id < numRows + numCopies; id += 3)
+            {
+                ids.append(id).append('\n');
+                expected.put(id, format(searcher.getScoredNeighbors(id, 10, options.numPermutations, 5, comparator, thresh)));
+            }
+            // not in the index, so skipped
+            ids.append(-7).append('\n');
+
+            BatchSearcher batch = new BatchSearcher(searcher, 10, options.numPermutations, 5, comparator, thresh);
+            batch.setChunkSize(16);
+            Assert.assertEquals(expected, search(batch, ids.toString(), expected.size()));
+
+            // sweeping the lists for blocks of queries, with a sweep size that leaves a partial block at the end, finds the same neighbors
+            batch.setLocalityOrdered(100);
+            Assert.assertEquals(expected, search(batch, ids.toString(), expected.size()));
+
+            // the vote filter sees the same candidates, in the same order
+            searcher.setVoteFilter(20, true);
+            for(long id = 0; id < numRows + numCopies; id += 3) expected.put(id, format(searcher.getScoredNeighbors(id, 10, options.numPermutations, 5, comparator, thresh)));
+            Assert.assertEquals(expected, search(batch, ids.toString(), expected.size()));
+
+            // sweeps too big for the heap are turned down up front
+            try
+            {
+                batch.setLocalityOrdered(Integer.MAX_VALUE);
+                Assert.fail("Expected an oversized sweep to be rejected");
+            }
+            catch(IllegalArgumentException e) { /* expected */ }
+
+            // a line which is not an id fails the batch, and says where it is, whether or not the lists are swept
+            for(int sweepSize : new int [] {100, 0})
+            {
+                batch.setLocalityOrdered(sweepSize);
+                try
+                {
+                    batch.search(new BufferedReader(new StringReader("1\n2\n\nx3\n4\n")), new StringWriter(), 2);
+                    Assert.fail("Expected a malformed id to fail the batch");
+                }
+                catch(IOException e)
+                {
+                    Assert.assertTrue(e.getMessage(), e.getMessage().contains("Line 4") && e.getMessage().contains("x3"));
+                }
+            }
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+
+    /**
+     * Run a batch, and parse its output
+     * @return formatted neighbors by query id
+     */
+    protected static Map<Long, String> search(BatchSearcher batch, String ids, int numFound) throws Exception
+    {
+        StringWriter out = new StringWriter();
+        Assert.assertEquals(numFound, batch.search(new BufferedReader(new StringReader(ids)), out, 4));
+
+        // results come in chunk completion order, so compare them query by query
+        Map<Long, String> actual = new HashMap<Long, String>();
+        String [] lines = out.toString().split("\n");
+        for(int i = 0; i < lines.length; )
+        {
+            if(lines[i].length() == 0)
+            {
+                i++;
+                continue;
+            }
+            long id = Long.parseLong(lines[i]);
+            StringBuilder neighbors = new StringBuilder();
+            for(i += 2; i < lines.length && lines[i].length() > 0; i++) neighbors.append(lines[i]).append('\n');
+            actual.put(id, neighbors.toString());
+        }
+        return actual;
+    }
+
+    protected static String format(Neighbor [] neighbors)
+    {
+        StringBuilder retval = new StringBuilder();
+        for(Neighbor n : neighbors) retval.append(n.id).append(',').append(n.score).append('\n');
+        return retval.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.fastlsh.query.SearchContext;
+import org.fastlsh.threshold.BoundedScoreThreshold;
+import org.fastlsh.threshold.CosineSimilarityThreshold;
+import org.fastlsh.threshold.L2Threshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.MathFns;
+import org.fastlsh.util.Neighbor;
+import org.junit.Test;
+
+public class BoundedScoringTest
+{
+    int numHashes   = 128;
+    int numFeatures = 202;
+    int numRows     = 2000;
+    int numCopies   = 50;
+
+    @Test
+    public void testBlocksMatchFullScore()
+    {
+        Random rand = new Random(1);
+        BoundedScoreThreshold [] thresholds = {new CosineSimilarityThreshold(0.5), new L2Threshold(1.0)};
+        double [] sums = new double[4];
+        for(int dim : new int [] {1, 3, 4, 31, 32, 33, 202})
+        {
+            for(BoundedScoreThreshold thresh : thresholds)
+            {
+                double [] x = HammingFilterTest.randomUnitVector(dim, rand);
+                double [] prepared = thresh.prepare(x, null);
+                for(int trial = 0; trial < 50; trial++)
+                {
+                    double [] y = HammingFilterTest.randomUnitVector(dim, rand);
+                    // mix in some of the query so that some candidates pass
+                    for(int i = 0; i < dim; i++) y[i] += trial % 5 * 0.5 * x[i];
+                    double full = thresh.score(x, y);
+                    Arrays.fill(sums, 0.0);
+                    boolean rejected = false;
+                    for(int from = 0; from < dim; from += 8)
+                    {
+                        int to = Math.min(dim, from + 8);
+                        thresh.accumulate(x, y, from, to, sums);
+                        double restNorm = MathFns.norm2(Arrays.copyOfRange(y, to, dim)) * (1 + 1e-12);
+                        rejected |= thresh.cannotPass(sums, to, prepared, MathFns.norm2(y) * (1 + 1e-12), restNorm, Double.NaN);
+                    }
+                    Assert.assertEquals(Double.doubleToLongBits(full), Double.doubleToLongBits(thresh.finish(sums)));
+                    if(rejected) Assert.assertFalse(thresh.threshold(full));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameResultsAsFullScoring() throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        try
+        {
+            IndexOptions options = HammingFilterTest.makePlantedIndex(dir, numHashes, numFeatures, numRows, numCopies);
+            NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+            SearchContext context = searcher.createContext();
+            check(searcher, context, options, new Neighbor.SimilarityComparator(), new CosineSimilarityThreshold(-1.0), 5);
+            check(searcher, context, options, new Neighbor.SimilarityComparator(), new CosineSimilarityThreshold(0.3), -1);
+            check(searcher, context, options, new Neighbor.DissimilarityComparator(), new L2Threshold(2.0), 5);
+            check(searcher, context, options, new Neighbor.DissimilarityComparator(), new L2Threshold(0.5), -1);
+            // a threshold which cannot be scored a block at a time is scored in full
+            final ScoreThreshold cosine = new CosineSimilarityThreshold(0.3);
+            ScoreThreshold plain = new ScoreThreshold()
+            {
+                public double score(double [] x, double [] y) {return cosine.score(x, y);}
+
+                public boolean threshold(double score) {return cosine.threshold(score);}
+            };
+            check(searcher, context, options, new Neighbor.SimilarityComparator(), plain, -1);
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+
+    protected void check(NearestNeighborSearcher searcher, SearchContext context, IndexOptions options, Comparator<Neighbor> comparator,
+            ScoreThreshold thresh, int maxNeighbors) throws Exception
+    {
+        int abandoned = 0;
+        int scored = 0;
+        for(int i = 0; i < numCopies; i++)
+        {
+            searcher.setBoundedScoring(false);
+            Neighbor [] expected = searcher.getScoredNeighbors(i, 50, options.numPermutations, maxNeighbors, comparator, thresh);
+            searcher.setBoundedScoring(true);
+            int numResults = searcher.getScoredNeighbors(i, 50, options.numPermutations, maxNeighbors, comparator, thresh, context);
+            Assert.assertEquals(expected.length, numResults);
+            for(int j = 0; j < numResults; j++)
+            {
+                Assert.assertEquals(expected[j].id, context.resultIds()[j]);
+                Assert.assertEquals(Double.doubleToLongBits(expected[j].score), Double.doubleToLongBits(context.resultScores()[j]));
+            }
+            abandoned += context.numAbandoned();
+            scored += context.numScored();
+        }
+        // the copies are the only true neighbors, so most of the rest are given up on part way through
+        if(thresh instanceof BoundedScoreThreshold) Assert.assertTrue("abandoned " + abandoned + " of " + scored, abandoned > scored / 2);
+        else Assert.assertEquals(0, abandoned);
+    }
+}
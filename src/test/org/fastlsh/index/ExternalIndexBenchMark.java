@@ -0,0 +1,50 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Times ExternalPermutationIndexWriter on a store of random signatures. The interesting case is a position table bigger than the page cache,
+ * e.g. run under a memory limit which leaves less cache than the table takes. With defaults but 30000000 signatures, in a 1GB memory cgroup
+ * with -Xmx320m (a 915MB table), replaying positions a run at a time took 295s in all; setting each position from the merge managed about 1200
+ * positions a second, which would have been over two days.
+ * Arguments: number of signatures (default 20000000), number of bits (default 128), number of permutations (default 8), run size (default 2000000)
+ */
+public class ExternalIndexBenchMark
+{
+    public static void main(String [] args) throws Exception
+    {
+        long numSignatures = args.length > 0 ? Long.parseLong(args[0]) : 20000000;
+        int numBits = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        int numPermutations = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int runSize = args.length > 3 ? Integer.parseInt(args[3]) : 2000000;
+        File dir = IndexUtils.createTempDir();
+        try
+        {
+            File storeFile = new File(dir, Constants.signatureStore);
+            SignatureStoreWriter writer = new SignatureStoreWriter(storeFile, numBits);
+            Random rand = new Random(1);
+            long [] words = new long[(numBits + 63) >>> 6];
+            for(long i = 0; i < numSignatures; i++)
+            {
+                for(int w = 0; w < words.length; w++) words[w] = rand.nextLong();
+                writer.write(i, words, 0);
+            }
+            writer.close();
+
+            IndexOptions options = new IndexOptions();
+            options.numHashes = numBits;
+            options.numPermutations = numPermutations;
+            options.permutationSeed = 2;
+            long start = System.nanoTime();
+            new ExternalPermutationIndexWriter(dir.getAbsolutePath(), new SignatureStoreReader(storeFile), options, runSize).createIndex();
+            long millis = (System.nanoTime() - start) / 1000000;
+            long tableBytes = new File(new File(dir, Constants.permutations), Constants.positions).length();
+            System.out.println(numSignatures + " signatures, " + numPermutations + " permutations, " + (tableBytes >> 20) + "MB position table: " + millis + "ms");
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.fastlsh.util.SignatureMatrix;
+import org.junit.Test;
+
+public class ExternalPermutationIndexWriterTest
+{
+    protected static File writeStore(SignatureMatrix sigs) throws Exception
+    {
+        File testFile = File.createTempFile("testSignatureStore", "dat");
+        testFile.delete();
+        testFile.deleteOnExit();
+        SignatureStoreWriter writer = new SignatureStoreWriter(testFile, sigs.numBits());
+        for(int i = 0; i < sigs.size(); i++) writer.write(sigs.id(i), sigs.words(), i * sigs.numWords());
+        writer.close();
+        return testFile;
+    }
+
+    @Test
+    public void testSignatureStore() throws Exception
+    {
+        SignatureMatrix sigs = SortSpeedBenchMark.makeRandomMatrix(100, 130);
+        File store = writeStore(sigs);
+        Assert.assertEquals(SignatureStoreWriter.headerBytes + 100 * SignatureStoreWriter.rowBytes(130), store.length());
+        // small segments, and the same file twice, to exercise row numbering across segments and files
+        SignatureStoreReader reader = new SignatureStoreReader(new File [] {store, store}, 7 * SignatureStoreWriter.rowBytes(130) + 3);
+        Assert.assertEquals(200, reader.size());
+        Assert.assertEquals(3, reader.numWords());
+        SignatureMatrix read = new SignatureMatrix(130, 0);
+        reader.read(50, 150, read);
+        long [] words = new long[3];
+        for(int i = 0; i < 150; i++)
+        {
+            int row = (50 + i) % 100;
+            Assert.assertEquals(sigs.id(row), reader.id(50 + i));
+            Assert.assertEquals(sigs.id(row), read.id(i));
+            reader.get(50 + i, words, 0);
+            for(int w = 0; w < 3; w++)
+            {
+                Assert.assertEquals(sigs.word(row, w), words[w]);
+                Assert.assertEquals(sigs.word(row, w), read.word(i, w));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesInMemory() throws Exception
+    {
+        IndexOptions options = new IndexOptions();
+        options.numHashes = 70;
+        options.numPermutations = 5;
+        options.permutationSeed = 987;
+        SignatureMatrix random = SortSpeedBenchMark.makeRandomMatrix(3000, options.numHashes);
+        // ids out of ordinal order (and some negative), so that the runs of the id index really have to be merged
+        SignatureMatrix sigs = new SignatureMatrix(options.numHashes, random.size());
+        for(int i = 0; i < random.size(); i++) sigs.add((i * 7919L) % 3001 - 1500, random.words(), i * random.numWords());
+        SignatureStoreReader store = new SignatureStoreReader(writeStore(sigs));
+
+        File inMemoryDir = IndexUtils.createTempDir();
+        File [] externalDirs = new File [] {IndexUtils.createTempDir(), IndexUtils.createTempDir(), IndexUtils.createTempDir()};
+        int [] runSizes = new int [] {700, 1, 5000};
+        try
+        {
+            new PermutationIndexWriter(inMemoryDir.getAbsolutePath(), sigs, options).createIndex();
+            File expected = new File(inMemoryDir, Constants.permutations);
+            for(int d = 0; d < externalDirs.length; d++)
+            {
+                new ExternalPermutationIndexWriter(externalDirs[d].getAbsolutePath(), store, options, runSizes[d]).createIndex();
+                File actual = new File(externalDirs[d], Constants.permutations);
+                Assert.assertFalse(new File(actual, ExternalPermutationIndexWriter.tmpDirName).exists());
+                String [] names = new String [] {Constants.ids, Constants.idIndex, Constants.positions};
+                for(String name : names) Assert.assertTrue(name, Arrays.equals(PermutationIndexWriterTest.readFile(new File(expected, name)), PermutationIndexWriterTest.readFile(new File(actual, name))));
+                for(int i = 0; i < options.numPermutations; i++)
+                {
+                    String name = Constants.permutationHead + i;
+                    Assert.assertTrue(name, Arrays.equals(PermutationIndexWriterTest.readFile(new File(expected, name)), PermutationIndexWriterTest.readFile(new File(actual, name))));
+                }
+            }
+        }
+        finally
+        {
+            IndexUtils.delete(inMemoryDir);
+            for(File f : externalDirs) IndexUtils.delete(f);
+        }
+    }
+}
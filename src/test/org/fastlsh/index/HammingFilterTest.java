@@ -0,0 +1,120 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.fastlsh.hash.HashFamily;
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.fastlsh.query.SearchContext;
+import org.fastlsh.threshold.CosineSimilarityThreshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.Neighbor;
+import org.junit.Test;
+
+public class HammingFilterTest
+{
+    int numHashes   = 128;
+    int numFeatures = 30;
+    int numRows     = 2000;
+    int numCopies   = 100;
+
+    protected static double [] randomUnitVector(int dimension, Random rand)
+    {
+        double [] retval = new double[dimension];
+        double norm = 0;
+        for(int j = 0; j < dimension; j++)
+        {
+            retval[j] = rand.nextGaussian();
+            norm += retval[j] * retval[j];
+        }
+        norm = Math.sqrt(norm);
+        for(int j = 0; j < dimension; j++) retval[j] /= norm;
+        return retval;
+    }
+
+    /**
+     * Index random unit vectors with ids [0, numRows), and near copies of the first numCopies of them, with ids [numRows, numRows + numCopies)
+     * @return the options the index was built with
+     */
+    protected static IndexOptions makePlantedIndex(File dir, int numHashes, int numFeatures, int numRows, int numCopies) throws Exception
+    {
+        IndexOptions options = new IndexOptions();
+        options.numHashes = numHashes;
+        options.vectorDimension = numFeatures;
+        options.hashFamily = HashFamily.getCosineHashFamily(options.vectorDimension, options.numHashes, 3L);
+        options.numPermutations = 8;
+        options.permutationSeed = 4L;
+
+        Random rand = new Random(5);
+        PipelinedIndexWriter<String> writer = new PipelinedIndexWriter<String>(dir.getAbsolutePath(), options);
+        double [][] vecs = new double[numRows][];
+        for(int i = 0; i < numRows; i++)
+        {
+            vecs[i] = randomUnitVector(numFeatures, rand);
+            writer.indexVector(new VectorWithId(i, vecs[i]));
+        }
+        for(int i = 0; i < numCopies; i++)
+        {
+            double [] noise = randomUnitVector(numFeatures, rand);
+            double [] copy = new double[numFeatures];
+            for(int j = 0; j < numFeatures; j++) copy[j] = vecs[i][j] + 0.1 * noise[j];
+            writer.indexVector(new VectorWithId(numRows + i, copy));
+        }
+        writer.close();
+        return options;
+    }
+
+    @Test
+    public void testMaxHammingDistance()
+    {
+        Assert.assertEquals(0, NearestNeighborSearcher.maxHammingDistance(1.0, 128, 0));
+        Assert.assertEquals(64, NearestNeighborSearcher.maxHammingDistance(0.0, 128, 0));
+        Assert.assertEquals(128, NearestNeighborSearcher.maxHammingDistance(-1.0, 128, 3));
+        // 0.5 => angle pi / 3, so a third of the bits, plus 3 standard deviations of binomial(128, 1/3)
+        Assert.assertEquals((int) Math.ceil(128 / 3.0 + 3 * Math.sqrt(128 * 2 / 9.0)), NearestNeighborSearcher.maxHammingDistance(0.5, 128, 3));
+    }
+
+    @Test
+    public void testFilterKeepsTrueNeighbors() throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        try
+        {
+            IndexOptions options = makePlantedIndex(dir, numHashes, numFeatures, numRows, numCopies);
+
+            NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+            SearchContext context = searcher.createContext();
+            Comparator<Neighbor> comparator = new Neighbor.SimilarityComparator();
+            ScoreThreshold thresh = new CosineSimilarityThreshold(0.9);
+            int scoredUnfiltered = 0;
+            int scoredFiltered = 0;
+            for(int i = 0; i < numCopies; i++)
+            {
+                searcher.setHammingFilter(-1);
+                Neighbor [] expected = searcher.getScoredNeighbors(i, 20, options.numPermutations, -1, comparator, thresh);
+                scoredUnfiltered += searcher.getScoredNeighbors(i, 20, options.numPermutations, -1, comparator, thresh, context) < 0 ? 0 : context.numScored();
+                searcher.setHammingFilter(NearestNeighborSearcher.maxHammingDistance(0.9, numHashes, 3));
+                int numResults = searcher.getScoredNeighbors(i, 20, options.numPermutations, -1, comparator, thresh, context);
+                scoredFiltered += context.numScored();
+
+                Assert.assertEquals(expected.length, numResults);
+                for(int j = 0; j < numResults; j++)
+                {
+                    Assert.assertEquals(expected[j].id, context.resultIds()[j]);
+                    Assert.assertEquals(expected[j].score, context.resultScores()[j]);
+                }
+                // the vector itself and its copy
+                Assert.assertTrue(numResults >= 2);
+            }
+            Assert.assertTrue("scored " + scoredFiltered + " of " + scoredUnfiltered, scoredFiltered * 5 < scoredUnfiltered);
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+}
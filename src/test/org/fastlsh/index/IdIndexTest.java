@@ -0,0 +1,43 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class IdIndexTest
+{
+    @Test
+    public void test() throws IOException
+    {
+        File testFile = File.createTempFile("testIdIndex", "dat");
+        testFile.delete();
+        testFile.deleteOnExit();
+        Random rand = new Random(42);
+        long [] ids = new long[5000];
+        for(int i = 0; i < ids.length; i++) ids[i] = rand.nextLong();
+        ids[17] = Long.MIN_VALUE + 1;
+        ids[18] = Long.MAX_VALUE;
+        ids[19] = 0;
+        IdIndex.write(testFile, ids);
+
+        IdIndex idx = new IdIndex(testFile);
+        Assert.assertEquals(ids.length, idx.size());
+        for(int i = 0; i < ids.length; i++) Assert.assertEquals(i, idx.ordinal(ids[i]));
+        Assert.assertEquals(-1, idx.ordinal(12345));
+        Assert.assertEquals(-1, idx.ordinal(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testEmpty() throws IOException
+    {
+        File testFile = File.createTempFile("testIdIndex", "dat");
+        testFile.delete();
+        testFile.deleteOnExit();
+        IdIndex.write(testFile, new long[0]);
+        Assert.assertEquals(-1, new IdIndex(testFile).ordinal(0));
+    }
+}
@@ -146,4 +146,18 @@ public class IndexUtils
         return true;
     }
 
+    public static TLongObjectHashMap<double[]> toMap(VectorStoreReader vecs)
+    {
+        TLongObjectHashMap<double[]> map = new TLongObjectHashMap<double[]>();
+        for (long i = 0, m = vecs.size(); i < m; i++)
+            map.put(vecs.id(i), vecs.get(i));
+        return map;
+    }
+
+    public static boolean areSame(VectorStoreReader vecs1,
+            VectorStoreReader vecs2)
+    {
+        return areSame(toMap(vecs1), toMap(vecs2));
+    }
+
 }
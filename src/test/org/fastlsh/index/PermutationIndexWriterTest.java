@@ -0,0 +1,98 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.fastlsh.util.IntStoreReader;
+import org.fastlsh.util.IntStoreReaderMapped;
+import org.fastlsh.util.SignatureMatrix;
+import org.junit.Test;
+
+public class PermutationIndexWriterTest
+{
+    protected static byte [] readFile(File f) throws IOException
+    {
+        byte [] retval = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try
+        {
+            int read = 0;
+            while(read < retval.length) read += in.read(retval, read, retval.length - read);
+        }
+        finally
+        {
+            in.close();
+        }
+        return retval;
+    }
+
+    protected static void build(String dir, SignatureMatrix sigs, IndexOptions options, int numThreads, long maxMemoryBytes) throws Exception
+    {
+        PermutationIndexWriter writer = new PermutationIndexWriter(dir, sigs, options);
+        writer.setParallelism(numThreads, maxMemoryBytes);
+        writer.createIndex();
+    }
+
+    @Test
+    public void testParallelMatchesSerial() throws Exception
+    {
+        File serialDir = IndexUtils.createTempDir();
+        File parallelDir = IndexUtils.createTempDir();
+        File cappedDir = IndexUtils.createTempDir();
+        try
+        {
+            IndexOptions options = new IndexOptions();
+            options.numHashes = 70;
+            options.numPermutations = 9;
+            options.permutationSeed = 12345;
+            SignatureMatrix sigs = SortSpeedBenchMark.makeRandomMatrix(3000, options.numHashes);
+
+            build(serialDir.getAbsolutePath(), sigs, options, 1, Long.MAX_VALUE);
+            build(parallelDir.getAbsolutePath(), sigs, options, 4, Long.MAX_VALUE);
+            // only enough memory for two permutations at once
+            build(cappedDir.getAbsolutePath(), sigs, options, 4, 2 * 3000L * (8 * 2 + 8 + 4 + 4 + 16) + 1);
+
+            File serialPerms = new File(serialDir, Constants.permutations);
+            for(File dir : new File [] {parallelDir, cappedDir})
+            {
+                File perms = new File(dir, Constants.permutations);
+                Assert.assertTrue(Arrays.equals(readFile(new File(serialPerms, Constants.positions)), readFile(new File(perms, Constants.positions))));
+                for(int i = 0; i < options.numPermutations; i++)
+                {
+                    String name = Constants.permutationHead + i;
+                    Assert.assertTrue(Arrays.equals(readFile(new File(serialPerms, name)), readFile(new File(perms, name))));
+                }
+            }
+
+            // and the position table really does point into the lists
+            PositionTable positions = new PositionTable(new File(serialPerms, Constants.positions));
+            for(int i = 0; i < options.numPermutations; i++)
+            {
+                IntStoreReader list = new IntStoreReaderMapped(new File(serialPerms, Constants.permutationHead + i).getAbsolutePath());
+                for(int pos = 0; pos < sigs.size(); pos++) Assert.assertEquals(pos, positions.get(list.get(pos), i));
+            }
+
+            // and the permutations regenerated from the seed are the ones the lists are sorted by
+            IndexReader reader = new IndexReader(serialDir.getAbsolutePath());
+            reader.options = options;
+            reader.initializePermuters();
+            SignatureMatrix permuted = new SignatureMatrix(options.numHashes, sigs.size());
+            for(int i = 0; i < options.numPermutations; i++)
+            {
+                sigs.permute(reader.permuters[i], permuted);
+                IntStoreReader list = new IntStoreReaderMapped(new File(serialPerms, Constants.permutationHead + i).getAbsolutePath());
+                for(int pos = 1; pos < sigs.size(); pos++) Assert.assertTrue(permuted.compare(list.get(pos - 1), list.get(pos)) < 0);
+            }
+        }
+        finally
+        {
+            IndexUtils.delete(serialDir);
+            IndexUtils.delete(parallelDir);
+            IndexUtils.delete(cappedDir);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.fastlsh.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.fastlsh.hash.HashFamily;
+import org.fastlsh.parsers.CSVParser;
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.junit.Test;
+
+public class PipelinedIndexWriterTest
+{
+    int numHashes   = 64;
+    int numFeatures = 20;
+    int numRows     = 2000;
+
+    protected static void index(String input, PipelinedIndexWriter<String> indexer) throws Exception
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(input));
+        try
+        {
+            indexer.setParser(new CSVParser(","));
+            String line = null;
+            while((line = reader.readLine()) != null) indexer.indexVector(line.trim());
+        }
+        finally
+        {
+            reader.close();
+            indexer.close();
+        }
+    }
+
+    @Test
+    public void testMatchesTwoPassBuild() throws Exception
+    {
+        File tmp = File.createTempFile("test_vector_data", "dat");
+        String input = tmp.getAbsolutePath();
+        tmp.delete();
+        File twoPassDir = IndexUtils.createTempDir();
+        File inMemoryDir = IndexUtils.createTempDir();
+        File externalDir = IndexUtils.createTempDir();
+        // the writers create their own output directories
+        twoPassDir.delete();
+        inMemoryDir.delete();
+        externalDir.delete();
+        try
+        {
+            GenerateRandomCSVInputs.generateTestFile(numFeatures, numRows, input);
+            IndexOptions options = new IndexOptions();
+            options.numHashes = numHashes;
+            options.vectorDimension = numFeatures;
+            options.hashFamily = HashFamily.getCosineHashFamily(options.vectorDimension, options.numHashes);
+            options.numPermutations = 4;
+
+            // the old way: serialized signatures, read back in to build the permutations
+            IndexUtils.generateSingleThreadedIndex(options, new CSVParser(","), input, twoPassDir.getAbsolutePath());
+            IndexReader reader = new IndexReader(twoPassDir.getAbsolutePath());
+            reader.initializeSignatureMatrix();
+            new PermutationIndexWriter(twoPassDir.getAbsolutePath(), reader.signatureMatrix, options).createIndex();
+
+            PipelinedIndexWriter<String> inMemory = new PipelinedIndexWriter<String>(inMemoryDir.getAbsolutePath(), options);
+            inMemory.setParallelism(3, Long.MAX_VALUE);
+            index(input, inMemory);
+            Assert.assertEquals(numRows, inMemory.numVectors());
+            Assert.assertEquals(0, inMemory.numSkipped());
+            index(input, new PipelinedIndexWriter<String>(externalDir.getAbsolutePath(), options, 300));
+
+            File expected = new File(twoPassDir, Constants.permutations);
+            for(File dir : new File [] {inMemoryDir, externalDir})
+            {
+                Assert.assertFalse(new File(dir, Constants.signatures).exists());
+                Assert.assertTrue(Arrays.equals(PermutationIndexWriterTest.readFile(new File(twoPassDir, Constants.inputData)), PermutationIndexWriterTest.readFile(new File(dir, Constants.inputData))));
+                File actual = new File(dir, Constants.permutations);
+                for(String name : expected.list()) Assert.assertTrue(name, Arrays.equals(PermutationIndexWriterTest.readFile(new File(expected, name)), PermutationIndexWriterTest.readFile(new File(actual, name))));
+
+                NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+                for(long id = 1; id < 10; id++)
+                {
+                    long [] neighbors = searcher.getNeighbors(id, 5, options.numPermutations);
+                    boolean found = false;
+                    for(long n : neighbors) found |= n == id;
+                    Assert.assertTrue(found);
+                }
+            }
+        }
+        finally
+        {
+            IndexUtils.delete(input);
+            IndexUtils.delete(twoPassDir);
+            IndexUtils.delete(inMemoryDir);
+            IndexUtils.delete(externalDir);
+        }
+    }
+}
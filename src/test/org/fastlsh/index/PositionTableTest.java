@@ -0,0 +1,32 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class PositionTableTest
+{
+    @Test
+    public void test() throws IOException
+    {
+        File testFile = File.createTempFile("testPositionTable", "dat");
+        testFile.delete();
+        testFile.deleteOnExit();
+        int numVectors = 1000;
+        int numPermutations = 7;
+        PositionTable table = PositionTable.create(testFile, numVectors, numPermutations);
+        for(int i = 0; i < numVectors; i++)
+            for(int j = 0; j < numPermutations; j++) table.set(i, j, i * 31 + j);
+        table.flush();
+        Assert.assertEquals(PositionTable.headerBytes + numVectors * numPermutations * 4, testFile.length());
+
+        PositionTable reader = new PositionTable(testFile);
+        Assert.assertEquals(numVectors, reader.numVectors());
+        Assert.assertEquals(numPermutations, reader.numPermutations());
+        for(int i = 0; i < numVectors; i++)
+            for(int j = 0; j < numPermutations; j++) Assert.assertEquals(i * 31 + j, reader.get(i, j));
+    }
+}
@@ -0,0 +1,95 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.fastlsh.hash.HashFamily;
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.fastlsh.query.SearchContext;
+import org.fastlsh.threshold.CosineSimilarityThreshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.Neighbor;
+
+/**
+ * Times id queries against a random index, and measures how many bytes each query allocates, with and without a reusable SearchContext,
+ * then does the same for vector queries with a SearchContext.
+ * Arguments: number of vectors (default 200000), dimension (default 100), number of queries (default 5000)
+ */
+public class SearchBenchMark
+{
+    protected static File makeIndex(int numRows, int dimension, int numHashes, int numPermutations) throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        IndexOptions options = new IndexOptions();
+        options.numHashes = numHashes;
+        options.vectorDimension = dimension;
+        options.hashFamily = HashFamily.getCosineHashFamily(dimension, numHashes);
+        options.numPermutations = numPermutations;
+        PipelinedIndexWriter<String> writer = new PipelinedIndexWriter<String>(dir.getAbsolutePath(), options);
+        writer.setParallelism(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 2);
+        Random rand = new Random(1);
+        for(int i = 0; i < numRows; i++)
+        {
+            double [] vals = new double[dimension];
+            for(int j = 0; j < dimension; j++) vals[j] = rand.nextGaussian();
+            writer.indexVector(new VectorWithId(i, vals));
+        }
+        writer.close();
+        return dir;
+    }
+
+    protected static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static void main(String [] args) throws Exception
+    {
+        int numRows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int beamRadius = 50;
+        int numPermutations = 10;
+        File dir = makeIndex(numRows, dimension, 128, numPermutations);
+        try
+        {
+            NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+            SearchContext context = searcher.createContext();
+            Comparator<Neighbor> comparator = new Neighbor.SimilarityComparator();
+            ScoreThreshold thresh = new CosineSimilarityThreshold(0.0);
+            // made up front so that only the searches are counted
+            Random queryRand = new Random(3);
+            double [][] queries = new double[numQueries][dimension];
+            for(double [] query : queries) for(int j = 0; j < dimension; j++) query[j] = queryRand.nextGaussian();
+            for(int rep = 0; rep < 3; rep++)
+            {
+                Random rand = new Random(2);
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                for(int q = 0; q < numQueries; q++) searcher.getScoredNeighbors(rand.nextInt(numRows), beamRadius, numPermutations, 10, comparator, thresh);
+                long millis = (System.nanoTime() - start) / 1000000;
+                System.out.println("Neighbor [] results: " + millis + "ms, " + (allocatedBytes() - bytes) / numQueries + " bytes per query");
+
+                rand = new Random(2);
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                for(int q = 0; q < numQueries; q++) searcher.getScoredNeighbors(rand.nextInt(numRows), beamRadius, numPermutations, 10, comparator, thresh, context);
+                millis = (System.nanoTime() - start) / 1000000;
+                System.out.println("SearchContext results: " + millis + "ms, " + (allocatedBytes() - bytes) / numQueries + " bytes per query");
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                for(double [] query : queries) searcher.getScoredNeighbors(query, beamRadius, numPermutations, 10, comparator, thresh, context);
+                millis = (System.nanoTime() - start) / 1000000;
+                System.out.println("Vector query results: " + millis + "ms, " + (allocatedBytes() - bytes) / numQueries + " bytes per query");
+            }
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+}
@@ -23,8 +23,9 @@ import java.util.List;
 import java.util.Random;
 
 import org.fastlsh.util.BitSet;
+import org.fastlsh.util.RadixSort;
 import org.fastlsh.util.Signature;
-import org.fastlsh.util.LexicographicBitSetComparator;
+import org.fastlsh.util.SignatureMatrix;
 import org.fastlsh.util.Permuter;
 
 public class SortSpeedBenchMark
@@ -64,23 +65,62 @@ public class SortSpeedBenchMark
         return retval.toArray();
     }
     
+    /**
+     * Random signatures packed straight into a matrix, for sizes where an array of Signature objects would not fit in memory
+     */
+    public static SignatureMatrix makeRandomMatrix(int numRows, int cardinality)
+    {
+        SignatureMatrix matrix = new SignatureMatrix(cardinality, numRows);
+        Random rand = new Random();
+        BitSet bs = new BitSet(cardinality);
+        for(int r = 0; r < numRows; r++)
+        {
+            bs.clear();
+            for(int i = 0; i < cardinality; i++)
+            {
+                if(rand.nextBoolean()) bs.set(i);
+            }
+            matrix.add(r + 1, bs);
+        }
+        return matrix;
+    }
+
+    /**
+     * Time the radix sort used to build permutation lists against the comparison sort on the same permuted signatures.
+     * @param args
+     * <br>comma separated list of numbers of signatures (default 1000000,10000000)
+     * <br>cardinality of the signatures (default 128)
+     */
     public static void main(String [] args)
     {
-        int numBitSets = Integer.parseInt(args[0]);
-        int cardinality = Integer.parseInt(args[1]);
-        long start = System.currentTimeMillis();        
-        Signature [] bitSets = makeRandomBitSets(numBitSets, cardinality);
-        long end = System.currentTimeMillis();
-        System.out.println("Took: " + (end - start) + " millis to initialize " + numBitSets + " bitsets of cardinality " + cardinality + ".");
+        String [] sizes = (args.length > 0 ? args[0] : "1000000,10000000").split(",");
+        int cardinality = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        for(String size : sizes)
+        {
+            int numBitSets = Integer.parseInt(size.trim());
+            long start = System.currentTimeMillis();        
+            SignatureMatrix matrix = makeRandomMatrix(numBitSets, cardinality);
+            long end = System.currentTimeMillis();
+            System.out.println("Took: " + (end - start) + " millis to initialize " + numBitSets + " bitsets of cardinality " + cardinality + ".");
 
-        Permuter permuter = new Permuter(cardinality);
-        PermutationIndexWriter.permuteAndSort(permuter, bitSets);
-        LexicographicBitSetComparator comparator = new LexicographicBitSetComparator();
-        start = System.currentTimeMillis();
-        Arrays.sort(bitSets, comparator);
-        end = System.currentTimeMillis();
-        
-        System.out.println("Took: " + (end - start) + " millis to sort " + numBitSets + " bitsets of cardinality " + cardinality + ".");
+            SignatureMatrix permuted = new SignatureMatrix(cardinality, numBitSets);
+            matrix.permute(new Permuter(cardinality), permuted);
+            matrix = null;
+            int [] comparisonRows = new int[numBitSets];
+            int [] radixRows = new int[numBitSets];
+            for(int i = 0; i < numBitSets; i++) comparisonRows[i] = radixRows[i] = i;
+
+            start = System.currentTimeMillis();
+            permuted.sort(comparisonRows);
+            end = System.currentTimeMillis();
+            System.out.println("Took: " + (end - start) + " millis to comparison sort " + numBitSets + " bitsets of cardinality " + cardinality + ".");
+
+            start = System.currentTimeMillis();
+            RadixSort.sort(permuted, radixRows);
+            end = System.currentTimeMillis();
+            System.out.println("Took: " + (end - start) + " millis to radix sort " + numBitSets + " bitsets of cardinality " + cardinality + ".");
+            if(!Arrays.equals(comparisonRows, radixRows)) throw new IllegalStateException("Radix sort and comparison sort disagree");
+        }
     }
     
 }
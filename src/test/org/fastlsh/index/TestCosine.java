@@ -46,8 +46,8 @@ public class TestCosine
         VectorParser<String> parser = new CSVParser(",");
         IndexUtils.generateSingleThreadedIndex(options, parser, input, output);
         IndexReader idxReader = new IndexReader(output);
-        idxReader.initializeSignatures();
-        PermutationIndexWriter permWriter = new PermutationIndexWriter(output, idxReader.signatures, options);
+        idxReader.initializeSignatureMatrix();
+        PermutationIndexWriter permWriter = new PermutationIndexWriter(output, idxReader.signatureMatrix, options);
         permWriter.createIndex();
         idxReader = null;
         NearestNeighborSearcher searcher = new NearestNeighborSearcher(output);
@@ -7,6 +7,7 @@ import org.fastlsh.hash.HashFamily;
 
 import org.fastlsh.parsers.CSVParser;
 import org.fastlsh.parsers.VectorParser;
+import org.fastlsh.query.NearestNeighborSearcher;
 
 import org.fastlsh.util.Signature;
 
@@ -68,6 +69,7 @@ public class TestMultiVsSingleThreaded
         options.numHashes = numHashes;
         options.vectorDimension = numFeatures;
         options.hashFamily = HashFamily.getCosineHashFamily(options.vectorDimension, options.numHashes);
+        options.numPermutations = 4;
 
         VectorParser<String> parser = new CSVParser(",");
 
@@ -79,17 +81,36 @@ public class TestMultiVsSingleThreaded
         reader1.initializeRawVecs();
         IndexReader reader2 = new IndexReader(multiOutput);
         reader2.initialize();
-        reader2.initializeSignatures();
+        // the multi threaded indexer writes packed signature shards
+        reader2.initializeSignatureMatrix();
         reader2.initializeRawVecs();
 
         Signature[] sigs1 = reader1.signatures;
-        Signature[] sigs2 = reader2.signatures;
+        Signature[] sigs2 = new Signature[reader2.signatureMatrix.size()];
+        for (int i = 0; i < sigs2.length; i++)
+            sigs2[i] = new Signature(reader2.signatureMatrix.id(i), reader2.signatureMatrix.get(i));
+        // signatures and vectors have to be in the same (ordinal) order, in every shard
+        for (int i = 0; i < numRows; i++)
+        {
+            Assert.assertEquals(sigs1[i].id, reader1.rawVectors.id(i));
+            Assert.assertEquals(sigs2[i].id, reader2.rawVectors.id(i));
+        }
         Assert.assertEquals(numRows, sigs1.length);
         Assert.assertEquals(sigs1.length, sigs2.length);
         Assert.assertTrue(IndexUtils.areSame(sigs1, sigs2));
 
-        Assert.assertEquals(numRows, reader1.rawVectorMap.size());
-        Assert.assertTrue(IndexUtils.areSame(reader1.rawVectorMap, reader2.rawVectorMap));
+        Assert.assertEquals(numRows, reader1.rawVectors.size());
+        Assert.assertTrue(IndexUtils.areSame(reader1.rawVectors, reader2.rawVectors));
+
+        // and the multi threaded index can be searched straight away
+        NearestNeighborSearcher searcher = new NearestNeighborSearcher(multiOutput);
+        for (long id = 1; id <= 10; id++)
+        {
+            boolean found = false;
+            for (long n : searcher.getNeighbors(id, 5, options.numPermutations))
+                found |= n == id;
+            Assert.assertTrue(found);
+        }
     }
 
 }
@@ -0,0 +1,78 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.fastlsh.hash.HashFamily;
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.fastlsh.query.SearchContext;
+import org.fastlsh.threshold.L2Threshold;
+import org.fastlsh.util.Neighbor;
+import org.junit.Test;
+
+public class VectorQueryTest
+{
+    int numHashes   = 128;
+    int numFeatures = 30;
+    int numRows     = 3000;
+
+    @Test
+    public void testVectorQueries() throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        try
+        {
+            IndexOptions options = new IndexOptions();
+            options.numHashes = numHashes;
+            options.vectorDimension = numFeatures;
+            options.hashFamily = HashFamily.getCosineHashFamily(options.vectorDimension, options.numHashes, 17L);
+            options.numPermutations = 6;
+            options.permutationSeed = 23L;
+
+            Random rand = new Random(5);
+            double [][] vecs = new double[numRows][];
+            PipelinedIndexWriter<String> writer = new PipelinedIndexWriter<String>(dir.getAbsolutePath(), options);
+            for(int i = 0; i < numRows; i++)
+            {
+                vecs[i] = new double[numFeatures];
+                for(int j = 0; j < numFeatures; j++) vecs[i][j] = rand.nextGaussian();
+                writer.indexVector(new VectorWithId(i + 100, vecs[i]));
+            }
+            writer.close();
+
+            NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+            SearchContext context = searcher.createContext();
+            Comparator<Neighbor> comparator = new Neighbor.DissimilarityComparator();
+            for(int i = 0; i < 50; i++)
+            {
+                // an indexed vector lands on its own position in every list, so finds exactly what searching by its id does
+                int [] byVector = searcher.getNeighborOrdinals(vecs[i], 8, options.numPermutations);
+                int [] byOrdinal = searcher.getNeighborOrdinals(i, 8, options.numPermutations);
+                Arrays.sort(byVector);
+                Arrays.sort(byOrdinal);
+                Assert.assertTrue(Arrays.equals(byOrdinal, byVector));
+
+                // a slightly perturbed copy, which is not in the index, still finds the original
+                double [] query = new double[numFeatures];
+                for(int j = 0; j < numFeatures; j++) query[j] = vecs[i][j] + 0.02 * rand.nextGaussian();
+                Neighbor [] neighbors = searcher.getScoredNeighbors(query, 8, options.numPermutations, Integer.MAX_VALUE, comparator, new L2Threshold(1.0));
+                Assert.assertEquals(1, neighbors.length);
+                Assert.assertEquals(i + 100, neighbors[0].id);
+
+                // the same search with an explicit context leaves its results there
+                Assert.assertEquals(1, searcher.getScoredNeighbors(query, 8, options.numPermutations, -1, comparator, new L2Threshold(1.0), context));
+                Assert.assertEquals(i + 100, context.resultIds()[0]);
+                Assert.assertEquals(neighbors[0].score, context.resultScores()[0]);
+            }
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class VectorStoreTest
+{
+    protected static File writeStore(int numRows, int dimension, long firstId, double [][] vals) throws IOException
+    {
+        File testFile = File.createTempFile("testVectorStore", "dat");
+        testFile.delete();
+        testFile.deleteOnExit();
+        Random rand = new Random(1234);
+        VectorStoreWriter writer = new VectorStoreWriter(testFile, dimension);
+        for(int i = 0; i < numRows; i++)
+        {
+            vals[i] = new double[dimension];
+            for(int j = 0; j < dimension; j++) vals[i][j] = rand.nextGaussian();
+            writer.write(firstId + i, vals[i]);
+        }
+        writer.close();
+        return testFile;
+    }
+
+    @Test
+    public void test() throws IOException
+    {
+        int numRows = 1000;
+        int dimension = 7;
+        double [][] vals = new double[numRows][];
+        File testFile = writeStore(numRows, dimension, 100, vals);
+        Assert.assertEquals(VectorStoreWriter.headerBytes + numRows * VectorStoreWriter.rowBytes(dimension), testFile.length());
+
+        VectorStoreReader reader = new VectorStoreReader(testFile);
+        Assert.assertEquals(numRows, reader.size());
+        Assert.assertEquals(dimension, reader.dimension());
+        double [] buf = new double[dimension];
+        for(int i = 0; i < numRows; i++)
+        {
+            Assert.assertEquals(100 + i, reader.id(i));
+            Assert.assertTrue(Arrays.equals(vals[i], reader.get(i, buf)));
+        }
+    }
+
+    @Test
+    public void testSegmentsAndShards() throws IOException
+    {
+        int dimension = 3;
+        double [][] vals1 = new double[50][];
+        double [][] vals2 = new double[0][];
+        double [][] vals3 = new double[31][];
+        File [] files = new File [] {writeStore(50, dimension, 0, vals1), writeStore(0, dimension, 50, vals2), writeStore(31, dimension, 50, vals3)};
+
+        // small segments, so that each file is split over several of them
+        VectorStoreReader reader = new VectorStoreReader(files, 7 * VectorStoreWriter.rowBytes(dimension) + 5);
+        Assert.assertEquals(81, reader.size());
+        for(int i = 0; i < 81; i++)
+        {
+            Assert.assertEquals(i, reader.id(i));
+            Assert.assertTrue(Arrays.equals(i < 50 ? vals1[i] : vals3[i - 50], reader.get(i)));
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testUnclosed() throws IOException
+    {
+        File testFile = File.createTempFile("testVectorStore", "dat");
+        testFile.delete();
+        testFile.deleteOnExit();
+        VectorStoreWriter writer = new VectorStoreWriter(testFile, 2);
+        for(int i = 0; i < 100000; i++) writer.write(i, new double [] {1, 2});
+        new VectorStoreReader(testFile);
+    }
+}
@@ -0,0 +1,62 @@
+package org.fastlsh.index;
+
+import java.io.File;
+import java.util.Comparator;
+
+import junit.framework.Assert;
+
+import org.fastlsh.query.NearestNeighborSearcher;
+import org.fastlsh.query.SearchContext;
+import org.fastlsh.threshold.CosineSimilarityThreshold;
+import org.fastlsh.threshold.ScoreThreshold;
+import org.fastlsh.util.Neighbor;
+import org.junit.Test;
+
+public class VoteFilterTest
+{
+    int numHashes   = 128;
+    int numFeatures = 30;
+    int numRows     = 2000;
+    int numCopies   = 100;
+
+    @Test
+    public void testMostVotedAreTrueNeighbors() throws Exception
+    {
+        File dir = IndexUtils.createTempDir();
+        dir.delete();
+        try
+        {
+            IndexOptions options = HammingFilterTest.makePlantedIndex(dir, numHashes, numFeatures, numRows, numCopies);
+            NearestNeighborSearcher searcher = new NearestNeighborSearcher(dir.getAbsolutePath());
+            SearchContext context = searcher.createContext();
+            Comparator<Neighbor> comparator = new Neighbor.SimilarityComparator();
+            ScoreThreshold thresh = new CosineSimilarityThreshold(0.9);
+            int bothFound = 0;
+            for(int i = 0; i < numCopies; i++)
+            {
+                searcher.setVoteFilter(-1, false);
+                Neighbor [] expected = searcher.getScoredNeighbors(i, 20, options.numPermutations, -1, comparator, thresh);
+
+                // scoring the 10 most voted candidates finds everything scoring all of them does
+                searcher.setVoteFilter(10, false);
+                int numResults = searcher.getScoredNeighbors(i, 20, options.numPermutations, -1, comparator, thresh, context);
+                Assert.assertTrue(context.numScored() <= 10);
+                Assert.assertEquals(expected.length, numResults);
+                for(int j = 0; j < numResults; j++) Assert.assertEquals(expected[j].id, context.resultIds()[j]);
+
+                // the vector itself and its near copy are almost always the two most voted, closest candidates
+                searcher.setVoteFilter(2, true);
+                numResults = searcher.getScoredNeighbors(i, 20, options.numPermutations, -1, comparator, thresh, context);
+                Assert.assertEquals(2, context.numScored());
+                boolean foundCopy = false;
+                for(int j = 0; j < numResults; j++) foundCopy |= context.resultIds()[j] == numRows + i;
+                if(numResults == 2 && foundCopy) bothFound++;
+            }
+            Assert.assertTrue("found both for " + bothFound, bothFound >= 90);
+        }
+        finally
+        {
+            IndexUtils.delete(dir);
+        }
+    }
+}
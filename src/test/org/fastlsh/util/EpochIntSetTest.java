@@ -0,0 +1,57 @@
+package org.fastlsh.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class EpochIntSetTest
+{
+    @Test
+    public void testMatchesHashSet()
+    {
+        Random rand = new Random(13);
+        EpochIntSet set = new EpochIntSet(4);
+        for(int round = 0; round < 20; round++)
+        {
+            // sets small enough to collide a lot, and big enough to make the table grow
+            Set<Integer> expected = new HashSet<Integer>();
+            set.clear();
+            int range = round % 2 == 0 ? 50 : 100000;
+            for(int i = 0; i < 1000; i++)
+            {
+                int key = rand.nextInt(range) - range / 2;
+                Assert.assertEquals(expected.add(key), set.add(key));
+            }
+            Assert.assertEquals(expected.size(), set.size());
+            for(int key = -range / 2; key < range / 2; key += range / 50) Assert.assertEquals(expected.contains(key), set.contains(key));
+        }
+        set.clear();
+        Assert.assertEquals(0, set.size());
+        Assert.assertFalse(set.contains(0));
+    }
+
+    @Test
+    public void testPutIfAbsent()
+    {
+        Random rand = new Random(17);
+        EpochIntSet set = new EpochIntSet(4);
+        for(int round = 0; round < 5; round++)
+        {
+            Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+            set.clear();
+            for(int i = 0; i < 2000; i++)
+            {
+                int key = rand.nextInt(1000);
+                Integer old = expected.get(key);
+                if(old == null) expected.put(key, i);
+                Assert.assertEquals(old == null ? -1 : old.intValue(), set.putIfAbsent(key, i));
+            }
+        }
+    }
+}
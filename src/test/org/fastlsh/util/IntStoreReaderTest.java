@@ -0,0 +1,50 @@
+package org.fastlsh.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class IntStoreReaderTest
+{
+    protected static int [] testArr = new int[100];
+    static
+    {
+        for(int i = 0; i < testArr.length; i++) testArr[i] = 3 * i - 17;
+    }
+
+    protected static String writeTestFile() throws IOException
+    {
+        File testFile = File.createTempFile("testIntStoreReader", "dat");
+        testFile.deleteOnExit();
+        IntStoreReader.createIntStore(testArr, testFile.getAbsolutePath());
+        return testFile.getAbsolutePath();
+    }
+
+    protected static void checkReader(IntStoreReader reader) throws IOException
+    {
+        Assert.assertEquals(testArr.length, reader.length());
+        for(int i = 0; i < testArr.length; i++) Assert.assertEquals(testArr[i], reader.get(i));
+        Assert.assertTrue(Arrays.equals(testArr, reader.get(0, reader.length())));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(testArr, 15, 25), reader.get(15, 25)));
+
+        int [] dest = new int[12];
+        reader.get(31, 41, dest, 2);
+        for(int i = 0; i < 10; i++) Assert.assertEquals(testArr[31 + i], dest[2 + i]);
+    }
+
+    @Test
+    public void test() throws IOException
+    {
+        String fileName = writeTestFile();
+        IntStoreReader disk = new IntStoreReaderDisk(fileName);
+        checkReader(disk);
+        disk.close();
+        checkReader(new IntStoreReaderMapped(fileName));
+        // segments of 8 ints, so that reads have to cross segment boundaries
+        checkReader(new IntStoreReaderMapped(fileName, 3));
+    }
+}
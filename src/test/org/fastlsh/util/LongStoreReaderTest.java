@@ -12,24 +12,25 @@ import org.junit.Test;
 
 public class LongStoreReaderTest
 {
-    @Test
-    public void test() throws IOException
+    protected static String writeTestFile(long len) throws IOException
     {
         File testFile = File.createTempFile("testLongStoreReader", "dat");
         testFile.deleteOnExit();
-        String fileName = testFile.getAbsolutePath();
         DataOutputStream dos = new DataOutputStream(new FileOutputStream(testFile));
-        long len = 100l;
         dos.writeLong(len);
-        long [] testArr = new long[(int)len];
         for(int i = 0; i < len; i++)
         {
             dos.writeLong((long)i);
-            testArr[i] = (long)i;
         }
         dos.close();
-        LongStoreReaderDisk reader = new LongStoreReaderDisk(fileName);
-        Assert.assertEquals(100, reader.length());
+        return testFile.getAbsolutePath();
+    }
+
+    protected static void checkReader(LongStoreReader reader, long len) throws IOException
+    {
+        long [] testArr = new long[(int)len];
+        for(int i = 0; i < len; i++) testArr[i] = (long)i;
+        Assert.assertEquals(len, reader.length());
         for(int i = 0; i < len; i++) Assert.assertEquals(i, reader.get(i));
         long [] foo = reader.get(0, reader.length());
         Assert.assertTrue(Arrays.equals(testArr, foo));
@@ -42,4 +43,21 @@ public class LongStoreReaderTest
         foo = reader.get(15, 25);
         Assert.assertTrue(Arrays.equals(testArr, foo));
     }
+
+    @Test
+    public void test() throws IOException
+    {
+        LongStoreReaderDisk reader = new LongStoreReaderDisk(writeTestFile(100));
+        checkReader(reader, 100);
+        reader.close();
+    }
+
+    @Test
+    public void testMapped() throws IOException
+    {
+        String fileName = writeTestFile(100);
+        checkReader(new LongStoreReaderMapped(fileName), 100);
+        // segments of 8 longs, so that reads have to cross segment boundaries
+        checkReader(new LongStoreReaderMapped(fileName, 3), 100);
+    }
 }
@@ -0,0 +1,69 @@
+package org.fastlsh.util;
+
+import java.util.Random;
+
+/**
+ * Times the unrolled MathFns kernels against single accumulator loops, and the batched kernels against one call per row.
+ */
+public class MathFnsBenchMark
+{
+    protected static double sequentialL2DistSquared(double [] x, double [] y)
+    {
+        double result = 0;
+        for (int i = 0, max = x.length; i < max; i++) result += (y[i] - x[i]) * (y[i] - x[i]);
+        return result;
+    }
+
+    /**
+     * @param args
+     * <br>dimension of the vectors (default 128)
+     * <br>number of rows (default 100000)
+     * <br>number of repetitions (default 5)
+     */
+    public static void main(String [] args)
+    {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int reps = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Random rand = new Random();
+        double [] q = MathFnsTest.random(dim, rand);
+        double [] packed = MathFnsTest.random(dim * numRows, rand);
+        double [][] rows = new double[numRows][dim];
+        for(int r = 0; r < numRows; r++) System.arraycopy(packed, r * dim, rows[r], 0, dim);
+        double [] out = new double[numRows];
+
+        for(int rep = 0; rep < reps; rep++)
+        {
+            double sink = 0;
+            long start = System.nanoTime();
+            for(double [] row : rows) sink += MathFns.dotSequential(q, row);
+            long sequentialDot = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(double [] row : rows) sink += MathFns.dot(q, row);
+            long dot = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            MathFns.dot(q, packed, 0, numRows, out);
+            long batchedDot = System.nanoTime() - start;
+            sink += out[numRows - 1];
+
+            start = System.nanoTime();
+            for(double [] row : rows) sink += sequentialL2DistSquared(q, row);
+            long sequentialDist = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(double [] row : rows) sink += MathFns.l2DistSquared(q, row, 0, dim);
+            long dist = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            MathFns.l2DistSquared(q, packed, 0, numRows, out);
+            long batchedDist = System.nanoTime() - start;
+            sink += out[numRows - 1];
+
+            System.out.println("dim " + dim + ", " + numRows + " rows, millis: dot sequential " + sequentialDot / 1000000.0 + ", unrolled " + dot / 1000000.0 
+                    + ", batched " + batchedDot / 1000000.0 + "; l2 sequential " + sequentialDist / 1000000.0 + ", unrolled " + dist / 1000000.0 
+                    + ", batched " + batchedDist / 1000000.0 + " (" + (sink > 0 ? "+" : "-") + ")");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.fastlsh.util;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class MathFnsTest
+{
+    protected static double [] random(int n, Random rand)
+    {
+        double [] retval = new double[n];
+        for(int i = 0; i < n; i++) retval[i] = rand.nextGaussian();
+        return retval;
+    }
+
+    @Test
+    public void testMatchesSequential()
+    {
+        Random rand = new Random(3);
+        // lengths on either side of multiples of the unroll factor
+        for(int n = 0; n < 20; n++)
+        {
+            double [] x = random(n, rand);
+            double [] y = random(n, rand);
+            double dot = 0, dist = 0, norm = 0;
+            for(int i = 0; i < n; i++)
+            {
+                dot += x[i] * y[i];
+                dist += (x[i] - y[i]) * (x[i] - y[i]);
+                norm += x[i] * x[i];
+            }
+            Assert.assertEquals(dot, MathFns.dotSequential(x, y));
+            Assert.assertEquals(dot, MathFns.dot(x, y), 1e-12);
+            Assert.assertEquals(Math.sqrt(dist), MathFns.l2Dist(x, y), 1e-12);
+            Assert.assertEquals(Math.sqrt(norm), MathFns.norm2(x), 1e-12);
+        }
+    }
+
+    @Test
+    public void testBatched()
+    {
+        Random rand = new Random(5);
+        int numRows = 11;
+        // dimensions with and without a tail after the blocks of four
+        for(int dim : new int [] {1, 3, 12, 13})
+        {
+            double [] q = random(dim, rand);
+            double [] rows = random(3 + numRows * dim, rand);
+            double [] dots = new double[numRows];
+            double [] dists = new double[numRows];
+            MathFns.dot(q, rows, 3, numRows, dots);
+            MathFns.l2DistSquared(q, rows, 3, numRows, dists);
+            for(int r = 0; r < numRows; r++)
+            {
+                double [] row = new double[dim];
+                System.arraycopy(rows, 3 + r * dim, row, 0, dim);
+                // bit for bit the same as scoring the row on its own, whether or not it is in a block of four rows
+                Assert.assertEquals(Double.doubleToLongBits(MathFns.dot(q, row)), Double.doubleToLongBits(dots[r]));
+                Assert.assertEquals(Double.doubleToLongBits(MathFns.l2DistSquared(q, row, 0, dim)), Double.doubleToLongBits(dists[r]));
+                double dist = MathFns.l2Dist(q, row);
+                Assert.assertEquals(dist * dist, dists[r], 1e-12);
+            }
+        }
+    }
+}
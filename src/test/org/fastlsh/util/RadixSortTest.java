@@ -0,0 +1,79 @@
+package org.fastlsh.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.fastlsh.index.SortSpeedBenchMark;
+import org.junit.Test;
+
+public class RadixSortTest
+{
+    @Test
+    public void testKeysAndValues()
+    {
+        Random rand = new Random(17);
+        long [] keys = new long[5000];
+        int [] values = new int[keys.length];
+        for(int i = 0; i < keys.length; i++)
+        {
+            // a small range of keys, with both signs, so that there are duplicates
+            keys[i] = rand.nextInt(1000) - 500;
+            if(i % 10 == 0) keys[i] = rand.nextLong();
+            values[i] = i;
+        }
+        long [] expected = keys.clone();
+        Arrays.sort(expected);
+        long [] original = keys.clone();
+        RadixSort.sort(keys, values);
+        Assert.assertTrue(Arrays.equals(expected, keys));
+        for(int i = 0; i < keys.length; i++)
+        {
+            Assert.assertEquals(original[values[i]], keys[i]);
+            // stable
+            if(i > 0 && keys[i] == keys[i - 1]) Assert.assertTrue(values[i] > values[i - 1]);
+        }
+    }
+
+    @Test
+    public void testSignaturesMatchComparisonSort()
+    {
+        // few bits give lots of identical signatures to exercise the tie break; many give several words
+        for(int numBits : new int [] {5, 13, 64, 130, 500})
+        {
+            Signature [] sigs = SortSpeedBenchMark.makeRandomBitSets(5000, numBits);
+            // ids out of row order, with some repeated, so the tie break has to look at both
+            for(int i = 0; i < sigs.length; i++) sigs[i] = new Signature((i * 7919L) % 4000, sigs[i].bits);
+            SignatureMatrix matrix = SignatureMatrixTest.toMatrix(sigs);
+            int [] expected = new int[sigs.length];
+            int [] rows = new int[sigs.length];
+            for(int i = 0; i < rows.length; i++) expected[i] = rows[i] = rows.length - 1 - i;
+            matrix.sort(expected);
+            RadixSort.sort(matrix, rows);
+            Assert.assertTrue(Arrays.equals(expected, rows));
+        }
+    }
+
+    @Test
+    public void testSignaturesSharedPrefix()
+    {
+        // everything agrees on the first 100 bits, so the sort has to skip over a run of single-bucket digits
+        Signature [] sigs = SortSpeedBenchMark.makeRandomBitSets(3000, 140);
+        for(Signature sig : sigs)
+        {
+            for(int i = 0; i < 100; i++)
+            {
+                if(i % 3 == 0) sig.bits.set(i);
+                else sig.bits.clear(i);
+            }
+        }
+        SignatureMatrix matrix = SignatureMatrixTest.toMatrix(sigs);
+        int [] expected = new int[sigs.length];
+        int [] rows = new int[sigs.length];
+        for(int i = 0; i < rows.length; i++) expected[i] = rows[i] = i;
+        matrix.sort(expected);
+        RadixSort.sort(matrix, rows);
+        Assert.assertTrue(Arrays.equals(expected, rows));
+    }
+}
@@ -0,0 +1,63 @@
+package org.fastlsh.util;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.fastlsh.index.SortSpeedBenchMark;
+import org.junit.Test;
+
+public class SignatureMatrixTest
+{
+    protected static SignatureMatrix toMatrix(Signature [] sigs)
+    {
+        SignatureMatrix matrix = new SignatureMatrix(sigs[0].bits.numBits, 1);
+        for(Signature sig : sigs) matrix.add(sig.id, sig.bits);
+        return matrix;
+    }
+
+    @Test
+    public void testAddAndGet()
+    {
+        Signature [] sigs = SortSpeedBenchMark.makeRandomBitSets(100, 130);
+        SignatureMatrix matrix = toMatrix(sigs);
+        Assert.assertEquals(100, matrix.size());
+        Assert.assertEquals(3, matrix.numWords());
+        for(int i = 0; i < sigs.length; i++)
+        {
+            Assert.assertEquals(sigs[i].id, matrix.id(i));
+            Assert.assertTrue(Arrays.equals(sigs[i].bits.bits, matrix.get(i).bits));
+        }
+    }
+
+    @Test
+    public void testPermute()
+    {
+        Signature [] sigs = SortSpeedBenchMark.makeRandomBitSets(100, 130);
+        SignatureMatrix matrix = toMatrix(sigs);
+        SignatureMatrix permuted = new SignatureMatrix(130, 0);
+        Permuter p = new Permuter(130);
+        matrix.permute(p, permuted);
+        Assert.assertEquals(100, permuted.size());
+        for(int i = 0; i < sigs.length; i++) Assert.assertTrue(Arrays.equals(p.permute(sigs[i].bits).bits, permuted.get(i).bits));
+    }
+
+    @Test
+    public void testSortMatchesComparator()
+    {
+        // few bits, so there are plenty of duplicate signatures to exercise the tie break
+        for(int numBits : new int [] {5, 64, 130})
+        {
+            Signature [] sigs = SortSpeedBenchMark.makeRandomBitSets(2000, numBits);
+            // ids in a different order from the rows, since the matrix breaks ties on id
+            for(int i = 0; i < sigs.length; i++) sigs[i] = new Signature((i * 7919L) % sigs.length, sigs[i].bits);
+            SignatureMatrix matrix = toMatrix(sigs);
+            int [] rows = new int[sigs.length];
+            for(int i = 0; i < rows.length; i++) rows[i] = rows.length - 1 - i;
+            matrix.sort(rows);
+
+            Arrays.sort(sigs, new LexicographicBitSetComparator());
+            for(int i = 0; i < rows.length; i++) Assert.assertEquals(sigs[i].id, matrix.id(rows[i]));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.fastlsh.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TopKTest
+{
+    @Test
+    public void testMatchesSortAndTruncate()
+    {
+        Random rand = new Random(9);
+        for(boolean largestFirst : new boolean [] {true, false})
+        {
+            Comparator<Neighbor> comparator = largestFirst ? new Neighbor.SimilarityComparator() : new Neighbor.DissimilarityComparator();
+            for(int k : new int [] {0, 1, 10, 100, 5000})
+            {
+                // few distinct scores, so ties have to be broken by id as the comparators do
+                Neighbor [] all = new Neighbor[1000];
+                for(int i = 0; i < all.length; i++) all[i] = new Neighbor(rand.nextInt(100000), rand.nextInt(50) / 10.0);
+                TopK top = new TopK(k, largestFirst);
+                for(Neighbor n : all) if(top.canAdd(n.score)) top.add(n.id, n.score);
+                Assert.assertEquals(Math.min(k, all.length), top.size());
+                Neighbor [] actual = top.toNeighbors();
+                Assert.assertEquals(0, top.size());
+
+                Arrays.sort(all, comparator);
+                Assert.assertEquals(Math.min(k, all.length), actual.length);
+                for(int i = 0; i < actual.length; i++)
+                {
+                    Assert.assertEquals(all[i].id, actual[i].id);
+                    Assert.assertEquals(all[i].score, actual[i].score);
+                }
+            }
+        }
+    }
+}